@@ -0,0 +1,54 @@
+package blob_storage_rest;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Per-block checksum cost on the staging thread, for heap and direct chunk buffers. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BlockChecksumBenchmark {
+    @Param({"4194304"})
+    public int blockSize;
+
+    @Param({"false", "true"})
+    public boolean direct;
+
+    private final BlockChecksums crc64 = new BlockChecksums(BlockChecksums.Algorithm.CRC64);
+    private final BlockChecksums md5 = new BlockChecksums(BlockChecksums.Algorithm.MD5);
+    private ByteBuffer block;
+
+    @Setup
+    public void setUp() {
+        byte[] data = new byte[blockSize];
+        new Random(1).nextBytes(data);
+        block = direct ? ByteBuffer.allocateDirect(blockSize) : ByteBuffer.allocate(blockSize);
+        block.put(data).flip();
+    }
+
+    @Benchmark
+    public byte[] crc64() {
+        return crc64.compute(StreamingBlockTransfer.blockId(0), block);
+    }
+
+    @Benchmark
+    public byte[] md5() {
+        return md5.compute(StreamingBlockTransfer.blockId(0), block);
+    }
+}
@@ -0,0 +1,93 @@
+package blob_storage_rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading a source into chunks: the original read-then-arraycopy-into-a-new-array loop against
+ * {@code readFully} into a reused heap or direct buffer.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ChunkCopyBenchmark {
+    @Param({"4194304", "8388608"})
+    public int chunkSize;
+
+    private byte[] source;
+    private byte[] readBuffer;
+    private ByteBuffer heapChunk;
+    private ByteBuffer directChunk;
+
+    @Setup
+    public void setUp() {
+        // Four chunks per invocation
+        source = new byte[chunkSize * 4];
+        readBuffer = new byte[chunkSize];
+        heapChunk = ByteBuffer.allocate(chunkSize);
+        directChunk = ByteBuffer.allocateDirect(chunkSize);
+    }
+
+    @Benchmark
+    public void arraycopyIntoNewChunk(Blackhole blackhole) throws IOException {
+        InputStream inputStream = new ByteArrayInputStream(source);
+        int bytesRead;
+        while ((bytesRead = inputStream.read(readBuffer)) != -1) {
+            byte[] chunk = new byte[bytesRead];
+            System.arraycopy(readBuffer, 0, chunk, 0, bytesRead);
+            blackhole.consume(chunk);
+        }
+    }
+
+    @Benchmark
+    public void readFullyIntoArray(Blackhole blackhole) throws IOException {
+        InputStream inputStream = new ByteArrayInputStream(source);
+        while (StreamingBlockTransfer.readFully(inputStream, readBuffer, chunkSize) > 0) {
+            blackhole.consume(readBuffer);
+        }
+    }
+
+    @Benchmark
+    public void readFullyIntoPooledHeapBuffer(Blackhole blackhole) throws IOException {
+        InputStream inputStream = new ByteArrayInputStream(source);
+        while (true) {
+            heapChunk.clear();
+            if (StreamingBlockTransfer.readFully(inputStream, heapChunk) <= 0) {
+                break;
+            }
+            blackhole.consume(heapChunk);
+        }
+    }
+
+    @Benchmark
+    public void readFullyIntoPooledDirectBuffer(Blackhole blackhole) throws IOException {
+        java.nio.channels.ReadableByteChannel channel =
+                java.nio.channels.Channels.newChannel(new ByteArrayInputStream(source));
+        while (true) {
+            directChunk.clear();
+            if (StreamingBlockTransfer.readFully(channel, directChunk) <= 0) {
+                break;
+            }
+            blackhole.consume(directChunk);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package blob_storage_rest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpServer;
+
+/** In-process endpoint that accepts any PUT with 201 and discards the body, for pipeline benchmarks. */
+class FakeBlobEndpoint implements AutoCloseable {
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "fake-blob-endpoint");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    FakeBlobEndpoint() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            byte[] discard = new byte[64 * 1024];
+            try (InputStream body = exchange.getRequestBody()) {
+                while (body.read(discard) != -1) {
+                    // drain
+                }
+            }
+            exchange.getResponseHeaders().add("x-ms-request-server-encrypted", "true");
+            exchange.sendResponseHeaders(201, -1);
+            exchange.close();
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /** Blob URL with a dummy SAS query, in the form the transfer classes expect. */
+    String blobUrl(String container, String blob) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/account/" + container + "/" + blob + "?sig=bench";
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,46 @@
+package blob_storage_rest;
+
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** SharedKey signing cost per request: the HMAC alone, and a whole Put Block request. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SharedKeySignatureBenchmark {
+    private final SharedKeySigner signer = new SharedKeySigner("account", Base64.getEncoder().encodeToString(new byte[64]));
+    private final String stringToSign = "PUT\n\n\n4194304\n\n\n\n\n\n\n\n\n"
+            + "x-ms-date:Sun, 18 Oct 2026 10:00:00 GMT\nx-ms-version:2020-04-08\n"
+            + "/account/target-container/blob\nblockid:MDAwMDAw\ncomp:block";
+
+    @Benchmark
+    public String signature() {
+        return signer.signature(stringToSign);
+    }
+
+    @Benchmark
+    public HttpURLConnection signPutBlock() throws Exception {
+        // Opening the connection does not connect; the cost is header handling and signing
+        HttpURLConnection connection = (HttpURLConnection) new URI(
+                "https://account.blob.core.windows.net/target-container/blob?comp=block&blockid=MDAwMDAw").toURL()
+                .openConnection();
+        connection.setRequestMethod("PUT");
+        signer.sign(connection, 4 * 1024 * 1024);
+        return connection;
+    }
+}
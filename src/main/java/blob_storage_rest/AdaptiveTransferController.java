@@ -0,0 +1,121 @@
+package blob_storage_rest;
+
+import java.util.Arrays;
+
+/**
+ * Tunes block size and the number of in-flight blocks while a transfer runs. Completed blocks are
+ * grouped into measurement windows; at the end of each window the controller compares the window's
+ * throughput with the previous one and adjusts concurrency AIMD-style: one more block in flight while
+ * throughput keeps improving, half as many after a failure or a clear drop. Block size follows the median
+ * block latency: small, fast blocks are dominated by per-request overhead and are doubled, slow blocks are
+ * halved to bound the cost of a retry.
+ */
+public class AdaptiveTransferController {
+    private static final long FAST_BLOCK_NANOS = 250_000_000L; // 250ms
+    private static final long SLOW_BLOCK_NANOS = 10_000_000_000L; // 10s
+    private static final double IMPROVEMENT = 1.05;
+    private static final double DROP = 0.90;
+
+    private final int minBlockSize;
+    private final int maxBlockSize;
+    private final int minConcurrency;
+    private final int maxConcurrency;
+
+    private int blockSize;
+    private int concurrency;
+
+    // Current measurement window
+    private long windowStart = System.nanoTime();
+    private long windowBytes;
+    private long[] windowLatencies = new long[16];
+    private int windowBlocks;
+    private boolean windowFailed;
+
+    private double previousThroughput;
+    private double bestThroughput;
+    private long totalBytes;
+    private long totalBlocks;
+    private int adjustments;
+
+    public AdaptiveTransferController(int minBlockSize, int initialBlockSize, int maxBlockSize,
+            int minConcurrency, int initialConcurrency, int maxConcurrency) {
+        if (minBlockSize <= 0 || minBlockSize > initialBlockSize || initialBlockSize > maxBlockSize
+                || minConcurrency <= 0 || minConcurrency > initialConcurrency || initialConcurrency > maxConcurrency) {
+            throw new IllegalArgumentException("Expected 0 < min <= initial <= max for block size and concurrency");
+        }
+        this.minBlockSize = minBlockSize;
+        this.maxBlockSize = maxBlockSize;
+        this.minConcurrency = minConcurrency;
+        this.maxConcurrency = maxConcurrency;
+        this.blockSize = initialBlockSize;
+        this.concurrency = initialConcurrency;
+    }
+
+    /** Block size for the next chunk read from the source. */
+    public synchronized int getBlockSize() {
+        return blockSize;
+    }
+
+    /** Number of blocks that should currently be in flight. */
+    public synchronized int getConcurrency() {
+        return concurrency;
+    }
+
+    /** Records a block staged successfully in {@code nanos}. */
+    public synchronized void recordBlock(int bytes, long nanos) {
+        if (windowBlocks == windowLatencies.length) {
+            windowLatencies = Arrays.copyOf(windowLatencies, windowBlocks * 2);
+        }
+        windowLatencies[windowBlocks++] = nanos;
+        windowBytes += bytes;
+        totalBytes += bytes;
+        totalBlocks++;
+        // A window spans a couple of rounds of the current concurrency so one slow block does not dominate
+        if (windowBlocks >= Math.max(4, 2 * concurrency)) {
+            adjust();
+        }
+    }
+
+    /** Records a failed or throttled block; the current window ends with a multiplicative decrease. */
+    public synchronized void recordFailure() {
+        windowFailed = true;
+        adjust();
+    }
+
+    private void adjust() {
+        long elapsed = Math.max(1, System.nanoTime() - windowStart);
+        double throughput = windowBytes * 1e9 / elapsed;
+
+        if (windowFailed || (previousThroughput > 0 && throughput < previousThroughput * DROP)) {
+            concurrency = Math.max(minConcurrency, concurrency / 2);
+        } else if (previousThroughput == 0 || throughput > previousThroughput * IMPROVEMENT) {
+            concurrency = Math.min(maxConcurrency, concurrency + 1);
+        }
+
+        if (windowBlocks > 0) {
+            long[] latencies = Arrays.copyOf(windowLatencies, windowBlocks);
+            Arrays.sort(latencies);
+            long median = latencies[latencies.length / 2];
+            if (median < FAST_BLOCK_NANOS) {
+                blockSize = Math.min(maxBlockSize, blockSize * 2);
+            } else if (median > SLOW_BLOCK_NANOS) {
+                blockSize = Math.max(minBlockSize, blockSize / 2);
+            }
+        }
+
+        bestThroughput = Math.max(bestThroughput, throughput);
+        previousThroughput = throughput;
+        adjustments++;
+        windowStart = System.nanoTime();
+        windowBytes = 0;
+        windowBlocks = 0;
+        windowFailed = false;
+    }
+
+    /** Summary of the settings the controller settled on, for the end-of-transfer report. */
+    public synchronized String report() {
+        return String.format("Adaptive settings: block size %d KiB, %d blocks in flight "
+                + "(%d blocks, %d bytes, best window %.1f MiB/s, %d adjustments)",
+                blockSize / 1024, concurrency, totalBlocks, totalBytes, bestThroughput / (1024 * 1024), adjustments);
+    }
+}
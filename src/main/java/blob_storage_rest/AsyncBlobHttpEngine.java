@@ -0,0 +1,310 @@
+package blob_storage_rest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking HTTP engine for SAS-authenticated blob requests on {@link HttpClient}. Requests are sent
+ * with {@code sendAsync} over HTTP/1.1 keep-alive connections, so connection and TLS setup are paid
+ * once per connection rather than once per block. At most {@code maxConnectionsPerHost} requests are
+ * in flight per storage host; further requests wait in a queue without holding a thread, which also
+ * bounds the connections the client keeps open to that host. Block bodies are published straight
+ * from the caller's buffer.
+ */
+public class AsyncBlobHttpEngine implements AutoCloseable {
+    private static final String API_VERSION = "2020-04-08";
+
+    private final HttpClient client;
+    private final ExecutorService executor;
+    private final int maxConnectionsPerHost;
+    private final Map<String, HostPermits> hosts = new ConcurrentHashMap<>();
+
+    public AsyncBlobHttpEngine(int maxConnectionsPerHost, int threads) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        // A few daemon threads complete responses; I/O itself runs on the client's selector thread
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "blob-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(30))
+                .executor(executor)
+                .build();
+    }
+
+    /** Put Block with the bytes between {@code data}'s position and limit; the buffer must not change until done. */
+    public CompletableFuture<Void> putBlock(String blobUrl, String blockId, ByteBuffer data) {
+        return putBlock(blobUrl, blockId, data, null, null);
+    }
+
+    /** As {@link #putBlock(String, String, ByteBuffer)}, with a transactional checksum header if {@code checksumHeader} is set. */
+    public CompletableFuture<Void> putBlock(String blobUrl, String blockId, ByteBuffer data, String checksumHeader,
+            String checksum) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(blobUrl + "&comp=block&blockid="
+                        + URLEncoder.encode(blockId, StandardCharsets.UTF_8)))
+                .header("x-ms-version", API_VERSION)
+                .PUT(ofByteBuffer(data));
+        if (checksumHeader != null) {
+            builder.header(checksumHeader, checksum);
+        }
+        HttpRequest request = builder.build();
+        return expect(send(request, HttpResponse.BodyHandlers.discarding()), 201, "Failed to upload block");
+    }
+
+    /**
+     * Put Blob creating a block blob from the bytes between {@code data}'s position and limit in one
+     * request, with extra headers such as a transactional checksum, content encoding and metadata.
+     */
+    public CompletableFuture<Void> putBlob(String blobUrl, ByteBuffer data, Map<String, String> headers) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(blobUrl))
+                .header("x-ms-version", API_VERSION)
+                .header("x-ms-blob-type", "BlockBlob")
+                .PUT(ofByteBuffer(data));
+        headers.forEach(builder::header);
+        HttpRequest request = builder.build();
+        return expect(send(request, HttpResponse.BodyHandlers.discarding()), 201, "Failed to upload blob");
+    }
+
+    /**
+     * Put Blob From URL: the service creates the block blob from the whole source in one request. With
+     * {@code sourceEtag} the copy fails with 412 unless the source still has that ETag.
+     */
+    public CompletableFuture<Void> putBlobFromUrl(String blobUrl, String sourceBlobUrl, String sourceEtag) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(blobUrl))
+                .header("x-ms-version", API_VERSION)
+                .header("x-ms-blob-type", "BlockBlob")
+                .header("x-ms-copy-source", sourceBlobUrl)
+                .PUT(HttpRequest.BodyPublishers.noBody());
+        if (sourceEtag != null) {
+            builder.header("x-ms-source-if-match", sourceEtag);
+        }
+        return expect(send(builder.build(), HttpResponse.BodyHandlers.discarding()), 201, "Failed to copy blob from URL");
+    }
+
+    /**
+     * Put Block From URL for {@code count} bytes of the source at {@code offset}. With {@code sourceEtag}
+     * the copy fails with 412 unless the source still has that ETag.
+     */
+    public CompletableFuture<Void> putBlockFromUrl(String blobUrl, String sourceBlobUrl, long offset, long count,
+            String blockId, String sourceEtag) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(blobUrl + "&comp=block&blockid="
+                        + URLEncoder.encode(blockId, StandardCharsets.UTF_8)))
+                .header("x-ms-version", API_VERSION)
+                .header("x-ms-copy-source", sourceBlobUrl)
+                .header("x-ms-source-range", "bytes=" + offset + "-" + (offset + count - 1))
+                .PUT(HttpRequest.BodyPublishers.noBody());
+        if (sourceEtag != null) {
+            builder.header("x-ms-source-if-match", sourceEtag);
+        }
+        return expect(send(builder.build(), HttpResponse.BodyHandlers.discarding()), 201, "Failed to copy block from URL");
+    }
+
+    /** Put Block List committing {@code blockIds} in order; the XML body is streamed as it is sent. */
+    public CompletableFuture<Void> putBlockList(String blobUrl, List<String> blockIds) {
+        return putBlockList(blobUrl, blockIds, Map.of());
+    }
+
+    /** As {@link #putBlockList(String, List)}, with extra blob headers such as content encoding and metadata. */
+    public CompletableFuture<Void> putBlockList(String blobUrl, List<String> blockIds, Map<String, String> headers) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(blobUrl + "&comp=blocklist"))
+                .header("x-ms-version", API_VERSION)
+                .header("Content-Type", "application/xml")
+                .PUT(BlockListXml.bodyPublisher(blockIds));
+        headers.forEach(builder::header);
+        HttpRequest request = builder.build();
+        return expect(send(request, HttpResponse.BodyHandlers.discarding()), 201, "Failed to commit blocks");
+    }
+
+    /**
+     * Ranged Get Blob; the caller interprets the status (206, 200 for a whole blob, 416 past the end, 412
+     * if {@code etag} is given and the blob no longer has it).
+     */
+    public CompletableFuture<HttpResponse<byte[]>> getRange(String blobUrl, long offset, int count, String etag) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(blobUrl))
+                .header("x-ms-version", API_VERSION)
+                .header("x-ms-range", "bytes=" + offset + "-" + (offset + count - 1))
+                .GET();
+        if (etag != null) {
+            builder.header("If-Match", etag);
+        }
+        return send(builder.build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    /**
+     * Sends {@code request} once a connection to its host is free, without blocking the caller.
+     * Cancelling the returned future drops the request if it is still queued and aborts it otherwise.
+     */
+    public <T> CompletableFuture<HttpResponse<T>> send(HttpRequest request, HttpResponse.BodyHandler<T> handler) {
+        URI uri = request.uri();
+        HostPermits permits = hosts.computeIfAbsent(uri.getHost() + ":" + uri.getPort(),
+                host -> new HostPermits(maxConnectionsPerHost));
+        CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        permits.acquire().thenAccept(ignored -> {
+            if (result.isDone()) {
+                permits.release();
+                return;
+            }
+            CompletableFuture<HttpResponse<T>> exchange = client.sendAsync(request, handler);
+            exchange.whenComplete((response, error) -> {
+                permits.release();
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(response);
+                }
+            });
+            result.whenComplete((response, error) -> {
+                if (result.isCancelled()) {
+                    exchange.cancel(true);
+                }
+            });
+        });
+        return result;
+    }
+
+    /**
+     * Waits for {@code future}, rethrowing its failure as the original exception where possible. If the
+     * waiting thread is interrupted, the request is cancelled.
+     */
+    public static <T> T await(CompletableFuture<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null
+                    ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    /** Fails with {@code message} unless the response has {@code status}; cancelling the result cancels the request. */
+    private static CompletableFuture<Void> expect(CompletableFuture<? extends HttpResponse<?>> response, int status,
+            String message) {
+        CompletableFuture<Void> result = response.thenAccept(received -> expect(received, status, message));
+        result.whenComplete((ignored, error) -> {
+            if (result.isCancelled()) {
+                response.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    private static void expect(HttpResponse<?> response, int status, String message) {
+        if (response.statusCode() != status) {
+            throw new HttpStatusException(message, response.statusCode());
+        }
+    }
+
+    /** A response with an unexpected status, e.g. "Failed to upload block: HTTP 503". */
+    public static class HttpStatusException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final int statusCode;
+
+        public HttpStatusException(String message, int statusCode) {
+            super(message + ": HTTP " + statusCode);
+            this.statusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+    }
+
+    /** Publishes the remaining bytes of {@code data} as one item, without copying them to an array. */
+    static HttpRequest.BodyPublisher ofByteBuffer(ByteBuffer data) {
+        ByteBuffer body = data.slice();
+        if (!body.hasRemaining()) {
+            return HttpRequest.BodyPublishers.noBody();
+        }
+        Flow.Publisher<ByteBuffer> publisher = subscriber -> {
+            // Each subscription (the client may resend) gets its own view of the bytes
+            ByteBuffer view = body.duplicate();
+            AtomicBoolean done = new AtomicBoolean();
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    if (n > 0 && done.compareAndSet(false, true)) {
+                        subscriber.onNext(view);
+                        subscriber.onComplete();
+                    }
+                }
+
+                @Override
+                public void cancel() {
+                    done.set(true);
+                }
+            });
+        };
+        return HttpRequest.BodyPublishers.fromPublisher(publisher, body.remaining());
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /** Asynchronous counting semaphore: waiters are futures, completed in order as permits free up. */
+    private static final class HostPermits {
+        private final Deque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+        private int available;
+
+        HostPermits(int permits) {
+            this.available = permits;
+        }
+
+        synchronized CompletableFuture<Void> acquire() {
+            if (available > 0) {
+                available--;
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> waiter = new CompletableFuture<>();
+            waiters.add(waiter);
+            TransferMetrics.get().requestsQueued(1);
+            return waiter;
+        }
+
+        void release() {
+            CompletableFuture<Void> next;
+            synchronized (this) {
+                next = waiters.poll();
+                if (next == null) {
+                    available++;
+                    return;
+                }
+            }
+            // Hand the permit straight to the next waiter
+            TransferMetrics.get().requestsQueued(-1);
+            next.complete(null);
+        }
+    }
+}
@@ -4,16 +4,14 @@ import com.azure.storage.blob.BlobClient;
 import com.azure.storage.blob.BlobContainerClient;
 import com.azure.storage.blob.BlobServiceClient;
 import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.models.BlobRange;
 import com.azure.storage.blob.specialized.BlockBlobClient;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Base64;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class AsyncTransfer {
     public static void main(String[] args) {
@@ -34,43 +32,78 @@ public class AsyncTransfer {
         BlobServiceClient sourceClient = new BlobServiceClientBuilder()
                 .connectionString(sourceConnectionString)
                 .buildClient();
+        // The context-headers policy lets each stageBlock carry its own x-ms-content-crc64 header
         BlobServiceClient targetClient = new BlobServiceClientBuilder()
                 .connectionString(targetConnectionString)
+                .addPolicy(SyncTransfer.CONTEXT_HEADERS)
+                .addPolicy(TransferMetrics.retryCountingPolicy())
                 .buildClient();
 
         // Get source and target containers
         BlobContainerClient sourceContainer = sourceClient.getBlobContainerClient(sourceContainerName);
         BlobContainerClient targetContainer = targetClient.getBlobContainerClient(targetContainerName);
 
-        // Check if the target blob already exists
-        BlobClient targetBlobClient = targetContainer.getBlobClient(targetBlobName);
-        if (targetBlobClient.exists()) {
-            System.out.println("Target blob already exists.");
-            return; // Exit the program 
-        }
+        // Every block transfer keeps a journal; --resume picks up an interrupted one instead of starting over
+        boolean resume = args.length > 0 && "--resume".equals(args[0]);
+        Path journalPath = Paths.get(targetBlobName + ".journal");
 
         // Get source blob
         BlobClient sourceBlob = sourceContainer.getBlobClient(sourceBlobName);
 
-        // Defining chunk size
-        long chunkSize = 8 * 1024 * 1024L; 
-
-        // Download source blob and upload chunks to target
-        try (InputStream inputStream = sourceBlob.openInputStream()) {
-            List<byte[]> chunks = new ArrayList<>();
-            int chunkCount = 0;
-            int bytesRead;
-            byte[] buffer = new byte[(int) chunkSize];
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                byte[] chunk = new byte[bytesRead];
-                System.arraycopy(buffer, 0, chunk, 0, bytesRead);
-                chunks.add(chunk);
-                chunkCount++;
-                System.out.println("Chunk " + chunkCount + " transferred.");
+        // With --delta, update an existing target in place and send only the blocks that changed
+        BlobClient targetBlobClient = targetContainer.getBlobClient(targetBlobName);
+        if (args.length > 0 && "--delta".equals(args[0])) {
+            try {
+                DeltaBlockTransfer.copy(sourceBlob, targetBlobClient.getBlockBlobClient(), 8 * 1024 * 1024);
+            } catch (IOException e) {
+                System.err.println("An error occurred during blob transfer: " + e.getMessage());
+                e.printStackTrace();
             }
-            // Upload chunks to target
-            uploadChunksToTargetInParallel(chunks, targetContainer, targetBlobName);
+            System.out.println("Total time taken: " + (System.currentTimeMillis() - startTime) / 60000.0 + " minutes");
+            return;
+        }
+
+        // Check if the target blob already exists, unless an unfinished transfer to it is being resumed
+        if (!resume && targetBlobClient.exists()) {
+            System.out.println("Target blob already exists (use --delta to update it).");
+            return; // Exit the program 
+        }
+
+        // Small blobs go up in a single Put Blob, without the block pipeline and its commit round trip
+        long sourceLength = sourceBlob.getProperties().getBlobSize();
+        if (!resume && sourceLength <= StreamingBlockTransfer.singlePutThreshold()) {
+            try (BlockCompressor compressor = BlockCompressor.fromEnvironment((int) sourceLength, 1)) {
+                SyncTransfer.copySmallBlob(sourceBlob, targetBlobClient.getBlockBlobClient(),
+                        BlockChecksums.fromEnvironment(), compressor);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            System.out.println("Total time taken: " + (System.currentTimeMillis() - startTime) / 60000.0 + " minutes");
+            System.out.println("Transfer metrics: " + TransferMetrics.get().snapshot());
+            return;
+        }
+
+        // Defining the chunk size and the number of chunk buffers allowed in memory at once; the journal fixes
+        // the chunk size, and the adaptive controller tunes how many blocks are in flight
+        // Past about 200 GB the chunk size grows so that the blob still fits in 50,000 blocks
+        int chunkSize = StreamingBlockTransfer.bufferedBlockSizeFor(sourceLength, 8 * 1024 * 1024);
+        int maxInFlightBlocks = 16;
+        ChunkBufferPool bufferPool = ChunkBufferPool.fromEnvironment(chunkSize, maxInFlightBlocks);
+        AdaptiveTransferController controller = new AdaptiveTransferController(chunkSize, chunkSize, chunkSize,
+                2, 4, maxInFlightBlocks);
+
+        // Stream source blob into staged blocks, then commit them on the target
+        BlockBlobClient targetBlob = targetBlobClient.getBlockBlobClient();
+        try (BlockCompressor compressor = BlockCompressor.fromEnvironment(bufferPool.getBufferSize(), maxInFlightBlocks);
+                TransferJournal journal = SyncTransfer.openJournal(journalPath, sourceBlob, targetBlob, chunkSize,
+                        compressor, resume);
+                InputStream inputStream = sourceBlob.openInputStream(new BlobRange(journal.resumeOffset()), null)) {
+            uploadChunksToTargetInParallel(inputStream, bufferPool, maxInFlightBlocks, controller, sourceLength,
+                    targetBlob, journal, compressor);
+            journal.delete();
             System.out.println("Blob transfer completed.");
+            System.out.println(bufferPool);
+            System.out.println(controller.report());
         } catch (IOException e) {
             System.err.println("An error occurred during blob transfer: " + e.getMessage());
             e.printStackTrace();
@@ -81,40 +114,29 @@ public class AsyncTransfer {
 
         // Printing total time taken
         System.out.println("Total time taken: " + (endTime - startTime) / 60000.0 + " minutes");
+        System.out.println("Transfer metrics: " + TransferMetrics.get().snapshot());
     }
 
-    private static void uploadChunksToTargetInParallel(List<byte[]> chunks, BlobContainerClient targetContainer, String blobName) {
-        try {
-            BlockBlobClient targetBlob = targetContainer.getBlobClient(blobName).getBlockBlobClient();
-
-            ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-            for (int i = 0; i < chunks.size(); i++) {
-                final int index = i;
-                byte[] chunk = chunks.get(i);
-                executor.execute(() -> {
-                    try (InputStream chunkInputStream = new ByteArrayInputStream(chunk)) {
-                        String blockId = Base64.getEncoder().encodeToString(String.format("%06d", index).getBytes());
-                        targetBlob.stageBlock(blockId, chunkInputStream, chunk.length);
-                        System.out.println("Chunk " + (index + 1) + " uploaded to target.");
-                    } catch (IOException e) {
-                        e.printStackTrace(); 
-                    }
-                });
-            }
-
-            executor.shutdown();
-            while (!executor.isTerminated()) {
-                // Waiting for all tasks to finish
-            }
-
-            List<String> blockIds = new ArrayList<>();
-            for (int i = 0; i < chunks.size(); i++) {
-                blockIds.add(Base64.getEncoder().encodeToString(String.format("%06d", i).getBytes()));
-            }
-            targetBlob.commitBlockList(blockIds);
-        } catch (Exception e) {
-            throw new RuntimeException("An error occurred during chunk upload: " + e.getMessage(), e);
+    private static void uploadChunksToTargetInParallel(InputStream inputStream, ChunkBufferPool bufferPool,
+            int maxInFlightBlocks, AdaptiveTransferController controller, long sourceLength,
+            BlockBlobClient targetBlob, TransferJournal journal, BlockCompressor compressor) throws IOException {
+        StreamingBlockTransfer transfer = new StreamingBlockTransfer(bufferPool, maxInFlightBlocks);
+        transfer.setController(controller);
+        transfer.setCompressor(compressor);
+        BlockChecksums checksums = BlockChecksums.fromEnvironment();
+        // The pooled buffer is sent as is (or compressed, with TRANSFER_COMPRESSION=gzip), with its checksum;
+        // it goes back to the pool once the block is staged
+        // Failed blocks are retried and slow ones hedged, so no single request holds up the commit
+        HedgedBlockStager stager = HedgedBlockStager.fromEnvironment((blockId, data) -> SyncTransfer.stageBlock(
+                targetBlob, blockId, data, checksums));
+        stager.setRetryListener(controller::recordFailure);
+        List<String> blockIds = transfer.transfer(inputStream, stager, journal);
+        System.out.println(stager.report());
+
+        SyncTransfer.commitBlockList(targetBlob, blockIds, compressor, compressor != null ? sourceLength : 0);
+        System.out.println("Blob digest: " + checksums.blobDigest(blockIds));
+        if (compressor != null) {
+            System.out.println(compressor.report());
         }
     }
 }
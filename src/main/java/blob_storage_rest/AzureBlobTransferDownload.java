@@ -30,11 +30,38 @@ public class AzureBlobTransferDownload {
         BlobClient sourceBlob = sourceContainer.getBlobClient(sourceBlobName);
 
         BlobClient targetBlobClient = targetContainer.getBlobClient(sourceBlobName);
+
+        // With --delta, update an existing target in place and send only the blocks that changed
+        if (args.length > 0 && "--delta".equals(args[0])) {
+            DeltaBlockTransfer.copy(sourceBlob, targetBlobClient.getBlockBlobClient(), 8 * 1024 * 1024);
+            System.out.println("Total time taken: " + (System.currentTimeMillis() - startTime) / 60000.0 + " minutes");
+            return;
+        }
+
         if (targetBlobClient.exists()) {
-            System.out.println("Target blob already exists.");
+            System.out.println("Target blob already exists (use --delta to update it).");
             return; // Exit the program 
         }
 
+        // Relay ranges straight from source to target unless --stage-to-disk asks for the old download-then-upload
+        if (!(args.length > 0 && "--stage-to-disk".equals(args[0]))) {
+            // 8MB blocks, downloads and uploads overlapped; spill to a temp file beyond 256MB held in memory
+            BlobRelay relay = new BlobRelay(8 * 1024 * 1024, 8, 8, 256 * 1024 * 1024L);
+            try {
+                relay.relay(sourceBlob, targetBlobClient.getBlockBlobClient());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Blob relay interrupted", e);
+            }
+            System.out.println("Blob transferred and chunks uploaded successfully");
+            System.out.println(relay.report());
+
+            long endTime = System.currentTimeMillis();
+            System.out.println("Total time taken: " + (endTime - startTime) / 60000.0 + " minutes");
+            System.out.println("Transfer metrics: " + TransferMetrics.get().snapshot());
+            return;
+        }
+
         Path localFilePath = Paths.get(sourceBlobName);
         String pathString = sourceBlobName;
 
@@ -0,0 +1,254 @@
+package blob_storage_rest;
+
+import com.azure.core.util.BinaryData;
+import com.azure.core.util.Context;
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.models.BlobProperties;
+import com.azure.storage.blob.models.BlobRange;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.azure.storage.blob.options.BlockBlobSimpleUploadOptions;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies a blob by downloading ranges and staging each one as a block on the target as soon as it
+ * arrives, so downloads and uploads overlap and nothing touches local disk in the common case. A
+ * finished download is queued for upload and frees its download slot at once, so downloads run ahead
+ * of uploads rather than waiting for them. Ranges held in memory are bounded by a buffer pool sized to
+ * the memory budget; when uploads fall behind and the pool is exhausted, further ranges are downloaded
+ * into a sparse temp file instead and staged from there. The temp file is created only if needed and
+ * removed at the end. Blobs under the single-put threshold are sent with one Put Blob instead.
+ */
+public class BlobRelay {
+    private final int blockSize;
+    private final int downloadConcurrency;
+    private final int uploadConcurrency;
+    private final long memoryBudget;
+    private ChunkBufferPool bufferPool;
+
+    private final AtomicLong spilledBytes = new AtomicLong();
+    private final AtomicLong relayedBytes = new AtomicLong();
+    private Path spillPath;
+    private FileChannel spillFile;
+
+    /**
+     * @param blockSize    preferred block size, raised for blobs that would need more than 50,000 blocks
+     * @param memoryBudget bytes of downloaded ranges held in memory while they wait for an upload slot
+     */
+    public BlobRelay(int blockSize, int downloadConcurrency, int uploadConcurrency, long memoryBudget) {
+        this.blockSize = blockSize;
+        this.downloadConcurrency = downloadConcurrency;
+        this.uploadConcurrency = uploadConcurrency;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /** Relays {@code source} into {@code target} and commits the block list. */
+    public void relay(BlobClient source, BlockBlobClient target) throws IOException, InterruptedException {
+        BlobProperties properties = source.getProperties();
+        long length = properties.getBlobSize();
+        // Every range must come from the same version of the source
+        BlobRequestConditions sameVersion = new BlobRequestConditions().setIfMatch(properties.getETag());
+        if (length <= StreamingBlockTransfer.singlePutThreshold()) {
+            // A small blob is one download and one Put Blob, with no block list to commit
+            long start = System.nanoTime();
+            BinaryData content = source.downloadContentWithResponse(null, sameVersion, null, Context.NONE).getValue();
+            TransferMetrics.get().record(TransferMetrics.Operation.DOWNLOAD_RANGE, start, length);
+            start = System.nanoTime();
+            target.uploadWithResponse(new BlockBlobSimpleUploadOptions(content), null, Context.NONE);
+            TransferMetrics.get().record(TransferMetrics.Operation.PUT_BLOB, start, length);
+            return;
+        }
+        // Past about 400 GB blocks grow so that the blob still fits in 50,000 of them
+        int relayBlockSize = StreamingBlockTransfer.bufferedBlockSizeFor(length, blockSize);
+        bufferPool = new ChunkBufferPool(relayBlockSize, (int) Math.max(1, memoryBudget / relayBlockSize), false);
+        int blockCount = (int) ((length + relayBlockSize - 1) / relayBlockSize);
+        List<String> blockIds = new ArrayList<>(blockCount);
+
+        BlockingQueue<DownloadedRange> downloaded = new LinkedBlockingQueue<>();
+        try (BlockStagingExecutor downloads = new BlockStagingExecutor(downloadConcurrency);
+                BlockStagingExecutor uploads = new BlockStagingExecutor(uploadConcurrency)) {
+            Thread dispatcher = Thread.ofVirtual().name("relay-uploads").start(() -> dispatchUploads(downloaded, uploads));
+            try {
+                for (int i = 0; i < blockCount && !downloads.hasFailed() && !uploads.hasFailed(); i++) {
+                    String blockId = StreamingBlockTransfer.blockId(i);
+                    long offset = (long) i * relayBlockSize;
+                    int count = (int) Math.min(relayBlockSize, length - offset);
+                    blockIds.add(blockId);
+                    downloads.submit(() -> {
+                        downloaded.put(download(source, target, sameVersion, blockId, offset, count));
+                        return null;
+                    });
+                }
+                downloads.awaitAll();
+                downloaded.put(DownloadedRange.END);
+                dispatcher.join();
+                uploads.awaitAll();
+            } finally {
+                dispatcher.interrupt();
+                dispatcher.join();
+            }
+        } finally {
+            // Ranges that never reached an upload go back to the pool
+            for (DownloadedRange range : downloaded) {
+                range.onDone.run();
+            }
+            closeSpillFile();
+        }
+
+        long start = System.nanoTime();
+        target.commitBlockList(blockIds, true);
+        TransferMetrics.get().record(TransferMetrics.Operation.COMMIT_BLOCK_LIST, start, 0);
+    }
+
+    /**
+     * Hands downloaded ranges to upload slots in the order they finished, until {@link DownloadedRange#END}.
+     * Only this thread waits for upload slots, so download slots are never held by a finished range.
+     */
+    private static void dispatchUploads(BlockingQueue<DownloadedRange> downloaded, BlockStagingExecutor uploads) {
+        try {
+            for (DownloadedRange range = downloaded.take(); range != DownloadedRange.END; range = downloaded.take()) {
+                if (uploads.hasFailed()) {
+                    range.onDone.run();
+                } else {
+                    uploads.submit(range.upload, range.onDone);
+                }
+            }
+        } catch (InterruptedException e) {
+            // The relay failed or finished; remaining ranges are released by the caller
+        }
+    }
+
+    /** Downloads one range into a pooled buffer, or into the spill file if the memory budget is used up. */
+    private DownloadedRange download(BlobClient source, BlockBlobClient target, BlobRequestConditions sameVersion,
+            String blockId, long offset, int count) throws Exception {
+        BlobRange range = new BlobRange(offset, (long) count);
+        ByteBuffer buffer = bufferPool.tryLease();
+        TransferMetrics metrics = TransferMetrics.get();
+        long start = System.nanoTime();
+        DownloadedRange downloaded;
+        if (buffer != null) {
+            try {
+                source.downloadStreamWithResponse(new BufferOutputStream(buffer), range, null, sameVersion, false,
+                        null, Context.NONE);
+                buffer.flip();
+                metrics.record(TransferMetrics.Operation.DOWNLOAD_RANGE, start, count);
+            } catch (Throwable t) {
+                bufferPool.release(buffer);
+                throw t;
+            }
+            // Until an upload slot frees up, the range counts against the memory budget
+            downloaded = new DownloadedRange(() -> {
+                long stageStart = System.nanoTime();
+                target.stageBlock(blockId, BinaryData.fromByteBuffer(buffer));
+                metrics.record(TransferMetrics.Operation.STAGE_BLOCK, stageStart, count);
+                return null;
+            }, () -> bufferPool.release(buffer));
+        } else {
+            // Over budget: park the range on disk until an upload slot frees up
+            FileChannel file = spillFile();
+            source.downloadStreamWithResponse(new FileRegionOutputStream(file, offset), range, null, sameVersion,
+                    false, null, Context.NONE);
+            metrics.record(TransferMetrics.Operation.DOWNLOAD_RANGE, start, count);
+            spilledBytes.addAndGet(count);
+            downloaded = new DownloadedRange(() -> {
+                long stageStart = System.nanoTime();
+                target.stageBlock(blockId, BinaryData.fromFile(spillPath, offset, (long) count));
+                metrics.record(TransferMetrics.Operation.STAGE_BLOCK, stageStart, count);
+                return null;
+            }, () -> { });
+        }
+        relayedBytes.addAndGet(count);
+        return downloaded;
+    }
+
+    private synchronized FileChannel spillFile() throws IOException {
+        if (spillFile == null) {
+            spillPath = Files.createTempFile("blob-relay-", ".spill");
+            spillFile = FileChannel.open(spillPath, StandardOpenOption.WRITE, StandardOpenOption.SPARSE);
+        }
+        return spillFile;
+    }
+
+    private synchronized void closeSpillFile() throws IOException {
+        if (spillFile != null) {
+            spillFile.close();
+            Files.deleteIfExists(spillPath);
+            spillFile = null;
+        }
+    }
+
+    /** Summary of the finished relay, for the end-of-transfer report. */
+    public String report() {
+        return String.format("Relayed %d bytes, %d spilled to disk (%s)", relayedBytes.get(), spilledBytes.get(),
+                bufferPool != null ? bufferPool : "single Put Blob");
+    }
+
+    /** A downloaded range waiting for an upload slot: the upload, and what to release once it is done. */
+    private static final class DownloadedRange {
+        static final DownloadedRange END = new DownloadedRange(() -> null, () -> { });
+
+        final Callable<Void> upload;
+        final Runnable onDone;
+
+        DownloadedRange(Callable<Void> upload, Runnable onDone) {
+            this.upload = upload;
+            this.onDone = onDone;
+        }
+    }
+
+    /** Collects a downloaded range into a pooled buffer. */
+    private static final class BufferOutputStream extends OutputStream {
+        private final ByteBuffer buffer;
+
+        BufferOutputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void write(int b) {
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            buffer.put(b, off, len);
+        }
+    }
+
+    /** Writes a downloaded range at its own offset of the spill file; positional writes are thread-safe. */
+    private static final class FileRegionOutputStream extends OutputStream {
+        private final FileChannel file;
+        private long position;
+
+        FileRegionOutputStream(FileChannel file, long position) {
+            this.file = file;
+            this.position = position;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer data = ByteBuffer.wrap(b, off, len);
+            while (data.hasRemaining()) {
+                position += file.write(data, position);
+            }
+        }
+    }
+}
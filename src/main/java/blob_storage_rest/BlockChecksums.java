@@ -0,0 +1,254 @@
+package blob_storage_rest;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Transactional checksums for staged blocks. Each block is hashed once, on the thread that stages it
+ * and right before it is sent, and the checksum goes out as {@code x-ms-content-crc64} or
+ * {@code Content-MD5} so the service rejects a block that was corrupted on the way. Blocks hash in
+ * parallel on their staging threads; CRC64 uses slicing-by-8 tables and MD5 the JDK's intrinsic.
+ *
+ * <p>Block checksums are also kept by block ID so that a whole-blob digest can be derived without
+ * reading the data again: CRC64 values combine exactly into the CRC64 of the whole blob, and MD5
+ * values give a composite digest (MD5 of the block MD5s, suffixed with the block count).
+ */
+public class BlockChecksums {
+    public enum Algorithm {
+        NONE, MD5, CRC64;
+
+        /** Algorithm from {@code TRANSFER_CHECKSUM} ("crc64", "md5" or "none"); CRC64 by default. */
+        public static Algorithm fromEnvironment() {
+            String value = System.getenv("TRANSFER_CHECKSUM");
+            return value == null || value.isEmpty() ? CRC64 : valueOf(value.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /** Polynomial used by Azure Storage for CRC64 (reflected form, as in NVMe). */
+    private static final long POLY = 0x9A6C9329AC4BC9B5L;
+    private static final long[][] TABLES = crc64Tables();
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 unavailable", e);
+        }
+    });
+
+    private final Algorithm algorithm;
+    private final Map<String, BlockDigest> blocks = new ConcurrentHashMap<>();
+
+    public BlockChecksums(Algorithm algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    public static BlockChecksums fromEnvironment() {
+        return new BlockChecksums(Algorithm.fromEnvironment());
+    }
+
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /** Request header carrying the block checksum, or null when checksums are off. */
+    public String headerName() {
+        switch (algorithm) {
+            case MD5:
+                return "Content-MD5";
+            case CRC64:
+                return "x-ms-content-crc64";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Checksums the bytes between {@code data}'s position and limit (the buffer is not moved), records
+     * the result under {@code blockId} and returns it: 16 MD5 bytes, or the CRC64 as 8 little-endian
+     * bytes as the service expects. Returns null when checksums are off.
+     */
+    public byte[] compute(String blockId, ByteBuffer data) {
+        byte[] digest;
+        switch (algorithm) {
+            case MD5:
+                MessageDigest md5 = MD5.get();
+                md5.update(data.duplicate());
+                digest = md5.digest();
+                break;
+            case CRC64:
+                long crc = crc64(0, data);
+                digest = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(crc).array();
+                break;
+            default:
+                return null;
+        }
+        blocks.put(blockId, new BlockDigest(digest, data.remaining()));
+        return digest;
+    }
+
+    /** As {@link #compute}, Base64-encoded for the header; null when checksums are off. */
+    public String computeHeader(String blockId, ByteBuffer data) {
+        byte[] digest = compute(blockId, data);
+        return digest == null ? null : Base64.getEncoder().encodeToString(digest);
+    }
+
+    /**
+     * Whole-blob digest for the blocks in commit order, e.g. {@code crc64:<base64>} or
+     * {@code md5-composite:<base64>-<blocks>}. Returns null when checksums are off or some block was
+     * not hashed in this run (e.g. it was staged before a resume).
+     */
+    public String blobDigest(List<String> blockIds) {
+        if (algorithm == Algorithm.NONE) {
+            return null;
+        }
+        if (algorithm == Algorithm.CRC64) {
+            long crc = 0;
+            for (String blockId : blockIds) {
+                BlockDigest block = blocks.get(blockId);
+                if (block == null) {
+                    return null;
+                }
+                long blockCrc = ByteBuffer.wrap(block.digest).order(ByteOrder.LITTLE_ENDIAN).getLong();
+                crc = crc64Combine(crc, blockCrc, block.length);
+            }
+            byte[] bytes = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(crc).array();
+            return "crc64:" + Base64.getEncoder().encodeToString(bytes);
+        }
+        MessageDigest md5 = MD5.get();
+        for (String blockId : blockIds) {
+            BlockDigest block = blocks.get(blockId);
+            if (block == null) {
+                md5.reset();
+                return null;
+            }
+            md5.update(block.digest);
+        }
+        return "md5-composite:" + Base64.getEncoder().encodeToString(md5.digest()) + "-" + blockIds.size();
+    }
+
+    /** Continues {@code crc} (0 to start) over the bytes between {@code data}'s position and limit. */
+    static long crc64(long crc, ByteBuffer data) {
+        if (data.hasArray()) {
+            return crc64(crc, data.array(), data.arrayOffset() + data.position(), data.remaining());
+        }
+        ByteBuffer buffer = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        crc = ~crc;
+        while (buffer.remaining() >= 8) {
+            crc = step8(buffer.getLong() ^ crc);
+        }
+        while (buffer.hasRemaining()) {
+            crc = TABLES[0][(int) (crc ^ buffer.get()) & 0xFF] ^ (crc >>> 8);
+        }
+        return ~crc;
+    }
+
+    static long crc64(long crc, byte[] data, int offset, int length) {
+        int end = offset + length;
+        crc = ~crc;
+        for (; offset + 8 <= end; offset += 8) {
+            crc = step8((long) LONG_LE.get(data, offset) ^ crc);
+        }
+        for (; offset < end; offset++) {
+            crc = TABLES[0][(int) (crc ^ data[offset]) & 0xFF] ^ (crc >>> 8);
+        }
+        return ~crc;
+    }
+
+    /** Slicing-by-8: eight input bytes, already XORed with the running CRC, in one table round. */
+    private static long step8(long v) {
+        long[][] t = TABLES;
+        return t[7][(int) v & 0xFF] ^ t[6][(int) (v >>> 8) & 0xFF] ^ t[5][(int) (v >>> 16) & 0xFF]
+                ^ t[4][(int) (v >>> 24) & 0xFF] ^ t[3][(int) (v >>> 32) & 0xFF] ^ t[2][(int) (v >>> 40) & 0xFF]
+                ^ t[1][(int) (v >>> 48) & 0xFF] ^ t[0][(int) (v >>> 56)];
+    }
+
+    /** CRC64 of A followed by B, from the CRC64 of A, the CRC64 of B and the length of B (as zlib's crc32_combine). */
+    static long crc64Combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[64];
+        long[] odd = new long[64];
+        // Operator for one zero bit
+        odd[0] = POLY;
+        long row = 1;
+        for (int n = 1; n < 64; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        gf2MatrixSquare(even, odd); // two zero bits
+        gf2MatrixSquare(odd, even); // four zero bits
+
+        // Apply length2 zero bytes to crc1, squaring the operator for each bit of the length
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(even, crc1);
+            }
+            length2 >>>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            gf2MatrixSquare(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(odd, crc1);
+            }
+            length2 >>>= 1;
+        } while (length2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] matrix) {
+        for (int n = 0; n < 64; n++) {
+            square[n] = gf2MatrixTimes(matrix, matrix[n]);
+        }
+    }
+
+    private static long[][] crc64Tables() {
+        long[][] tables = new long[8][256];
+        for (int i = 0; i < 256; i++) {
+            long crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+            }
+            tables[0][i] = crc;
+        }
+        for (int i = 0; i < 256; i++) {
+            for (int k = 1; k < 8; k++) {
+                long previous = tables[k - 1][i];
+                tables[k][i] = (previous >>> 8) ^ tables[0][(int) previous & 0xFF];
+            }
+        }
+        return tables;
+    }
+
+    private static final class BlockDigest {
+        final byte[] digest;
+        final long length;
+
+        BlockDigest(byte[] digest, long length) {
+            this.digest = digest;
+            this.length = length;
+        }
+    }
+}
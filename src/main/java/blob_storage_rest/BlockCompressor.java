@@ -0,0 +1,189 @@
+package blob_storage_rest;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Optional compression stage for staged blocks, pigz-style: each block is compressed on its own
+ * staging thread into a complete gzip member, so blocks compress in parallel and the committed blob,
+ * a concatenation of members, is a valid gzip stream that any gzip reader can decompress. The blob is
+ * committed with {@code Content-Encoding: gzip} and metadata giving its original length and marking
+ * every block as one member, which lets {@link ParallelGunzipDownloader} inflate blocks in parallel.
+ *
+ * <p>Output buffers come from a {@link ChunkBufferPool} with one buffer per block in flight, and each
+ * buffer is leased together with a {@link Deflater}, so neither is allocated per block however many
+ * threads stage blocks. {@link #close()} frees the deflaters' native memory.
+ */
+public class BlockCompressor implements AutoCloseable {
+    /** Metadata marking a blob whose blocks are each one gzip member. */
+    public static final String METADATA_BLOCK_COMPRESSION = "blockcompression";
+    /** Metadata holding the length of the blob before compression. */
+    public static final String METADATA_UNCOMPRESSED_LENGTH = "uncompressedlength";
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final int level;
+    private final int maxBlockSize;
+    private final ChunkBufferPool outputs;
+    private final Deque<Deflater> deflaters = new ArrayDeque<>();
+    private final AtomicLong originalBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private boolean closed;
+
+    /**
+     * @param maxBlockSize      largest block that will be compressed
+     * @param maxInFlightBlocks how many compressed blocks may be held at once; {@link #compress} waits
+     *                          beyond that until one is closed
+     */
+    public BlockCompressor(int level, int maxBlockSize, int maxInFlightBlocks) {
+        this.level = level;
+        this.maxBlockSize = maxBlockSize;
+        this.outputs = new ChunkBufferPool(outputBound(maxBlockSize), maxInFlightBlocks, false);
+    }
+
+    /**
+     * Compressor from {@code TRANSFER_COMPRESSION} ("gzip", optionally with a level as in "gzip:6"),
+     * or null when it is unset or "none".
+     */
+    public static BlockCompressor fromEnvironment(int maxBlockSize, int maxInFlightBlocks) {
+        String value = System.getenv("TRANSFER_COMPRESSION");
+        if (value == null || value.isEmpty() || "none".equalsIgnoreCase(value)) {
+            return null;
+        }
+        String[] parts = value.toLowerCase(Locale.ROOT).split(":", 2);
+        if (!"gzip".equals(parts[0])) {
+            throw new IllegalArgumentException("Unsupported TRANSFER_COMPRESSION: " + value);
+        }
+        return new BlockCompressor(parts.length > 1 ? Integer.parseInt(parts[1]) : Deflater.BEST_SPEED, maxBlockSize,
+                maxInFlightBlocks);
+    }
+
+    /** Room for a gzip member of {@code length} bytes: zlib's deflateBound for stored blocks, plus header and trailer. */
+    private static int outputBound(int length) {
+        return GZIP_HEADER.length + length + (length >>> 12) + (length >>> 14) + 64 + 8;
+    }
+
+    /**
+     * Compresses the bytes between {@code data}'s position and limit (the buffer is not moved) into one
+     * gzip member, held in a leased buffer until the returned block is closed. Waits while
+     * {@code maxInFlightBlocks} compressed blocks are open.
+     */
+    public CompressedBlock compress(ByteBuffer data) throws InterruptedException {
+        int length = data.remaining();
+        if (length > maxBlockSize) {
+            throw new IllegalArgumentException("Block of " + length + " bytes exceeds the compressor's " + maxBlockSize);
+        }
+        ByteBuffer output = outputs.lease();
+        Deflater deflater;
+        synchronized (deflaters) {
+            deflater = deflaters.poll();
+        }
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+        CompressedBlock block = new CompressedBlock(output, deflater);
+        try {
+            CRC32 crc = new CRC32();
+            crc.update(data.duplicate());
+            deflater.reset();
+            deflater.setInput(data.duplicate());
+            deflater.finish();
+
+            // Incompressible input falls back to stored blocks, which the buffer has room for
+            byte[] array = output.array();
+            int limit = output.capacity() - 8;
+            System.arraycopy(GZIP_HEADER, 0, array, 0, GZIP_HEADER.length);
+            int position = GZIP_HEADER.length;
+            while (!deflater.finished()) {
+                position += deflater.deflate(array, position, limit - position);
+            }
+            ByteBuffer trailer = ByteBuffer.wrap(array, position, 8).order(ByteOrder.LITTLE_ENDIAN);
+            trailer.putInt((int) crc.getValue()).putInt(length);
+            position += 8;
+
+            originalBytes.addAndGet(length);
+            compressedBytes.addAndGet(position);
+            output.limit(position);
+            return block;
+        } catch (RuntimeException e) {
+            block.close();
+            throw e;
+        }
+    }
+
+    /** Content encoding to commit the blob with. */
+    public String contentEncoding() {
+        return "gzip";
+    }
+
+    /** Metadata to commit the blob with, given the length of the whole uncompressed source. */
+    public Map<String, String> metadata(long uncompressedLength) {
+        Map<String, String> metadata = new LinkedHashMap<>();
+        metadata.put(METADATA_BLOCK_COMPRESSION, "gzip");
+        metadata.put(METADATA_UNCOMPRESSED_LENGTH, Long.toString(uncompressedLength));
+        return metadata;
+    }
+
+    /** Summary of the compression done in this run, for the end-of-transfer report. */
+    public String report() {
+        long original = originalBytes.get();
+        long compressed = compressedBytes.get();
+        return String.format("Compressed %d bytes to %d (ratio %.2f, gzip level %d)", original, compressed,
+                compressed == 0 ? 0.0 : (double) original / compressed, level);
+    }
+
+    /** Frees the pooled deflaters; those still leased are freed as their blocks are closed. */
+    @Override
+    public void close() {
+        synchronized (deflaters) {
+            closed = true;
+            deflaters.forEach(Deflater::end);
+            deflaters.clear();
+        }
+    }
+
+    /** One compressed block; closing it returns its buffer and deflater to the compressor's pool. */
+    public final class CompressedBlock implements AutoCloseable {
+        private final ByteBuffer output;
+        private Deflater deflater;
+
+        private CompressedBlock(ByteBuffer output, Deflater deflater) {
+            this.output = output;
+            this.deflater = deflater;
+        }
+
+        /** The gzip member; valid until this block is closed. */
+        public ByteBuffer data() {
+            return output.duplicate();
+        }
+
+        /** Length of the gzip member in bytes. */
+        public int length() {
+            return output.remaining();
+        }
+
+        @Override
+        public void close() {
+            if (deflater == null) {
+                return;
+            }
+            synchronized (deflaters) {
+                if (closed) {
+                    deflater.end();
+                } else {
+                    deflaters.push(deflater);
+                }
+            }
+            deflater = null;
+            outputs.release(output);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package blob_storage_rest;
+
+import java.io.InputStream;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * The Put Block List body for a list of block IDs, produced as it is sent rather than built up front.
+ * The length is known from the IDs alone, so the request still goes out with a Content-Length, and a
+ * 50,000-block commit holds one element's worth of bytes instead of the whole document.
+ */
+final class BlockListXml {
+    private static final byte[] HEADER = "<?xml version=\"1.0\" encoding=\"utf-8\"?><BlockList>"
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] OPEN = "<Latest>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CLOSE = "</Latest>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FOOTER = "</BlockList>".getBytes(StandardCharsets.US_ASCII);
+
+    private BlockListXml() {
+    }
+
+    /** Length in bytes of the body for {@code blockIds}. */
+    static long contentLength(List<String> blockIds) {
+        long length = HEADER.length + FOOTER.length + (long) blockIds.size() * (OPEN.length + CLOSE.length);
+        for (String blockId : blockIds) {
+            length += blockId.length();
+        }
+        return length;
+    }
+
+    /** Request body committing {@code blockIds} in order; each send streams the document again. */
+    static HttpRequest.BodyPublisher bodyPublisher(List<String> blockIds) {
+        return HttpRequest.BodyPublishers.fromPublisher(
+                HttpRequest.BodyPublishers.ofInputStream(() -> open(blockIds)), contentLength(blockIds));
+    }
+
+    /** The body as a stream; block IDs are Base64 and so plain ASCII that needs no escaping. */
+    static InputStream open(List<String> blockIds) {
+        return new InputStream() {
+            private byte[] element = new byte[OPEN.length + StreamingBlockTransfer.BLOCK_ID_LENGTH + CLOSE.length];
+            private int elementPosition;
+            private int elementLength;
+            // -1 for the header, then the index of the next block ID; past the last one, the footer
+            private int next = -1;
+            private boolean done;
+
+            @Override
+            public int read() {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) {
+                if (length == 0) {
+                    return 0;
+                }
+                int copied = 0;
+                while (copied < length) {
+                    if (elementPosition == elementLength && !fill()) {
+                        break;
+                    }
+                    int count = Math.min(length - copied, elementLength - elementPosition);
+                    System.arraycopy(element, elementPosition, buffer, offset + copied, count);
+                    elementPosition += count;
+                    copied += count;
+                }
+                return copied == 0 ? -1 : copied;
+            }
+
+            /** Loads the next piece of the document into {@code element}; false at the end. */
+            private boolean fill() {
+                if (done) {
+                    return false;
+                }
+                elementPosition = 0;
+                if (next == -1) {
+                    element = HEADER.length > element.length ? new byte[HEADER.length] : element;
+                    System.arraycopy(HEADER, 0, element, 0, HEADER.length);
+                    elementLength = HEADER.length;
+                } else if (next < blockIds.size()) {
+                    String blockId = blockIds.get(next);
+                    int length = OPEN.length + blockId.length() + CLOSE.length;
+                    if (length > element.length) {
+                        element = new byte[length];
+                    }
+                    System.arraycopy(OPEN, 0, element, 0, OPEN.length);
+                    for (int i = 0; i < blockId.length(); i++) {
+                        element[OPEN.length + i] = (byte) blockId.charAt(i);
+                    }
+                    System.arraycopy(CLOSE, 0, element, OPEN.length + blockId.length(), CLOSE.length);
+                    elementLength = length;
+                } else {
+                    System.arraycopy(FOOTER, 0, element, 0, FOOTER.length);
+                    elementLength = FOOTER.length;
+                    done = true;
+                }
+                next++;
+                return true;
+            }
+        };
+    }
+}
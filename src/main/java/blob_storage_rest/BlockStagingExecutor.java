@@ -0,0 +1,148 @@
+package blob_storage_rest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs block uploads on virtual threads. Block staging is blocking network I/O, so each block gets its own
+ * virtual thread and a semaphore bounds how many run at once; hundreds of uploads can be in flight without
+ * hundreds of platform threads. Completion is tracked through the returned futures, and
+ * {@link #awaitAll()} fails if any block failed, so callers never commit a partial block list.
+ */
+public class BlockStagingExecutor implements AutoCloseable {
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final ResizableSemaphore permits;
+    private int maxConcurrentBlocks;
+    private final List<Future<?>> futures = new ArrayList<>();
+    private volatile Throwable firstFailure;
+
+    public BlockStagingExecutor(int maxConcurrentBlocks) {
+        if (maxConcurrentBlocks <= 0) {
+            throw new IllegalArgumentException("maxConcurrentBlocks must be positive");
+        }
+        this.permits = new ResizableSemaphore(maxConcurrentBlocks);
+        this.maxConcurrentBlocks = maxConcurrentBlocks;
+    }
+
+    /**
+     * Changes how many blocks may run at once. Lowering the limit does not interrupt running blocks;
+     * new ones just wait until enough of them have finished.
+     */
+    public synchronized void setMaxConcurrentBlocks(int maxConcurrentBlocks) {
+        if (maxConcurrentBlocks <= 0) {
+            throw new IllegalArgumentException("maxConcurrentBlocks must be positive");
+        }
+        int delta = maxConcurrentBlocks - this.maxConcurrentBlocks;
+        if (delta > 0) {
+            permits.release(delta);
+        } else if (delta < 0) {
+            permits.reducePermits(-delta);
+        }
+        this.maxConcurrentBlocks = maxConcurrentBlocks;
+    }
+
+    /**
+     * Starts {@code task} once a slot is free, blocking the caller until then so that producers are
+     * throttled to the staging rate. {@code onDone} always runs after the task, e.g. to return its buffer.
+     */
+    public Future<?> submit(Callable<?> task, Runnable onDone) throws InterruptedException {
+        TransferMetrics metrics = TransferMetrics.get();
+        metrics.blocksQueued(1);
+        try {
+            permits.acquire();
+        } finally {
+            metrics.blocksQueued(-1);
+        }
+        Future<?> future;
+        try {
+            future = executor.submit(() -> {
+                metrics.blocksInFlight(1);
+                try {
+                    return task.call();
+                } catch (Throwable t) {
+                    if (firstFailure == null) {
+                        firstFailure = t;
+                    }
+                    throw t;
+                } finally {
+                    metrics.blocksInFlight(-1);
+                    permits.release();
+                    onDone.run();
+                }
+            });
+        } catch (RuntimeException e) {
+            permits.release();
+            onDone.run();
+            throw e;
+        }
+        synchronized (futures) {
+            futures.add(future);
+        }
+        return future;
+    }
+
+    public Future<?> submit(Callable<?> task) throws InterruptedException {
+        return submit(task, () -> { });
+    }
+
+    /** True once any submitted block has failed; producers can stop early. */
+    public boolean hasFailed() {
+        return firstFailure != null;
+    }
+
+    /**
+     * Waits for every submitted block. If any failed, the remaining ones are cancelled and the first
+     * failure is rethrown.
+     */
+    public void awaitAll() throws IOException, InterruptedException {
+        List<Future<?>> pending;
+        synchronized (futures) {
+            pending = new ArrayList<>(futures);
+        }
+        for (Future<?> future : pending) {
+            try {
+                future.get();
+            } catch (ExecutionException | CancellationException e) {
+                // Report the failure that happened first, not the first one in submission order
+                cancelAll(pending);
+                Throwable cause = firstFailure != null ? firstFailure : e;
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException("Block staging failed: " + cause.getMessage(), cause);
+            }
+        }
+    }
+
+    private static void cancelAll(List<Future<?>> pending) {
+        for (Future<?> future : pending) {
+            future.cancel(true);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private static final class ResizableSemaphore extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        ResizableSemaphore(int permits) {
+            super(permits);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
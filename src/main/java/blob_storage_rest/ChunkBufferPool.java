@@ -0,0 +1,105 @@
+package blob_storage_rest;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Fixed-size pool of chunk buffers. A buffer is leased for the life of one block and released once the
+ * block is staged, so large chunk arrays are allocated once instead of once per block. At most
+ * {@code maxBuffers} are leased at a time; {@link #lease()} blocks until one is released, which also
+ * caps the memory a transfer can hold.
+ */
+public class ChunkBufferPool {
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final boolean direct;
+    private final Deque<ByteBuffer> free = new ArrayDeque<>();
+
+    private int leased;
+    private int peakLeased;
+    private long hits;
+    private long misses;
+
+    public ChunkBufferPool(int bufferSize, int maxBuffers, boolean direct) {
+        if (bufferSize <= 0 || maxBuffers <= 0) {
+            throw new IllegalArgumentException("bufferSize and maxBuffers must be positive");
+        }
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+        this.direct = direct;
+    }
+
+    /** Builds a pool whose buffer type comes from {@code TRANSFER_DIRECT_BUFFERS} (heap unless "true"). */
+    public static ChunkBufferPool fromEnvironment(int bufferSize, int maxBuffers) {
+        return new ChunkBufferPool(bufferSize, maxBuffers, "true".equalsIgnoreCase(System.getenv("TRANSFER_DIRECT_BUFFERS")));
+    }
+
+    /** Returns a cleared buffer of {@link #getBufferSize()} bytes, waiting while the pool is exhausted. */
+    public synchronized ByteBuffer lease() throws InterruptedException {
+        while (leased >= maxBuffers) {
+            wait();
+        }
+        ByteBuffer buffer = free.poll();
+        if (buffer != null) {
+            hits++;
+        } else {
+            misses++;
+            buffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        leased++;
+        peakLeased = Math.max(peakLeased, leased);
+        TransferMetrics.get().buffersLeased(1);
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Like {@link #lease()}, but returns null instead of waiting when the pool is exhausted. */
+    public synchronized ByteBuffer tryLease() {
+        if (leased >= maxBuffers) {
+            return null;
+        }
+        try {
+            return lease();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e); // unreachable: a buffer is available
+        }
+    }
+
+    public synchronized void release(ByteBuffer buffer) {
+        free.push(buffer);
+        leased--;
+        TransferMetrics.get().buffersLeased(-1);
+        notify();
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized int getLeased() {
+        return leased;
+    }
+
+    public synchronized int getPeakLeased() {
+        return peakLeased;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("ChunkBufferPool[%s, %d x %d bytes, hits=%d, misses=%d, peak=%d]",
+                direct ? "direct" : "heap", maxBuffers, bufferSize, hits, misses, peakLeased);
+    }
+}
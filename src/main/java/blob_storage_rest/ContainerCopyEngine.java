@@ -0,0 +1,294 @@
+package blob_storage_rest;
+
+import com.azure.core.util.Context;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.BlobServiceClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.models.BlobItem;
+import com.azure.storage.blob.models.BlobItemProperties;
+import com.azure.storage.blob.models.BlobRange;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.azure.storage.blob.models.ListBlobsOptions;
+import com.azure.storage.blob.options.BlobUploadFromUrlOptions;
+import com.azure.storage.blob.options.BlockBlobStageBlockFromUrlOptions;
+import com.azure.storage.blob.sas.BlobContainerSasPermission;
+import com.azure.storage.blob.sas.BlobServiceSasSignatureValues;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies every blob under a prefix from one container to another. Each blob is split into blocks that
+ * the target pulls with Put Block From URL, and all blobs and blocks share one work-stealing pool: a
+ * blob task forks its block tasks onto the worker's own deque, and idle workers steal from there. Near
+ * the end of a job, the blocks of the last few large blobs are spread over every connection instead of
+ * leaving most workers idle. Blobs under {@link StreamingBlockTransfer#singlePutThreshold()} skip the
+ * block list and are copied with a single Put Blob From URL, so a container of small objects costs one
+ * request per blob. Every copy request is conditional on the ETag the listing returned, so a source
+ * blob overwritten while it is being copied fails with 412 instead of committing a mix of both versions.
+ *
+ * <p>With a {@link SyncIndex}, a run is incremental: blobs whose listed ETag, length and last-modified
+ * time match the index are skipped without any request of their own, and optionally only if the
+ * target listing still shows the ETag the last copy committed.
+ */
+public class ContainerCopyEngine {
+    private final BlobContainerClient sourceContainer;
+    private final BlobContainerClient targetContainer;
+    private final long blockSize;
+    private final int workers;
+    private final long singlePutThreshold = StreamingBlockTransfer.singlePutThreshold();
+
+    private final AtomicLong copiedBlobs = new AtomicLong();
+    private final AtomicLong singleShotBlobs = new AtomicLong();
+    private final AtomicLong copiedBytes = new AtomicLong();
+    private final AtomicLong stolenBlocks = new AtomicLong();
+    private final AtomicLong skippedBlobs = new AtomicLong();
+    private final Map<String, Throwable> failures = new ConcurrentHashMap<>();
+    private Path indexPath;
+    private boolean verifyTarget;
+
+    public ContainerCopyEngine(BlobContainerClient sourceContainer, BlobContainerClient targetContainer,
+            long blockSize, int workers) {
+        this.sourceContainer = sourceContainer;
+        this.targetContainer = targetContainer;
+        this.blockSize = blockSize;
+        this.workers = workers;
+    }
+
+    /** Makes runs incremental, using and updating the sync index at {@code indexPath}. */
+    public void setIndexPath(Path indexPath) {
+        this.indexPath = indexPath;
+    }
+
+    /**
+     * With an index, also lists the target and copies a blob again if its target ETag is not the one
+     * the index recorded, e.g. because the target was changed or deleted since. Costs one listing of
+     * the target, not a request per blob.
+     */
+    public void setVerifyTarget(boolean verifyTarget) {
+        this.verifyTarget = verifyTarget;
+    }
+
+    /**
+     * Copies the blobs whose names start with {@code prefix} (all blobs if null). Listing is paged and
+     * streams into the pool; at most a few blobs per worker are queued ahead, so memory stays flat for
+     * containers of any size. A failed blob is recorded and does not stop the others.
+     *
+     * @return names of the blobs that failed, with their errors
+     */
+    public Map<String, Throwable> copy(String prefix) throws IOException, InterruptedException {
+        // The target pulls each block itself, so it needs read access to the source container
+        String sourceSas = sourceContainer.generateSas(new BlobServiceSasSignatureValues(
+                OffsetDateTime.now(ZoneOffset.UTC).plusHours(12), BlobContainerSasPermission.parse("r"))
+                .setStartTime(OffsetDateTime.now(ZoneOffset.UTC).minusMinutes(5)));
+
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        Semaphore queuedBlobs = new Semaphore(4 * workers);
+        ListBlobsOptions options = new ListBlobsOptions().setPrefix(prefix);
+        try (SyncIndex index = indexPath != null ? SyncIndex.open(indexPath, prefix) : null) {
+            // Both listings come back sorted by name, so the target one is walked alongside the source
+            Iterator<BlobItem> targetListing = index != null && verifyTarget
+                    ? targetContainer.listBlobs(options, null).iterator() : null;
+            BlobItem targetItem = null;
+            for (BlobItem item : sourceContainer.listBlobs(options, null)) {
+                if (item.isPrefix() != null && item.isPrefix()) {
+                    continue;
+                }
+                BlobItemProperties properties = item.getProperties();
+                if (index != null) {
+                    SyncIndex.Entry entry = index.lookup(item.getName());
+                    boolean unchanged = entry != null && entry.matchesSource(properties.getETag(),
+                            properties.getContentLength(), properties.getLastModified().toInstant().toEpochMilli());
+                    if (unchanged && targetListing != null) {
+                        while ((targetItem == null || targetItem.getName().compareTo(item.getName()) < 0)
+                                && targetListing.hasNext()) {
+                            targetItem = targetListing.next();
+                        }
+                        unchanged = targetItem != null && targetItem.getName().equals(item.getName())
+                                && entry.matchesTarget(targetItem.getProperties().getETag());
+                    }
+                    if (unchanged) {
+                        index.keep(entry);
+                        skippedBlobs.incrementAndGet();
+                        continue;
+                    }
+                }
+                queuedBlobs.acquire();
+                String sourceUrl = sourceContainer.getBlobClient(item.getName()).getBlobUrl() + "?" + sourceSas;
+                pool.execute(new BlobCopyTask(item.getName(), properties, sourceUrl, index, queuedBlobs));
+            }
+            // Wait for every blob task to hand back its permit before shutting down: shutting the pool
+            // down while blob tasks still join their blocks can interrupt their final commit
+            queuedBlobs.acquire(4 * workers);
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            if (index != null) {
+                // Failed blobs have no entry, so the next run copies them again
+                index.commit();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return failures;
+    }
+
+    /** Summary of the finished job, for the end-of-transfer report. */
+    public String report() {
+        return String.format("Copied %d blobs (%d single-shot), %d bytes, %d failed, %d unchanged"
+                + " (%d blocks stolen by idle workers)", copiedBlobs.get(), singleShotBlobs.get(), copiedBytes.get(),
+                failures.size(), skippedBlobs.get(), stolenBlocks.get());
+    }
+
+    long blockSizeFor(long blobLength) {
+        // Stay under the service's block count limit for very large blobs
+        return StreamingBlockTransfer.blockSizeFor(blobLength, blockSize);
+    }
+
+    @SuppressWarnings("serial") // Tasks are never serialized
+    private final class BlobCopyTask extends RecursiveAction {
+        private final String blobName;
+        private final BlobItemProperties properties;
+        private final long length;
+        private final String sourceUrl;
+        private final SyncIndex index;
+        private final Semaphore queuedBlobs;
+
+        BlobCopyTask(String blobName, BlobItemProperties properties, String sourceUrl, SyncIndex index,
+                Semaphore queuedBlobs) {
+            this.blobName = blobName;
+            this.properties = properties;
+            this.length = properties.getContentLength();
+            this.sourceUrl = sourceUrl;
+            this.index = index;
+            this.queuedBlobs = queuedBlobs;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                BlockBlobClient target = targetContainer.getBlobClient(blobName).getBlockBlobClient();
+                // Pin every read of the source to the version that was listed
+                BlobRequestConditions sourceConditions = new BlobRequestConditions().setIfMatch(properties.getETag());
+                if (length <= singlePutThreshold) {
+                    // One request per small blob: the service creates it from the whole source
+                    long start = System.nanoTime();
+                    String targetEtag = target.uploadFromUrlWithResponse(new BlobUploadFromUrlOptions(sourceUrl)
+                            .setSourceRequestConditions(sourceConditions), null, Context.NONE).getValue().getETag();
+                    TransferMetrics.get().record(TransferMetrics.Operation.PUT_BLOB, start, length);
+                    singleShotBlobs.incrementAndGet();
+                    copied(targetEtag);
+                    return;
+                }
+                long size = blockSizeFor(length);
+                int blockCount = (int) ((length + size - 1) / size);
+                List<String> blockIds = new ArrayList<>(blockCount);
+                List<BlockCopyTask> blocks = new ArrayList<>(blockCount);
+                for (int i = 0; i < blockCount; i++) {
+                    String blockId = StreamingBlockTransfer.blockId(i);
+                    long offset = i * size;
+                    blockIds.add(blockId);
+                    blocks.add(new BlockCopyTask(target, new BlockBlobStageBlockFromUrlOptions(blockId, sourceUrl)
+                            .setSourceRange(new BlobRange(offset, Math.min(size, length - offset)))
+                            .setSourceRequestConditions(sourceConditions)));
+                }
+                // Forked blocks sit on this worker's deque, where idle workers can steal them
+                ForkJoinTask.invokeAll(blocks);
+                long start = System.nanoTime();
+                String targetEtag = target.commitBlockList(blockIds, true).getETag();
+                TransferMetrics.get().record(TransferMetrics.Operation.COMMIT_BLOCK_LIST, start, 0);
+                copied(targetEtag);
+            } catch (Throwable e) {
+                failures.put(blobName, e);
+                System.err.println("Failed to copy " + blobName + ": " + e.getMessage());
+            } finally {
+                queuedBlobs.release();
+            }
+        }
+
+        private void copied(String targetEtag) throws IOException {
+            if (index != null) {
+                index.recordCopied(new SyncIndex.Entry(blobName, properties.getETag(), length,
+                        properties.getLastModified().toInstant().toEpochMilli(), targetEtag));
+            }
+            copiedBlobs.incrementAndGet();
+            copiedBytes.addAndGet(length);
+        }
+
+        @SuppressWarnings("serial")
+        private final class BlockCopyTask extends RecursiveAction {
+            private final BlockBlobClient target;
+            private final BlockBlobStageBlockFromUrlOptions options;
+            private final Thread owner = Thread.currentThread();
+
+            BlockCopyTask(BlockBlobClient target, BlockBlobStageBlockFromUrlOptions options) {
+                this.target = target;
+                this.options = options;
+            }
+
+            @Override
+            protected void compute() {
+                if (Thread.currentThread() != owner) {
+                    stolenBlocks.incrementAndGet();
+                }
+                long start = System.nanoTime();
+                target.stageBlockFromUrlWithResponse(options, null, Context.NONE);
+                TransferMetrics.get().record(TransferMetrics.Operation.STAGE_BLOCK, start,
+                        options.getSourceRange().getCount());
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        // Source and target connection strings and containers; an optional argument limits the copy to a prefix,
+        // and --incremental skips blobs unchanged since the last run
+        String sourceConnectionString = System.getenv("AZURE_STORAGE_CONNECTION_STRING");
+        String targetConnectionString = System.getenv("AZURE_STORAGE_CONNECTION_STRING_TARGET");
+        String sourceContainerName = "large-blob";
+        String targetContainerName = "target-container";
+        boolean incremental = args.length > 0 && "--incremental".equals(args[0]);
+        int prefixArg = incremental ? 1 : 0;
+        String prefix = args.length > prefixArg ? args[prefixArg] : null;
+
+        long startTime = System.currentTimeMillis();
+
+        BlobServiceClient sourceClient = new BlobServiceClientBuilder()
+                .connectionString(sourceConnectionString)
+                .buildClient();
+        BlobServiceClient targetClient = new BlobServiceClientBuilder()
+                .connectionString(targetConnectionString)
+                .buildClient();
+
+        // 8MB blocks keep enough stealable work per blob; 32 workers share all blobs and blocks
+        ContainerCopyEngine engine = new ContainerCopyEngine(
+                sourceClient.getBlobContainerClient(sourceContainerName),
+                targetClient.getBlobContainerClient(targetContainerName),
+                8 * 1024 * 1024L, 32);
+        if (incremental) {
+            engine.setIndexPath(Paths.get(sourceContainerName + "-" + targetContainerName + ".syncindex"));
+            engine.setVerifyTarget("true".equalsIgnoreCase(System.getenv("SYNC_VERIFY_TARGET")));
+        }
+        Map<String, Throwable> failures = engine.copy(prefix);
+
+        System.out.println(engine.report());
+        failures.keySet().forEach(name -> System.out.println("Failed: " + name));
+
+        long endTime = System.currentTimeMillis();
+        System.out.println("Total time taken: " + (endTime - startTime) / 60000.0 + " minutes");
+        System.out.println("Transfer metrics: " + TransferMetrics.get().snapshot());
+    }
+}
@@ -0,0 +1,260 @@
+package blob_storage_rest;
+
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.models.Block;
+import com.azure.storage.blob.models.BlockList;
+import com.azure.storage.blob.models.BlockListType;
+import com.azure.storage.blob.models.BlobStorageException;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Updates an existing block blob by staging only the blocks whose content changed. Block IDs are the
+ * MD5 of the block content, so the target's own block list is the index of what it already holds: a
+ * source block whose ID is already on the target is committed again by ID without being sent, and
+ * only new content is staged. Blocks left uncommitted by an interrupted run are reused the same way.
+ *
+ * <p>The source is split either into fixed-size blocks, which suits in-place changes such as VM
+ * images, or at content-defined cut points (a gear rolling hash), so that an insertion only changes
+ * the blocks around it instead of shifting every later block, as in database dumps.
+ */
+public class DeltaBlockTransfer {
+    public enum Chunking {
+        FIXED, CONTENT_DEFINED;
+
+        /** Chunking from {@code TRANSFER_DELTA_CHUNKING} ("fixed" or "content_defined"); content-defined by default. */
+        public static Chunking fromEnvironment() {
+            String value = System.getenv("TRANSFER_DELTA_CHUNKING");
+            return value == null || value.isEmpty() ? CONTENT_DEFINED : valueOf(value.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /** Content-addressed IDs are Base64 of a 16-byte MD5, 24 characters; positional IDs never have this length. */
+    private static final int CONTENT_ID_LENGTH = 24;
+    private static final long[] GEAR = gearTable();
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 unavailable", e);
+        }
+    });
+
+    private final Chunking chunking;
+    private final int minBlockSize;
+    private final int maxBlockSize;
+    private final long cutMask;
+    private final int uploadConcurrency;
+    private final ChunkBufferPool bufferPool;
+
+    private final AtomicLong reusedBlocks = new AtomicLong();
+    private final AtomicLong reusedBytes = new AtomicLong();
+    private final AtomicLong stagedBlocks = new AtomicLong();
+    private final AtomicLong stagedBytes = new AtomicLong();
+
+    /**
+     * Fixed chunking cuts every {@code blockSize} bytes. Content-defined chunking cuts blocks of
+     * {@code blockSize / 4} to {@code blockSize * 4} bytes, about {@code blockSize} on average.
+     */
+    public DeltaBlockTransfer(Chunking chunking, int blockSize, int uploadConcurrency) {
+        this.chunking = chunking;
+        this.minBlockSize = chunking == Chunking.FIXED ? blockSize : blockSize / 4;
+        this.maxBlockSize = chunking == Chunking.FIXED ? blockSize : blockSize * 4;
+        // A cut is taken where the top bits of the rolling hash are zero, once per 2^bits bytes past the minimum
+        int bits = 63 - Long.numberOfLeadingZeros(Math.max(1, blockSize - minBlockSize));
+        this.cutMask = -1L << (64 - bits);
+        this.uploadConcurrency = uploadConcurrency;
+        // One buffer per upload in flight, plus the block being cut and the tail carried into the next one
+        this.bufferPool = new ChunkBufferPool(maxBlockSize, uploadConcurrency + 2, false);
+    }
+
+    /**
+     * Streams {@code source} into {@code target}, staging changed blocks with {@code checksums}, and
+     * commits the new block list. Returns the committed block IDs.
+     */
+    public List<String> transfer(InputStream source, BlockBlobClient target, BlockChecksums checksums)
+            throws IOException, InterruptedException {
+        Set<String> existing = existingBlocks(target);
+        Set<String> staged = new HashSet<>();
+        List<String> blockIds = new ArrayList<>();
+
+        try (BlockStagingExecutor uploads = new BlockStagingExecutor(uploadConcurrency)) {
+            ByteBuffer buffer = bufferPool.lease();
+            buffer.limit(maxBlockSize);
+            while (!uploads.hasFailed()) {
+                // Top the buffer up to the largest block; a short read means the source is exhausted
+                int wanted = buffer.remaining();
+                boolean endOfStream = StreamingBlockTransfer.readFully(source, buffer) < wanted;
+                int filled = buffer.position();
+                if (filled == 0) {
+                    bufferPool.release(buffer);
+                    break;
+                }
+
+                int cut = cutPoint(buffer.array(), filled);
+                ByteBuffer next = null;
+                if (cut < filled) {
+                    // Bytes past the cut start the next block
+                    next = bufferPool.lease();
+                    next.put(buffer.array(), cut, filled - cut);
+                }
+                buffer.position(0).limit(cut);
+
+                String blockId = contentId(buffer);
+                blockIds.add(blockId);
+                if (existing.contains(blockId) || !staged.add(blockId)) {
+                    reusedBlocks.incrementAndGet();
+                    reusedBytes.addAndGet(cut);
+                    bufferPool.release(buffer);
+                } else {
+                    ByteBuffer block = buffer;
+                    uploads.submit(() -> {
+                        SyncTransfer.stageBlock(target, blockId, block, checksums);
+                        stagedBlocks.incrementAndGet();
+                        stagedBytes.addAndGet(cut);
+                        return null;
+                    }, () -> bufferPool.release(block));
+                }
+
+                if (next == null && endOfStream) {
+                    break;
+                }
+                buffer = next != null ? next : bufferPool.lease();
+                buffer.limit(maxBlockSize);
+            }
+            uploads.awaitAll();
+        }
+
+        // Latest resolves reused IDs to the committed (or left-over uncommitted) block of the same content
+        long start = System.nanoTime();
+        target.commitBlockList(blockIds, true);
+        TransferMetrics.get().record(TransferMetrics.Operation.COMMIT_BLOCK_LIST, start, 0);
+        return blockIds;
+    }
+
+    /**
+     * Delta-copies {@code source} over {@code target} with the chunking from the environment and
+     * prints the outcome; the target need not exist yet. {@code blockSize} grows with the source as
+     * {@link #blockSizeFor} requires.
+     */
+    public static void copy(BlobClient source, BlockBlobClient target, int blockSize) throws IOException {
+        Chunking chunking = Chunking.fromEnvironment();
+        DeltaBlockTransfer transfer = new DeltaBlockTransfer(chunking,
+                blockSizeFor(chunking, source.getProperties().getBlobSize(), blockSize), 8);
+        BlockChecksums checksums = BlockChecksums.fromEnvironment();
+        try (InputStream inputStream = source.openInputStream()) {
+            transfer.transfer(inputStream, target, checksums);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Delta transfer interrupted", e);
+        }
+        System.out.println("Blob transfer completed.");
+        System.out.println(transfer.report());
+    }
+
+    /**
+     * Average block size, at least {@code blockSize}, that keeps {@code sourceLength} bytes within
+     * {@link StreamingBlockTransfer#MAX_BLOCKS} blocks even if every content-defined cut falls at the
+     * minimum size; the minimum and maximum scale with it.
+     *
+     * @throws IllegalArgumentException if the largest block would no longer fit in a buffer
+     */
+    static int blockSizeFor(Chunking chunking, long sourceLength, int blockSize) {
+        int scale = chunking == Chunking.FIXED ? 1 : 4;
+        long minimum = StreamingBlockTransfer.blockSizeFor(sourceLength, blockSize / scale);
+        long average = minimum * scale;
+        if (average * scale > StreamingBlockTransfer.MAX_BUFFERED_BLOCK_SIZE) {
+            throw new IllegalArgumentException("A blob of " + sourceLength + " bytes needs " + chunking
+                    + " delta blocks of up to " + average * scale + " bytes, more than a buffer holds");
+        }
+        return (int) Math.max(average, blockSize);
+    }
+
+    /** End of the next block within the first {@code filled} bytes of {@code data}. */
+    private int cutPoint(byte[] data, int filled) {
+        if (chunking == Chunking.FIXED || filled <= minBlockSize) {
+            return filled;
+        }
+        long hash = 0;
+        for (int i = minBlockSize; i < filled; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xFF];
+            if ((hash & cutMask) == 0) {
+                return i + 1;
+            }
+        }
+        // No cut point: the block ends at the maximum size, or at the end of the source
+        return filled;
+    }
+
+    /**
+     * IDs of the blocks the target already holds, committed or not, that were staged by a delta transfer.
+     * The service rejects a block whose ID length differs from the blob's uncommitted blocks, so
+     * uncommitted blocks left by another kind of transfer, e.g. an interrupted positional one, are
+     * discarded first by committing the current block list again.
+     */
+    private static Set<String> existingBlocks(BlockBlobClient target) {
+        Set<String> blocks = new HashSet<>();
+        try {
+            BlockList blockList = target.listBlocks(BlockListType.ALL);
+            List<String> committed = new ArrayList<>();
+            for (Block block : blockList.getCommittedBlocks()) {
+                committed.add(block.getName());
+                if (block.getName().length() == CONTENT_ID_LENGTH) {
+                    blocks.add(block.getName());
+                }
+            }
+            List<Block> uncommitted = blockList.getUncommittedBlocks();
+            if (uncommitted.stream().anyMatch(block -> block.getName().length() != CONTENT_ID_LENGTH)) {
+                System.out.println("Discarding " + uncommitted.size() + " uncommitted blocks left by another transfer");
+                long start = System.nanoTime();
+                target.commitBlockList(committed, true);
+                TransferMetrics.get().record(TransferMetrics.Operation.COMMIT_BLOCK_LIST, start, 0);
+                return blocks;
+            }
+            for (Block block : uncommitted) {
+                blocks.add(block.getName());
+            }
+        } catch (BlobStorageException e) {
+            if (e.getStatusCode() != 404) {
+                throw e;
+            }
+        }
+        return blocks;
+    }
+
+    /** Block ID for the bytes between {@code data}'s position and limit. */
+    static String contentId(ByteBuffer data) {
+        MessageDigest md5 = MD5.get();
+        md5.update(data.duplicate());
+        return Base64.getEncoder().encodeToString(md5.digest());
+    }
+
+    /** Summary of the finished transfer, for the end-of-transfer report. */
+    public String report() {
+        return String.format("Delta (%s): staged %d blocks (%d bytes), reused %d blocks (%d bytes)",
+                chunking, stagedBlocks.get(), stagedBytes.get(), reusedBlocks.get(), reusedBytes.get());
+    }
+
+    private static long[] gearTable() {
+        // Fixed seed: cut points must be the same in every run for blocks to match
+        Random random = new Random(0x5EED);
+        long[] table = new long[256];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = random.nextLong();
+        }
+        return table;
+    }
+}
@@ -0,0 +1,279 @@
+package blob_storage_rest;
+
+import com.azure.core.util.BinaryData;
+import com.azure.core.util.Context;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.BlobServiceClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.options.BlockBlobSimpleUploadOptions;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads a local directory tree into a container, one blob per file named by its path under the root;
+ * symbolic links are skipped. With many small files the cost is per file rather than per byte, so:
+ * <ul>
+ *   <li>the tree is walked in parallel, one task per directory, on the same pool that uploads;</li>
+ *   <li>a file under the small-file threshold is read whole and sent with a single Put Blob, with no
+ *   block list and no second request;</li>
+ *   <li>a larger file is split into blocks, each staged by its own task read straight from the file, and
+ *   committed once all of them are staged.</li>
+ * </ul>
+ * Every directory listing, small file and block runs on one bounded work-stealing pool, and each task
+ * makes one request at a time, so the number of requests in flight stays at about {@code workers}
+ * however the tree is shaped. A large file's blocks are forked onto the worker's own deque, where idle
+ * workers steal them. Files are handed to the pool in small batches, and a directory with millions of
+ * entries only keeps a few batches per worker pending at once.
+ */
+public class DirectoryTreeUpload {
+    private static final int FILES_PER_BATCH = 64;
+
+    private final BlobContainerClient targetContainer;
+    private final long smallFileThreshold;
+    private final long blockSize;
+    private final int workers;
+
+    private final AtomicLong uploadedFiles = new AtomicLong();
+    private final AtomicLong singleShotFiles = new AtomicLong();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private final AtomicLong directories = new AtomicLong();
+    private final Map<String, Throwable> failures = new ConcurrentHashMap<>();
+    private long startNanos;
+    private long finishNanos;
+
+    /**
+     * @param smallFileThreshold files up to this size go up in one Put Blob; at most {@code workers} of
+     *        them are held in memory at once
+     * @param blockSize block size for larger files, raised if a file would need more than 50,000 blocks
+     */
+    public DirectoryTreeUpload(BlobContainerClient targetContainer, long smallFileThreshold, long blockSize,
+            int workers) {
+        if (smallFileThreshold < 0 || smallFileThreshold > Integer.MAX_VALUE || blockSize <= 0 || workers <= 0) {
+            throw new IllegalArgumentException("Expected a threshold under 2 GiB and a positive block size and workers");
+        }
+        this.targetContainer = targetContainer;
+        this.smallFileThreshold = smallFileThreshold;
+        this.blockSize = blockSize;
+        this.workers = workers;
+    }
+
+    /**
+     * Uploads every regular file under {@code root} to {@code prefix} + its relative path, replacing
+     * blobs that exist. A failed file is recorded and does not stop the others.
+     *
+     * @return relative paths of the files that failed, with their errors
+     */
+    public Map<String, Throwable> upload(Path root, String prefix) throws InterruptedException {
+        startNanos = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        try {
+            pool.invoke(new DirectoryTask(root, root, prefix == null ? "" : prefix));
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+            finishNanos = System.nanoTime();
+        }
+        return failures;
+    }
+
+    private void uploadFile(Path file, long size, String blobName) throws IOException {
+        BlockBlobClient blob = targetContainer.getBlobClient(blobName).getBlockBlobClient();
+        if (size <= smallFileThreshold) {
+            long start = System.nanoTime();
+            // One request: the file is the whole body of a Put Blob
+            blob.uploadWithResponse(
+                    new BlockBlobSimpleUploadOptions(BinaryData.fromBytes(Files.readAllBytes(file))), null, Context.NONE);
+            TransferMetrics.get().record(TransferMetrics.Operation.PUT_BLOB, start, size);
+            singleShotFiles.incrementAndGet();
+        } else {
+            long fileBlockSize = StreamingBlockTransfer.blockSizeFor(size, blockSize);
+            int blockCount = (int) ((size + fileBlockSize - 1) / fileBlockSize);
+            List<String> blockIds = new ArrayList<>(blockCount);
+            List<BlockUploadTask> blocks = new ArrayList<>(blockCount);
+            for (int i = 0; i < blockCount; i++) {
+                String blockId = StreamingBlockTransfer.blockId(i);
+                long offset = i * fileBlockSize;
+                blockIds.add(blockId);
+                blocks.add(new BlockUploadTask(blob, file, blockId, offset, Math.min(fileBlockSize, size - offset)));
+            }
+            // Forked blocks sit on this worker's deque, where idle workers can steal them
+            ForkJoinTask.invokeAll(blocks);
+            long start = System.nanoTime();
+            blob.commitBlockList(blockIds, true);
+            TransferMetrics.get().record(TransferMetrics.Operation.COMMIT_BLOCK_LIST, start, 0);
+        }
+        uploadedFiles.incrementAndGet();
+        uploadedBytes.addAndGet(size);
+    }
+
+    private static String blobName(Path root, Path file, String prefix) {
+        StringBuilder name = new StringBuilder(prefix);
+        for (Path part : root.relativize(file)) {
+            if (name.length() > prefix.length()) {
+                name.append('/');
+            }
+            name.append(part);
+        }
+        return name.toString();
+    }
+
+    /** Summary of the finished upload with its rates, for the end-of-transfer report. */
+    public String report() {
+        double seconds = Math.max(finishNanos - startNanos, 1) / 1e9;
+        return String.format(Locale.ROOT,
+                "Uploaded %d files (%d single-shot) from %d directories, %d bytes, %d failed: %.1f files/s, %.1f MiB/s",
+                uploadedFiles.get(), singleShotFiles.get(), directories.get(), uploadedBytes.get(), failures.size(),
+                uploadedFiles.get() / seconds, uploadedBytes.get() / seconds / (1024 * 1024));
+    }
+
+    /** Lists one directory, forking a task for each subdirectory and one per batch of files. */
+    @SuppressWarnings("serial") // Tasks are never serialized
+    private final class DirectoryTask extends RecursiveAction {
+        private final Path root;
+        private final Path directory;
+        private final String prefix;
+
+        DirectoryTask(Path root, Path directory, String prefix) {
+            this.root = root;
+            this.directory = directory;
+            this.prefix = prefix;
+        }
+
+        @Override
+        protected void compute() {
+            directories.incrementAndGet();
+            List<DirectoryTask> subdirectories = new ArrayList<>();
+            Deque<FileBatchTask> pending = new ArrayDeque<>();
+            List<Path> batch = new ArrayList<>(FILES_PER_BATCH);
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    // Links are not followed, so a link back up the tree cannot make the walk loop
+                    BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class,
+                            LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isDirectory()) {
+                        DirectoryTask subdirectory = new DirectoryTask(root, entry, prefix);
+                        subdirectory.fork();
+                        subdirectories.add(subdirectory);
+                    } else if (attributes.isRegularFile()) {
+                        batch.add(entry);
+                        if (batch.size() == FILES_PER_BATCH) {
+                            pending.add((FileBatchTask) new FileBatchTask(root, batch, prefix).fork());
+                            batch = new ArrayList<>(FILES_PER_BATCH);
+                            // Keep a huge directory from queueing all of its files at once
+                            if (pending.size() > 2 * workers) {
+                                pending.poll().join();
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                failures.put(blobName(root, directory, prefix) + "/", e);
+                System.err.println("Failed to list " + directory + ": " + e.getMessage());
+            }
+            if (!batch.isEmpty()) {
+                pending.add((FileBatchTask) new FileBatchTask(root, batch, prefix).fork());
+            }
+            pending.forEach(ForkJoinTask::join);
+            subdirectories.forEach(ForkJoinTask::join);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private final class FileBatchTask extends RecursiveAction {
+        private final Path root;
+        private final List<Path> files;
+        private final String prefix;
+
+        FileBatchTask(Path root, List<Path> files, String prefix) {
+            this.root = root;
+            this.files = files;
+            this.prefix = prefix;
+        }
+
+        @Override
+        protected void compute() {
+            for (Path file : files) {
+                String blobName = blobName(root, file, prefix);
+                try {
+                    uploadFile(file, Files.size(file), blobName);
+                } catch (Exception e) {
+                    failures.put(blobName, e);
+                    System.err.println("Failed to upload " + file + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /** Stages one block of a large file, sent straight from the file without buffering it. */
+    @SuppressWarnings("serial")
+    private static final class BlockUploadTask extends RecursiveAction {
+        private final BlockBlobClient blob;
+        private final Path file;
+        private final String blockId;
+        private final long offset;
+        private final long count;
+
+        BlockUploadTask(BlockBlobClient blob, Path file, String blockId, long offset, long count) {
+            this.blob = blob;
+            this.file = file;
+            this.blockId = blockId;
+            this.offset = offset;
+            this.count = count;
+        }
+
+        @Override
+        protected void compute() {
+            long start = System.nanoTime();
+            blob.stageBlock(blockId, BinaryData.fromFile(file, offset, count));
+            TransferMetrics.get().record(TransferMetrics.Operation.STAGE_BLOCK, start, count);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        // Target connection string and container; the arguments are the local directory and an optional blob name
+        // prefix such as "backup/"
+        String targetConnectionString = System.getenv("AZURE_STORAGE_CONNECTION_STRING_TARGET");
+        String targetContainerName = "target-container";
+        Path root = Paths.get(args.length > 0 ? args[0] : ".");
+        String prefix = args.length > 1 ? args[1] : "";
+
+        long startTime = System.currentTimeMillis();
+
+        BlobServiceClient targetClient = new BlobServiceClientBuilder()
+                .connectionString(targetConnectionString)
+                .addPolicy(TransferMetrics.retryCountingPolicy())
+                .buildClient();
+
+        // Files up to the single-put threshold (TRANSFER_SINGLE_PUT_MIB, 4MB by default) go up in one Put Blob;
+        // larger ones in 8MB blocks; 32 workers share the walk and the uploads
+        DirectoryTreeUpload upload = new DirectoryTreeUpload(targetClient.getBlobContainerClient(targetContainerName),
+                StreamingBlockTransfer.singlePutThreshold(), 8 * 1024 * 1024L, 32);
+        Map<String, Throwable> failures = upload.upload(root, prefix);
+
+        System.out.println(upload.report());
+        failures.keySet().forEach(name -> System.out.println("Failed: " + name));
+
+        long endTime = System.currentTimeMillis();
+        System.out.println("Total time taken: " + (endTime - startTime) / 60000.0 + " minutes");
+        System.out.println("Transfer metrics: " + TransferMetrics.get().snapshot());
+    }
+}
@@ -0,0 +1,237 @@
+package blob_storage_rest;
+
+import com.azure.core.exception.HttpResponseException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps a {@link StreamingBlockTransfer.BlockStager} so that one slow or failed request does not hold
+ * up the commit. A block that fails with a transient error (a dropped connection, a timeout, 408, 429
+ * or 5xx) is staged again after a random wait of up to {@code baseBackoff * 2^attempt} ("full jitter"),
+ * so blocks that failed together do not retry together. A block that takes longer than the 95th
+ * percentile of blocks staged so far gets a second, hedged request with the same block ID; whichever
+ * finishes first wins, and the other is cancelled. Staging the same ID twice with the same bytes is
+ * harmless, since the later Put Block just replaces the earlier one. Only the attempt that wins is
+ * recorded in {@link TransferMetrics}, so a hedged block counts its bytes once.
+ *
+ * <p>The hedged request sends its own copy of the block, and the original request is stopped before
+ * {@link #stage} returns, so the caller's buffer can be reused as soon as it does. Hedges are capped at
+ * about one block in ten, so a link that is slow for every block is not flooded with duplicates.
+ */
+public class HedgedBlockStager implements StreamingBlockTransfer.BlockStager {
+    private static final int MIN_SAMPLES = 20;
+    private static final long MIN_HEDGE_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final StreamingBlockTransfer.BlockStager delegate;
+    private final int maxAttempts;
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+    private final boolean hedging;
+    // Latency per MiB, so the threshold follows block sizes the adaptive controller changes
+    private final LatencyHistogram latencyPerMiB = new LatencyHistogram();
+    private final AtomicLong stagedBlocks = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private volatile Runnable retryListener = () -> { };
+
+    public HedgedBlockStager(StreamingBlockTransfer.BlockStager delegate, int maxAttempts, long baseBackoffMillis,
+            long maxBackoffMillis, boolean hedging) {
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("maxAttempts must be positive");
+        }
+        this.delegate = delegate;
+        this.maxAttempts = maxAttempts;
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.hedging = hedging;
+    }
+
+    /**
+     * Stager with up to {@code TRANSFER_BLOCK_ATTEMPTS} attempts per block (default 5), backing off from
+     * 200 ms up to 10 s; hedging is on unless {@code TRANSFER_HEDGING} is "false".
+     */
+    public static HedgedBlockStager fromEnvironment(StreamingBlockTransfer.BlockStager delegate) {
+        String attempts = System.getenv("TRANSFER_BLOCK_ATTEMPTS");
+        String hedging = System.getenv("TRANSFER_HEDGING");
+        return new HedgedBlockStager(delegate, attempts == null || attempts.isEmpty() ? 5 : Integer.parseInt(attempts),
+                200, 10_000, !"false".equalsIgnoreCase(hedging));
+    }
+
+    /**
+     * Runs {@code retryListener} for every failure that is retried, e.g. so that an
+     * {@link AdaptiveTransferController} backs off on failures this stager hides from its caller.
+     */
+    public void setRetryListener(Runnable retryListener) {
+        this.retryListener = retryListener;
+    }
+
+    @Override
+    public void stage(String blockId, ByteBuffer data) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                stageHedged(blockId, data);
+                stagedBlocks.incrementAndGet();
+                return;
+            } catch (Exception e) {
+                if (attempt >= maxAttempts || !isRetryable(e)) {
+                    throw e;
+                }
+                retries.incrementAndGet();
+                TransferMetrics.get().recordRetry();
+                retryListener.run();
+                long cap = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(attempt - 1, 20));
+                Thread.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+            }
+        }
+    }
+
+    private void stageHedged(String blockId, ByteBuffer data) throws Exception {
+        long threshold = hedgeThresholdNanos(data.remaining());
+        if (threshold < 0) {
+            long start = System.nanoTime();
+            delegate.stage(blockId, data.duplicate());
+            recordLatency(System.nanoTime() - start, data.remaining());
+            return;
+        }
+
+        Attempt primary = new Attempt(blockId, data.duplicate());
+        try {
+            try {
+                primary.result.get(threshold, TimeUnit.NANOSECONDS);
+                primary.recordStaged();
+                return;
+            } catch (TimeoutException e) {
+                // Slower than most blocks so far: race a second request against it
+            }
+            hedges.incrementAndGet();
+            ByteBuffer copy = ByteBuffer.allocate(data.remaining()).put(data.duplicate()).flip();
+            Attempt hedge = new Attempt(blockId, copy);
+            try {
+                CompletableFuture<Attempt> firstSuccess = new CompletableFuture<>();
+                primary.result.thenRun(() -> firstSuccess.complete(primary));
+                hedge.result.thenRun(() -> firstSuccess.complete(hedge));
+                // Fails only once both attempts have, with the first failure
+                CompletableFuture.allOf(primary.result, hedge.result)
+                        .whenComplete((ignored, error) -> firstSuccess.completeExceptionally(error != null
+                                ? error : new IllegalStateException("No attempt succeeded")));
+                Attempt winner = firstSuccess.get();
+                winner.recordStaged();
+                if (winner == hedge) {
+                    hedgeWins.incrementAndGet();
+                }
+            } finally {
+                // The hedge sends its own copy, so it need not be waited for
+                hedge.thread.interrupt();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null
+                    ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        } finally {
+            // The primary sends from the caller's buffer, which may be reused once this returns
+            primary.stop();
+        }
+    }
+
+    /** How long to wait before hedging a block of {@code length} bytes, or -1 not to hedge it. */
+    private long hedgeThresholdNanos(int length) {
+        if (!hedging || latencyPerMiB.getCount() < MIN_SAMPLES || hedges.get() * 10 > stagedBlocks.get()) {
+            return -1;
+        }
+        long p95 = latencyPerMiB.getPercentileMicros(95) * 1000 * Math.max(length, 1) / (1 << 20);
+        return Math.max(p95, MIN_HEDGE_DELAY_NANOS);
+    }
+
+    private void recordLatency(long nanos, int length) {
+        latencyPerMiB.record(nanos * (1 << 20) / Math.max(length, 1));
+    }
+
+    /** True for failures worth another attempt: I/O errors, timeouts, throttling and server errors. */
+    static boolean isRetryable(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof HttpResponseException) {
+                return isRetryableStatus(((HttpResponseException) cause).getResponse().getStatusCode());
+            }
+            if (cause instanceof AsyncBlobHttpEngine.HttpStatusException) {
+                return isRetryableStatus(((AsyncBlobHttpEngine.HttpStatusException) cause).getStatusCode());
+            }
+            if (cause instanceof IOException || cause instanceof UncheckedIOException
+                    || cause instanceof TimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isRetryableStatus(int status) {
+        return status == 408 || status == 429 || status == 500 || status == 502 || status == 503 || status == 504;
+    }
+
+    /** Summary of retries and hedges in this run, for the end-of-transfer report. */
+    public String report() {
+        return String.format("Block staging: %d blocks, %d retries, %d hedged (%d won by the hedge), p95 %.1f ms/MiB",
+                stagedBlocks.get(), retries.get(), hedges.get(), hedgeWins.get(),
+                latencyPerMiB.getPercentileMicros(95) / 1000.0);
+    }
+
+    /**
+     * One request for a block, on its own virtual thread. The delegate's own metrics are not recorded
+     * there; the stager records the attempt that wins.
+     */
+    private final class Attempt {
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        final Thread thread;
+        final int length;
+        final long start = System.nanoTime();
+
+        Attempt(String blockId, ByteBuffer data) {
+            this.length = data.remaining();
+            this.thread = Thread.ofVirtual().start(() -> {
+                TransferMetrics.stopRecordingCurrentThread();
+                try {
+                    delegate.stage(blockId, data);
+                    recordLatency(System.nanoTime() - start, length);
+                    result.complete(null);
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                }
+            });
+        }
+
+        void recordStaged() {
+            TransferMetrics.get().record(TransferMetrics.Operation.STAGE_BLOCK, start, length);
+        }
+
+        /** Cancels the request if it is still running and waits until it no longer touches its buffer. */
+        void stop() {
+            if (!result.isDone()) {
+                thread.interrupt();
+            }
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,1143 @@
+package blob_storage_rest;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * In-process stand-in for Azure Blob Storage, for repeatable offline throughput and tail-latency tests.
+ * It serves the subset of the Blob REST API used in this project, path-style
+ * ({@code http://host:port/<account>/<container>/<blob>}): Get Blob with ranges, HEAD, Put Blob,
+ * Put Blob From URL, Put Block, Put Block From URL, Put Block List, Get Block List and a flat List Blobs, and for page
+ * blobs Put Page, Put Page From URL and Get Page Ranges. Containers are created on first use.
+ *
+ * <p>Requests must carry either a SharedKey {@code Authorization} header, which is verified against the
+ * account key, or a SAS query, which is checked for expiry and permissions (its signature is not
+ * verified). Each request can be slowed by a fixed latency and a per-connection bandwidth cap, and a
+ * seeded fraction of requests can be failed with a chosen status, so runs are reproducible.
+ *
+ * <p>Run {@link #main} to start a standalone server; it prints a connection string that the transfer
+ * classes accept through {@code AZURE_STORAGE_CONNECTION_STRING} and {@code AZURE_STORAGE_CONNECTION_STRING_TARGET}.
+ */
+public class LocalBlobServer implements AutoCloseable {
+    /** The well-known development storage account, also used by Azurite. */
+    public static final String DEV_ACCOUNT_NAME = "devstoreaccount1";
+    public static final String DEV_ACCOUNT_KEY =
+        "Eby8vdM02xNOcqFlqUwJPLlmEtlCDXJ1OUzFT50uSRZ6IFsuFq2UVErCz4I6tq/K1SZFPTOtr/KBHBeksoGMGw==";
+
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    private final String accountName;
+    private final byte[] accountKey;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, StoredBlob> blobs = new ConcurrentHashMap<>();
+    private final AtomicLong etagCounter = new AtomicLong();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+
+    private volatile long latencyMillis;
+    private volatile long bandwidthBytesPerSecond;
+    private volatile double errorRate;
+    private volatile int errorStatus = 503;
+    private volatile Random errorRandom = new Random(0);
+
+    public LocalBlobServer(int port) throws IOException {
+        this(port, DEV_ACCOUNT_NAME, DEV_ACCOUNT_KEY);
+    }
+
+    public LocalBlobServer(int port, String accountName, String accountKey) throws IOException {
+        this.accountName = accountName;
+        this.accountKey = Base64.getDecoder().decode(accountKey);
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        // Platform threads: a stand-in running next to virtual-thread clients must not compete for carriers
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "local-blob-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public LocalBlobServer start() {
+        // Registered here rather than in the constructor, so the handler never sees a partly built server
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+        return this;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /** Latency added before every response, standing in for the round trip to a remote region. */
+    public LocalBlobServer setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        return this;
+    }
+
+    /** Caps each connection's request and response body rate; 0 means unlimited. */
+    public LocalBlobServer setBandwidthBytesPerSecond(long bandwidthBytesPerSecond) {
+        this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+        return this;
+    }
+
+    /** Fails the given fraction of requests with {@code status}, chosen by a generator seeded with {@code seed}. */
+    public LocalBlobServer setErrorInjection(double errorRate, int status, long seed) {
+        this.errorRate = errorRate;
+        this.errorStatus = status;
+        this.errorRandom = new Random(seed);
+        return this;
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /** Blob endpoint including the account, e.g. {@code http://127.0.0.1:10000/devstoreaccount1}. */
+    public String getBlobEndpoint() {
+        return "http://127.0.0.1:" + getPort() + "/" + accountName;
+    }
+
+    public String getConnectionString() {
+        return "DefaultEndpointsProtocol=http;AccountName=" + accountName + ";AccountKey="
+            + Base64.getEncoder().encodeToString(accountKey) + ";BlobEndpoint=" + getBlobEndpoint() + ";";
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getInjectedErrorCount() {
+        return injectedErrors.get();
+    }
+
+    /** Creates or replaces a committed block blob, e.g. to seed a source for a load test. */
+    public void putBlob(String container, String blob, byte[] data) {
+        StoredBlob stored = blobs.computeIfAbsent(key(container, blob), k -> new StoredBlob());
+        synchronized (stored) {
+            stored.commit(List.of(new Block("", data)), nextEtag());
+        }
+    }
+
+    /** Creates or replaces an empty page blob of {@code length} bytes, a multiple of 512. */
+    public void putPageBlob(String container, String blob, long length) {
+        StoredBlob stored = blobs.computeIfAbsent(key(container, blob), k -> new StoredBlob());
+        synchronized (stored) {
+            stored.createPageBlob(length, nextEtag());
+        }
+    }
+
+    /** Writes {@code data} to the pages of an existing page blob at {@code offset}; both must be 512-aligned. */
+    public void putPages(String container, String blob, long offset, byte[] data) {
+        StoredBlob stored = blobs.get(key(container, blob));
+        synchronized (stored) {
+            stored.writePages(offset, data);
+            stored.touch(nextEtag());
+        }
+    }
+
+    /** Committed content of a blob, or null if it does not exist. */
+    public byte[] getBlob(String container, String blob) {
+        StoredBlob stored = blobs.get(key(container, blob));
+        if (stored == null) {
+            return null;
+        }
+        synchronized (stored) {
+            return stored.exists() ? stored.content() : null;
+        }
+    }
+
+    private static String key(String container, String blob) {
+        return container + "/" + blob;
+    }
+
+    private String nextEtag() {
+        return "\"0x" + Long.toHexString(0x8D000000000000L + etagCounter.incrementAndGet()).toUpperCase(Locale.ROOT) + "\"";
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        try {
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            if (errorRate > 0 && injectError()) {
+                injectedErrors.incrementAndGet();
+                drain(exchange);
+                sendError(exchange, errorStatus, errorStatus == 503 ? "ServerBusy" : "InternalError",
+                    "Injected failure.");
+                return;
+            }
+
+            String[] path = exchange.getRequestURI().getRawPath().split("/", 4);
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String method = exchange.getRequestMethod();
+            if (path.length == 3 && path[1].equals(accountName) && "container".equals(query.get("restype"))
+                    && "list".equals(query.get("comp")) && "GET".equals(method)) {
+                if (authorize(exchange, query, method)) {
+                    listBlobs(exchange, path[2], query);
+                }
+                return;
+            }
+            if (path.length < 4 || !path[1].equals(accountName) || path[3].isEmpty()) {
+                drain(exchange);
+                sendError(exchange, 400, "InvalidUri", "Expected /" + accountName + "/<container>/<blob>.");
+                return;
+            }
+            String container = path[2];
+            String blob = URLDecoder.decode(path[3], StandardCharsets.UTF_8);
+            if (!authorize(exchange, query, method)) {
+                return;
+            }
+
+            String comp = query.getOrDefault("comp", "");
+            if ("GET".equals(method) && "blocklist".equals(comp)) {
+                getBlockList(exchange, container, blob, query);
+            } else if ("GET".equals(method) && "pagelist".equals(comp)) {
+                getPageRanges(exchange, container, blob, query);
+            } else if ("GET".equals(method) || "HEAD".equals(method)) {
+                getBlob(exchange, container, blob, "HEAD".equals(method));
+            } else if ("PUT".equals(method) && "block".equals(comp)) {
+                putBlock(exchange, container, blob, query.get("blockid"));
+            } else if ("PUT".equals(method) && "blocklist".equals(comp)) {
+                putBlockList(exchange, container, blob);
+            } else if ("PUT".equals(method) && "page".equals(comp)) {
+                putPage(exchange, container, blob);
+            } else if ("PUT".equals(method) && comp.isEmpty()) {
+                putBlob(exchange, container, blob);
+            } else {
+                drain(exchange);
+                sendError(exchange, 400, "UnsupportedHttpVerb", "Operation not supported by the local server.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            sendError(exchange, 500, "InternalError", String.valueOf(e.getMessage()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private synchronized boolean injectError() {
+        return errorRandom.nextDouble() < errorRate;
+    }
+
+    private boolean authorize(HttpExchange exchange, Map<String, String> query, String method) throws IOException {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization != null) {
+            String expected = "SharedKey " + accountName + ":" + sign(stringToSign(exchange, query));
+            if (expected.equals(authorization)) {
+                return true;
+            }
+            drain(exchange);
+            sendError(exchange, 403, "AuthenticationFailed", "SharedKey signature did not match.");
+            return false;
+        }
+        if (query.containsKey("sig")) {
+            String expiry = query.get("se");
+            if (expiry == null || OffsetDateTime.parse(expiry).isBefore(OffsetDateTime.now(ZoneOffset.UTC))) {
+                drain(exchange);
+                sendError(exchange, 403, "AuthenticationFailed", "SAS token is missing an expiry or has expired.");
+                return false;
+            }
+            String permissions = query.getOrDefault("sp", "");
+            boolean read = "GET".equals(method) || "HEAD".equals(method);
+            if (read ? permissions.indexOf('r') < 0 && permissions.indexOf('l') < 0 : permissions.indexOf('w') < 0 && permissions.indexOf('c') < 0) {
+                drain(exchange);
+                sendError(exchange, 403, "AuthorizationPermissionMismatch", "SAS does not allow this operation.");
+                return false;
+            }
+            return true;
+        }
+        drain(exchange);
+        sendError(exchange, 403, "NoAuthenticationInformation", "Missing Authorization header or SAS.");
+        return false;
+    }
+
+    /** SharedKey string-to-sign for blob requests, as defined by the storage service. */
+    private String stringToSign(HttpExchange exchange, Map<String, String> query) {
+        Headers headers = exchange.getRequestHeaders();
+        String contentLength = headerOrEmpty(headers, "Content-Length");
+        StringBuilder builder = new StringBuilder(256);
+        builder.append(exchange.getRequestMethod()).append('\n')
+            .append(headerOrEmpty(headers, "Content-Encoding")).append('\n')
+            .append(headerOrEmpty(headers, "Content-Language")).append('\n')
+            .append("0".equals(contentLength) ? "" : contentLength).append('\n')
+            .append(headerOrEmpty(headers, "Content-MD5")).append('\n')
+            .append(headerOrEmpty(headers, "Content-Type")).append('\n')
+            .append(headerOrEmpty(headers, "Date")).append('\n')
+            .append(headerOrEmpty(headers, "If-Modified-Since")).append('\n')
+            .append(headerOrEmpty(headers, "If-Match")).append('\n')
+            .append(headerOrEmpty(headers, "If-None-Match")).append('\n')
+            .append(headerOrEmpty(headers, "If-Unmodified-Since")).append('\n')
+            .append(headerOrEmpty(headers, "Range")).append('\n');
+
+        TreeMap<String, String> msHeaders = new TreeMap<>();
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ROOT);
+            if (name.startsWith("x-ms-")) {
+                msHeaders.put(name, String.join(",", header.getValue()).trim());
+            }
+        }
+        for (Map.Entry<String, String> header : msHeaders.entrySet()) {
+            builder.append(header.getKey()).append(':').append(header.getValue()).append('\n');
+        }
+
+        builder.append('/').append(accountName).append(exchange.getRequestURI().getRawPath());
+        TreeMap<String, String> sortedQuery = new TreeMap<>();
+        for (Map.Entry<String, String> parameter : query.entrySet()) {
+            sortedQuery.put(parameter.getKey().toLowerCase(Locale.ROOT), parameter.getValue());
+        }
+        for (Map.Entry<String, String> parameter : sortedQuery.entrySet()) {
+            builder.append('\n').append(parameter.getKey()).append(':').append(parameter.getValue());
+        }
+        return builder.toString();
+    }
+
+    private String sign(String stringToSign) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(accountKey, "HmacSHA256"));
+            return Base64.getEncoder().encodeToString(mac.doFinal(stringToSign.getBytes(StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            throw new IllegalStateException("HmacSHA256 unavailable", e);
+        }
+    }
+
+    private static String headerOrEmpty(Headers headers, String name) {
+        String value = headers.getFirst(name);
+        return value == null ? "" : value;
+    }
+
+    private void getBlob(HttpExchange exchange, String container, String blob, boolean headOnly) throws IOException {
+        drain(exchange);
+        StoredBlob stored = blobs.get(key(container, blob));
+        byte[] content;
+        String etag;
+        String lastModified;
+        String blobType;
+        Map<String, String> properties;
+        synchronized (stored != null ? stored : this) {
+            if (stored == null || !stored.exists()) {
+                sendError(exchange, 404, "BlobNotFound", "The specified blob does not exist.");
+                return;
+            }
+            content = stored.content();
+            etag = stored.etag;
+            lastModified = stored.lastModified;
+            blobType = stored.blobType();
+            properties = stored.properties;
+        }
+
+        Headers requestHeaders = exchange.getRequestHeaders();
+        String ifMatch = requestHeaders.getFirst("If-Match");
+        if (!etagMatches(ifMatch, etag)) {
+            sendError(exchange, 412, "ConditionNotMet", "The condition specified using HTTP conditional header(s) is not met.");
+            return;
+        }
+
+        Headers responseHeaders = exchange.getResponseHeaders();
+        responseHeaders.add("ETag", etag);
+        responseHeaders.add("Last-Modified", lastModified);
+        responseHeaders.add("x-ms-blob-type", blobType);
+        responseHeaders.add("Accept-Ranges", "bytes");
+        responseHeaders.add("Content-Type", "application/octet-stream");
+        properties.forEach(responseHeaders::add);
+        addStandardHeaders(exchange);
+
+        String range = requestHeaders.getFirst("x-ms-range");
+        if (range == null) {
+            range = requestHeaders.getFirst("Range");
+        }
+        int start = 0;
+        int end = content.length - 1;
+        int status = 200;
+        if (range != null && !headOnly) {
+            Matcher matcher = RANGE.matcher(range);
+            if (!matcher.matches() || Long.parseLong(matcher.group(1)) >= content.length) {
+                responseHeaders.add("Content-Range", "bytes */" + content.length);
+                sendError(exchange, 416, "InvalidRange", "The range specified is invalid for the current size of the resource.");
+                return;
+            }
+            start = Integer.parseInt(matcher.group(1));
+            if (!matcher.group(2).isEmpty()) {
+                end = (int) Math.min(end, Long.parseLong(matcher.group(2)));
+            }
+            status = 206;
+            responseHeaders.add("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+        }
+
+        int length = end - start + 1;
+        if (headOnly) {
+            responseHeaders.add("Content-Length", Integer.toString(content.length));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+        if (length > 0) {
+            try (OutputStream body = throttle(exchange.getResponseBody())) {
+                body.write(content, start, length);
+            }
+        }
+    }
+
+    private void putBlob(HttpExchange exchange, String container, String blob) throws Exception {
+        // With x-ms-copy-source this is Put Blob From URL, and the body comes from the source
+        String copySource = exchange.getRequestHeaders().getFirst("x-ms-copy-source");
+        byte[] data;
+        if (copySource != null) {
+            drain(exchange);
+            data = readCopySource(exchange, copySource, null);
+            if (data == null) {
+                return;
+            }
+        } else {
+            data = readBody(exchange);
+        }
+        String blobType = exchange.getRequestHeaders().getFirst("x-ms-blob-type");
+        if (!"BlockBlob".equals(blobType) && !"PageBlob".equals(blobType)) {
+            sendError(exchange, 400, "InvalidHeaderValue", "Only x-ms-blob-type: BlockBlob or PageBlob is supported.");
+            return;
+        }
+        if (copySource == null && !verifyContent(exchange, data)) {
+            return;
+        }
+        long pageBlobLength = 0;
+        if ("PageBlob".equals(blobType)) {
+            String length = exchange.getRequestHeaders().getFirst("x-ms-blob-content-length");
+            pageBlobLength = length == null ? -1 : Long.parseLong(length);
+            if (pageBlobLength < 0 || pageBlobLength % 512 != 0 || pageBlobLength > Integer.MAX_VALUE) {
+                sendError(exchange, 400, "InvalidHeaderValue", "x-ms-blob-content-length must be a multiple of 512.");
+                return;
+            }
+        }
+        StoredBlob stored = blobs.computeIfAbsent(key(container, blob), k -> new StoredBlob());
+        synchronized (stored) {
+            if (!checkWriteConditions(exchange, stored)) {
+                return;
+            }
+            if ("PageBlob".equals(blobType)) {
+                // Created sparse: every page reads as zeros until written
+                stored.createPageBlob(pageBlobLength, nextEtag());
+            } else {
+                stored.commit(List.of(new Block("", data)), nextEtag());
+            }
+            stored.uncommitted.clear();
+            stored.properties = blobProperties(exchange.getRequestHeaders());
+            sendCreated(exchange, stored);
+        }
+    }
+
+    private void putBlock(HttpExchange exchange, String container, String blob, String blockId) throws Exception {
+        if (blockId == null || blockId.isEmpty()) {
+            drain(exchange);
+            sendError(exchange, 400, "MissingRequiredQueryParameter", "blockid is required.");
+            return;
+        }
+        byte[] data;
+        String copySource = exchange.getRequestHeaders().getFirst("x-ms-copy-source");
+        if (copySource != null) {
+            drain(exchange);
+            data = readCopySource(exchange, copySource, exchange.getRequestHeaders().getFirst("x-ms-source-range"));
+            if (data == null) {
+                return;
+            }
+        } else {
+            data = readBody(exchange);
+        }
+        if (!verifyContent(exchange, data)) {
+            return;
+        }
+        StoredBlob stored = blobs.computeIfAbsent(key(container, blob), k -> new StoredBlob());
+        synchronized (stored) {
+            // As the service does, every uncommitted block of a blob must have an ID of the same length
+            if (!stored.uncommitted.isEmpty() && stored.uncommitted.keySet().iterator().next().length() != blockId.length()) {
+                sendError(exchange, 400, "InvalidBlobOrBlock", "The specified blob or block content is invalid.");
+                return;
+            }
+            stored.uncommitted.put(blockId, data);
+        }
+        addStandardHeaders(exchange);
+        exchange.getResponseHeaders().add("x-ms-request-server-encrypted", "true");
+        exchange.sendResponseHeaders(201, -1);
+    }
+
+    /** Checks transactional Content-MD5 / x-ms-content-crc64 headers against the received body, as the service does. */
+    private boolean verifyContent(HttpExchange exchange, byte[] data) throws IOException {
+        Headers headers = exchange.getRequestHeaders();
+        String contentMd5 = headers.getFirst("Content-MD5");
+        String contentCrc64 = headers.getFirst("x-ms-content-crc64");
+        if (contentMd5 != null && contentCrc64 != null) {
+            sendError(exchange, 400, "InvalidHeaderValue", "Content-MD5 and x-ms-content-crc64 cannot both be set.");
+            return false;
+        }
+        if (contentMd5 != null && !contentMd5.equals(md5(data))) {
+            sendError(exchange, 400, "Md5Mismatch", "The MD5 value specified in the request did not match the MD5 value calculated by the server.");
+            return false;
+        }
+        if (contentCrc64 != null) {
+            byte[] crc64 = new byte[8];
+            java.nio.ByteBuffer.wrap(crc64).order(java.nio.ByteOrder.LITTLE_ENDIAN)
+                .putLong(BlockChecksums.crc64(0, data, 0, data.length));
+            String expected = Base64.getEncoder().encodeToString(crc64);
+            if (!contentCrc64.equals(expected)) {
+                sendError(exchange, 400, "Crc64Mismatch", "The CRC64 value specified in the request did not match the CRC64 value calculated by the server.");
+                return false;
+            }
+            exchange.getResponseHeaders().add("x-ms-content-crc64", expected);
+        }
+        return true;
+    }
+
+    /**
+     * Reads the source of a copy from URL the way the service would, here from this process, honouring
+     * {@code x-ms-source-if-match}. If the source cannot be read, sends the error response and returns null.
+     */
+    private byte[] readCopySource(HttpExchange exchange, String copySource, String sourceRange) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URI(copySource).toURL().openConnection();
+        connection.setRequestMethod("GET");
+        if (sourceRange != null) {
+            connection.setRequestProperty("x-ms-range", sourceRange);
+        }
+        String sourceIfMatch = exchange.getRequestHeaders().getFirst("x-ms-source-if-match");
+        if (sourceIfMatch != null) {
+            connection.setRequestProperty("If-Match", sourceIfMatch);
+        }
+        int responseCode = connection.getResponseCode();
+        if (responseCode == 412) {
+            sendError(exchange, 412, "SourceConditionNotMet", "The source condition specified using HTTP conditional header(s) is not met.");
+            return null;
+        }
+        if (responseCode != 200 && responseCode != 206) {
+            sendError(exchange, 404, "CannotVerifyCopySource", "The copy source could not be read.");
+            return null;
+        }
+        try (InputStream inputStream = connection.getInputStream()) {
+            return inputStream.readAllBytes();
+        }
+    }
+
+    private void putBlockList(HttpExchange exchange, String container, String blob) throws Exception {
+        byte[] body = readBody(exchange);
+        Element blockList = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .parse(new java.io.ByteArrayInputStream(body)).getDocumentElement();
+        StoredBlob stored = blobs.computeIfAbsent(key(container, blob), k -> new StoredBlob());
+        synchronized (stored) {
+            if (!checkWriteConditions(exchange, stored)) {
+                return;
+            }
+            Map<String, byte[]> committed = new LinkedHashMap<>();
+            for (Block block : stored.committed) {
+                committed.put(block.id, block.data);
+            }
+            List<Block> blocks = new ArrayList<>();
+            NodeList entries = blockList.getChildNodes();
+            for (int i = 0; i < entries.getLength(); i++) {
+                Node entry = entries.item(i);
+                if (entry.getNodeType() != Node.ELEMENT_NODE) {
+                    continue;
+                }
+                String id = entry.getTextContent().trim();
+                byte[] data;
+                switch (entry.getNodeName()) {
+                    case "Committed":
+                        data = committed.get(id);
+                        break;
+                    case "Uncommitted":
+                        data = stored.uncommitted.get(id);
+                        break;
+                    default: // Latest
+                        data = stored.uncommitted.containsKey(id) ? stored.uncommitted.get(id) : committed.get(id);
+                        break;
+                }
+                if (data == null) {
+                    sendError(exchange, 400, "InvalidBlockList", "The specified block list is invalid: " + id);
+                    return;
+                }
+                blocks.add(new Block(id, data));
+            }
+            stored.commit(blocks, nextEtag());
+            stored.uncommitted.clear();
+            stored.properties = blobProperties(exchange.getRequestHeaders());
+            sendCreated(exchange, stored);
+        }
+    }
+
+    /** Put Page: writes ({@code update}) or clears 512-aligned pages, from the body or, with x-ms-copy-source, from a URL. */
+    private void putPage(HttpExchange exchange, String container, String blob) throws Exception {
+        Headers headers = exchange.getRequestHeaders();
+        String copySource = headers.getFirst("x-ms-copy-source");
+        byte[] data;
+        if (copySource != null) {
+            drain(exchange);
+            data = readCopySource(exchange, copySource, headers.getFirst("x-ms-source-range"));
+            if (data == null) {
+                return;
+            }
+        } else {
+            data = readBody(exchange);
+        }
+        String range = headers.getFirst("x-ms-range") != null ? headers.getFirst("x-ms-range") : headers.getFirst("Range");
+        Matcher matcher = range == null ? null : RANGE.matcher(range);
+        if (matcher == null || !matcher.matches() || matcher.group(2).isEmpty()) {
+            sendError(exchange, 400, "InvalidHeaderValue", "Put Page requires a range.");
+            return;
+        }
+        long start = Long.parseLong(matcher.group(1));
+        long end = Long.parseLong(matcher.group(2));
+        if (start % 512 != 0 || (end + 1) % 512 != 0 || end < start) {
+            sendError(exchange, 416, "InvalidPageRange", "The page range specified is invalid.");
+            return;
+        }
+        boolean clear = "clear".equalsIgnoreCase(headers.getFirst("x-ms-page-write"));
+        if (!clear && data.length != end - start + 1) {
+            sendError(exchange, 400, "InvalidHeaderValue", "The body length does not match the page range.");
+            return;
+        }
+        if (!clear && !verifyContent(exchange, data)) {
+            return;
+        }
+        StoredBlob stored = blobs.get(key(container, blob));
+        synchronized (stored != null ? stored : this) {
+            if (stored == null || !stored.exists() || stored.pages == null) {
+                sendError(exchange, 404, "BlobNotFound", "The specified page blob does not exist.");
+                return;
+            }
+            if (end >= stored.pageBlobLength) {
+                sendError(exchange, 416, "InvalidPageRange", "The page range specified is invalid.");
+                return;
+            }
+            if (!checkWriteConditions(exchange, stored)) {
+                return;
+            }
+            if (clear) {
+                stored.pages.subMap(start / 512, true, end / 512, true).clear();
+            } else {
+                stored.writePages(start, data);
+            }
+            stored.touch(nextEtag());
+            exchange.getResponseHeaders().add("ETag", stored.etag);
+            exchange.getResponseHeaders().add("Last-Modified", stored.lastModified);
+        }
+        exchange.getResponseHeaders().add("x-ms-blob-sequence-number", "0");
+        exchange.getResponseHeaders().add("x-ms-request-server-encrypted", "true");
+        addStandardHeaders(exchange);
+        exchange.sendResponseHeaders(201, -1);
+    }
+
+    /**
+     * Get Page Ranges: the written pages within the requested range, coalesced into runs. Pages of up to
+     * {@code maxresults} runs continue from the offset given as the marker.
+     */
+    private void getPageRanges(HttpExchange exchange, String container, String blob, Map<String, String> query)
+            throws IOException {
+        drain(exchange);
+        StoredBlob stored = blobs.get(key(container, blob));
+        Headers headers = exchange.getRequestHeaders();
+        String range = headers.getFirst("x-ms-range") != null ? headers.getFirst("x-ms-range") : headers.getFirst("Range");
+        String marker = query.get("marker");
+        int maxResults = Integer.parseInt(query.getOrDefault("maxresults", "10000"));
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?><PageList>");
+        synchronized (stored != null ? stored : this) {
+            if (stored == null || !stored.exists() || stored.pages == null) {
+                sendError(exchange, 404, "BlobNotFound", "The specified page blob does not exist.");
+                return;
+            }
+            long firstPage = 0;
+            long lastPage = stored.pageBlobLength / 512 - 1;
+            Matcher matcher = range == null ? null : RANGE.matcher(range);
+            if (matcher != null && matcher.matches()) {
+                firstPage = Long.parseLong(matcher.group(1)) / 512;
+                if (!matcher.group(2).isEmpty()) {
+                    lastPage = Math.min(lastPage, Long.parseLong(matcher.group(2)) / 512);
+                }
+            }
+            if (marker != null && !marker.isEmpty()) {
+                firstPage = Math.max(firstPage, Long.parseLong(marker) / 512);
+            }
+            int listed = 0;
+            String nextMarker = "";
+            long runStart = -1;
+            long runEnd = -1;
+            for (long page : stored.pages.subMap(firstPage, true, lastPage, true).keySet()) {
+                if (page == runEnd + 1 && runStart >= 0) {
+                    runEnd = page;
+                    continue;
+                }
+                if (runStart >= 0) {
+                    if (listed == maxResults) {
+                        break;
+                    }
+                    appendPageRange(xml, runStart, runEnd);
+                    listed++;
+                }
+                runStart = page;
+                runEnd = page;
+            }
+            if (runStart >= 0) {
+                if (listed == maxResults) {
+                    nextMarker = Long.toString(runStart * 512);
+                } else {
+                    appendPageRange(xml, runStart, runEnd);
+                }
+            }
+            xml.append("<NextMarker>").append(nextMarker).append("</NextMarker>");
+            exchange.getResponseHeaders().add("ETag", stored.etag);
+            exchange.getResponseHeaders().add("Last-Modified", stored.lastModified);
+            exchange.getResponseHeaders().add("x-ms-blob-content-length", Long.toString(stored.pageBlobLength));
+        }
+        xml.append("</PageList>");
+        addStandardHeaders(exchange);
+        sendBody(exchange, 200, "application/xml", xml.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void appendPageRange(StringBuilder xml, long firstPage, long lastPage) {
+        xml.append("<PageRange><Start>").append(firstPage * 512).append("</Start><End>")
+            .append(lastPage * 512 + 511).append("</End></PageRange>");
+    }
+
+    private void getBlockList(HttpExchange exchange, String container, String blob, Map<String, String> query)
+            throws IOException {
+        drain(exchange);
+        StoredBlob stored = blobs.get(key(container, blob));
+        if (stored == null) {
+            sendError(exchange, 404, "BlobNotFound", "The specified blob does not exist.");
+            return;
+        }
+        String type = query.getOrDefault("blocklisttype", "committed").toLowerCase(Locale.ROOT);
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?><BlockList>");
+        synchronized (stored) {
+            if (!"uncommitted".equals(type)) {
+                xml.append("<CommittedBlocks>");
+                for (Block block : stored.committed) {
+                    appendBlock(xml, block.id, block.data.length);
+                }
+                xml.append("</CommittedBlocks>");
+            }
+            if (!"committed".equals(type)) {
+                xml.append("<UncommittedBlocks>");
+                for (Map.Entry<String, byte[]> block : stored.uncommitted.entrySet()) {
+                    appendBlock(xml, block.getKey(), block.getValue().length);
+                }
+                xml.append("</UncommittedBlocks>");
+            }
+            if (stored.exists()) {
+                exchange.getResponseHeaders().add("ETag", stored.etag);
+                exchange.getResponseHeaders().add("Last-Modified", stored.lastModified);
+            }
+        }
+        xml.append("</BlockList>");
+        sendBody(exchange, 200, "application/xml", xml.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** List Blobs, flat, in name order; pages of up to {@code maxresults} continue from the last name. */
+    private void listBlobs(HttpExchange exchange, String container, Map<String, String> query) throws IOException {
+        drain(exchange);
+        String prefix = container + "/" + query.getOrDefault("prefix", "");
+        String marker = query.get("marker");
+        int maxResults = Integer.parseInt(query.getOrDefault("maxresults", "5000"));
+        TreeMap<String, StoredBlob> matching = new TreeMap<>();
+        for (Map.Entry<String, StoredBlob> entry : blobs.entrySet()) {
+            String name = entry.getKey();
+            if (name.startsWith(prefix) && (marker == null || marker.isEmpty() || name.compareTo(container + "/" + marker) >= 0)) {
+                matching.put(name, entry.getValue());
+            }
+        }
+
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?><EnumerationResults ServiceEndpoint=\"")
+            .append(getBlobEndpoint()).append("/\" ContainerName=\"").append(container).append("\">")
+            .append("<Prefix>").append(escapeXml(query.getOrDefault("prefix", ""))).append("</Prefix>")
+            .append("<MaxResults>").append(maxResults).append("</MaxResults><Blobs>");
+        int listed = 0;
+        String nextMarker = "";
+        for (Map.Entry<String, StoredBlob> entry : matching.entrySet()) {
+            String name = entry.getKey().substring(container.length() + 1);
+            StoredBlob stored = entry.getValue();
+            synchronized (stored) {
+                if (!stored.exists()) {
+                    continue;
+                }
+                if (listed == maxResults) {
+                    nextMarker = name;
+                    break;
+                }
+                xml.append("<Blob><Name>").append(escapeXml(name)).append("</Name><Properties>")
+                    .append("<Last-Modified>").append(stored.lastModified).append("</Last-Modified>")
+                    .append("<Etag>").append(stored.etag).append("</Etag>")
+                    .append("<Content-Length>").append(stored.content().length).append("</Content-Length>")
+                    .append("<Content-Type>application/octet-stream</Content-Type>")
+                    .append("<BlobType>").append(stored.blobType()).append("</BlobType></Properties></Blob>");
+                listed++;
+            }
+        }
+        xml.append("</Blobs><NextMarker>").append(escapeXml(nextMarker)).append("</NextMarker></EnumerationResults>");
+        addStandardHeaders(exchange);
+        sendBody(exchange, 200, "application/xml", xml.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String escapeXml(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static void appendBlock(StringBuilder xml, String id, int size) {
+        xml.append("<Block><Name>").append(id).append("</Name><Size>").append(size).append("</Size></Block>");
+    }
+
+    private boolean checkWriteConditions(HttpExchange exchange, StoredBlob stored) throws IOException {
+        Headers headers = exchange.getRequestHeaders();
+        String ifNoneMatch = headers.getFirst("If-None-Match");
+        if ("*".equals(ifNoneMatch) && stored.exists()) {
+            sendError(exchange, 409, "BlobAlreadyExists", "The specified blob already exists.");
+            return false;
+        }
+        String ifMatch = headers.getFirst("If-Match");
+        if (!etagMatches(ifMatch, stored.etag)) {
+            sendError(exchange, 412, "ConditionNotMet", "The condition specified using HTTP conditional header(s) is not met.");
+            return false;
+        }
+        return true;
+    }
+
+    /** Content encoding and metadata set by a write, as the response headers that return them. */
+    private static Map<String, String> blobProperties(Headers requestHeaders) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        String contentEncoding = requestHeaders.getFirst("x-ms-blob-content-encoding");
+        if (contentEncoding != null) {
+            properties.put("Content-Encoding", contentEncoding);
+        }
+        for (Map.Entry<String, List<String>> header : requestHeaders.entrySet()) {
+            if (header.getKey().toLowerCase(Locale.ROOT).startsWith("x-ms-meta-")) {
+                properties.put(header.getKey().toLowerCase(Locale.ROOT), header.getValue().get(0));
+            }
+        }
+        return properties;
+    }
+
+    /** If-Match check; clients differ in whether they quote the ETag. */
+    private static boolean etagMatches(String ifMatch, String etag) {
+        return ifMatch == null || "*".equals(ifMatch)
+            || (etag != null && ifMatch.replace("\"", "").equals(etag.replace("\"", "")));
+    }
+
+    private void sendCreated(HttpExchange exchange, StoredBlob stored) throws IOException {
+        Headers responseHeaders = exchange.getResponseHeaders();
+        responseHeaders.add("ETag", stored.etag);
+        responseHeaders.add("Last-Modified", stored.lastModified);
+        responseHeaders.add("x-ms-request-server-encrypted", "true");
+        responseHeaders.add("Content-MD5", md5(stored.content()));
+        addStandardHeaders(exchange);
+        exchange.sendResponseHeaders(201, -1);
+    }
+
+    private static String md5(byte[] data) {
+        try {
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("MD5").digest(data));
+        } catch (Exception e) {
+            throw new IllegalStateException("MD5 unavailable", e);
+        }
+    }
+
+    private static void addStandardHeaders(HttpExchange exchange) {
+        Headers responseHeaders = exchange.getResponseHeaders();
+        responseHeaders.add("x-ms-version", "2020-04-08");
+        responseHeaders.add("x-ms-request-id", java.util.UUID.randomUUID().toString());
+        responseHeaders.add("Date", HTTP_DATE.format(ZonedDateTime.now(ZoneOffset.UTC)));
+    }
+
+    private void sendError(HttpExchange exchange, int status, String code, String message) throws IOException {
+        exchange.getResponseHeaders().add("x-ms-error-code", code);
+        addStandardHeaders(exchange);
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        String xml = "<?xml version=\"1.0\" encoding=\"utf-8\"?><Error><Code>" + code + "</Code><Message>" + message
+            + "</Message></Error>";
+        sendBody(exchange, status, "application/xml", xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void sendBody(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream outputStream = throttle(exchange.getResponseBody())) {
+            outputStream.write(body);
+        }
+    }
+
+    private byte[] readBody(HttpExchange exchange) throws IOException {
+        try (InputStream body = throttle(exchange.getRequestBody())) {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            body.transferTo(data);
+            return data.toByteArray();
+        }
+    }
+
+    private void drain(HttpExchange exchange) throws IOException {
+        try (InputStream body = exchange.getRequestBody()) {
+            body.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new LinkedHashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            int equals = parameter.indexOf('=');
+            String name = URLDecoder.decode(equals < 0 ? parameter : parameter.substring(0, equals), StandardCharsets.UTF_8);
+            String value = equals < 0 ? "" : URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8);
+            query.merge(name, value, (first, second) -> first + "," + second);
+        }
+        return query;
+    }
+
+    private InputStream throttle(InputStream inputStream) {
+        long rate = bandwidthBytesPerSecond;
+        return rate <= 0 ? inputStream : new ThrottledInputStream(inputStream, rate);
+    }
+
+    private OutputStream throttle(OutputStream outputStream) {
+        long rate = bandwidthBytesPerSecond;
+        return rate <= 0 ? outputStream : new ThrottledOutputStream(outputStream, rate);
+    }
+
+    /** Sleeps so that the bytes moved so far never run ahead of {@code rate} bytes per second. */
+    private static void pace(long startNanos, long bytes, long rate) throws IOException {
+        long dueNanos = startNanos + bytes * 1_000_000_000L / rate;
+        long waitNanos = dueNanos - System.nanoTime();
+        if (waitNanos > 0) {
+            try {
+                Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while throttling", e);
+            }
+        }
+    }
+
+    private static final class ThrottledInputStream extends FilterInputStream {
+        private final long rate;
+        private final long start = System.nanoTime();
+        private long bytes;
+
+        ThrottledInputStream(InputStream in, long rate) {
+            super(in);
+            this.rate = rate;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value >= 0) {
+                pace(start, ++bytes, rate);
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            // Small reads keep the pacing smooth
+            int count = super.read(b, off, (int) Math.min(len, Math.max(1024, rate / 20)));
+            if (count > 0) {
+                bytes += count;
+                pace(start, bytes, rate);
+            }
+            return count;
+        }
+    }
+
+    private static final class ThrottledOutputStream extends FilterOutputStream {
+        private final long rate;
+        private final long start = System.nanoTime();
+        private long bytes;
+
+        ThrottledOutputStream(OutputStream out, long rate) {
+            super(out);
+            this.rate = rate;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            pace(start, ++bytes, rate);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int step = (int) Math.max(1024, rate / 20);
+            for (int written = 0; written < len; written += step) {
+                int count = Math.min(step, len - written);
+                out.write(b, off + written, count);
+                bytes += count;
+                pace(start, bytes, rate);
+            }
+        }
+    }
+
+    private static final class Block {
+        final String id;
+        final byte[] data;
+
+        Block(String id, byte[] data) {
+            this.id = id;
+            this.data = data;
+        }
+    }
+
+    /** State of one blob; guarded by its own monitor. */
+    private static final class StoredBlob {
+        final Map<String, byte[]> uncommitted = new LinkedHashMap<>();
+        List<Block> committed = List.of();
+        Map<String, String> properties = Map.of();
+        String etag;
+        String lastModified;
+        // Page blobs only: written 512-byte pages by page index, and the blob's full length
+        TreeMap<Long, byte[]> pages;
+        long pageBlobLength;
+        private byte[] content;
+
+        boolean exists() {
+            return etag != null;
+        }
+
+        String blobType() {
+            return pages != null ? "PageBlob" : "BlockBlob";
+        }
+
+        void commit(List<Block> blocks, String newEtag) {
+            committed = blocks;
+            properties = Map.of();
+            pages = null;
+            touch(newEtag);
+        }
+
+        void createPageBlob(long length, String newEtag) {
+            commit(List.of(), newEtag);
+            pages = new TreeMap<>();
+            pageBlobLength = length;
+        }
+
+        void writePages(long offset, byte[] data) {
+            for (int i = 0; i < data.length; i += 512) {
+                pages.put(offset / 512 + i / 512, Arrays.copyOfRange(data, i, i + 512));
+            }
+        }
+
+        void touch(String newEtag) {
+            content = null;
+            etag = newEtag;
+            lastModified = HTTP_DATE.format(ZonedDateTime.now(ZoneOffset.UTC));
+        }
+
+        byte[] content() {
+            if (content == null && pages != null) {
+                content = new byte[(int) pageBlobLength];
+                for (Map.Entry<Long, byte[]> page : pages.entrySet()) {
+                    System.arraycopy(page.getValue(), 0, content, (int) (page.getKey() * 512), 512);
+                }
+            }
+            if (content == null) {
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                for (Block block : committed) {
+                    data.write(block.data, 0, block.data.length);
+                }
+                content = data.toByteArray();
+            }
+            return content;
+        }
+    }
+
+    /**
+     * Starts a standalone server: {@code LocalBlobServer [port] [--latency-ms N] [--bandwidth BYTES_PER_SEC]
+     * [--error-rate FRACTION] [--seed container/blob SIZE]... [--seed-sparse container/blob SIZE]...}.
+     * Seeded blobs are filled with random bytes; sparse seeds are page blobs with random data in the
+     * first MiB of every 8 MiB.
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 && !args[0].startsWith("--") ? Integer.parseInt(args[0]) : 10000;
+        LocalBlobServer server = new LocalBlobServer(port);
+        Random random = new Random(42);
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--latency-ms":
+                    server.setLatencyMillis(Long.parseLong(args[++i]));
+                    break;
+                case "--bandwidth":
+                    server.setBandwidthBytesPerSecond(Long.parseLong(args[++i]));
+                    break;
+                case "--error-rate":
+                    server.setErrorInjection(Double.parseDouble(args[++i]), 503, 42);
+                    break;
+                case "--seed":
+                    String[] name = args[++i].split("/", 2);
+                    byte[] data = new byte[Integer.parseInt(args[++i])];
+                    random.nextBytes(data);
+                    server.putBlob(name[0], name[1], data);
+                    System.out.println("Seeded " + name[0] + "/" + name[1] + ": " + data.length + " bytes");
+                    break;
+                case "--seed-sparse":
+                    String[] pageBlobName = args[++i].split("/", 2);
+                    long length = Long.parseLong(args[++i]);
+                    server.putPageBlob(pageBlobName[0], pageBlobName[1], length);
+                    for (long offset = 0; offset < length; offset += 8 * 1024 * 1024) {
+                        byte[] pages = new byte[(int) Math.min(1024 * 1024, length - offset)];
+                        random.nextBytes(pages);
+                        server.putPages(pageBlobName[0], pageBlobName[1], offset, pages);
+                    }
+                    System.out.println("Seeded sparse " + pageBlobName[0] + "/" + pageBlobName[1] + ": " + length + " bytes");
+                    break;
+                default:
+                    break;
+            }
+        }
+        server.start();
+        System.out.println("Local blob server listening on " + server.getBlobEndpoint());
+        System.out.println("Connection string: " + server.getConnectionString());
+        Thread.currentThread().join();
+    }
+}
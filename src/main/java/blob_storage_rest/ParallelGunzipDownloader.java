@@ -0,0 +1,127 @@
+package blob_storage_rest;
+
+import com.azure.core.http.rest.Response;
+import com.azure.core.util.Context;
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.BlobServiceClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.models.BlobProperties;
+import com.azure.storage.blob.models.BlobRange;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.azure.storage.blob.models.Block;
+import com.azure.storage.blob.models.BlockListType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Downloads and decompresses a blob written by {@link BlockCompressor}. Every committed block of such
+ * a blob is a complete gzip member, so blocks are fetched as ranges and inflated concurrently, up to
+ * {@code readAheadDepth} blocks ahead of the writer, and written out in order. Any other gzip blob is
+ * decompressed as one sequential stream.
+ */
+public class ParallelGunzipDownloader {
+    private final int concurrency;
+    private final int readAheadDepth;
+
+    public ParallelGunzipDownloader(int concurrency, int readAheadDepth) {
+        this.concurrency = concurrency;
+        this.readAheadDepth = readAheadDepth;
+    }
+
+    /** Writes the decompressed content of {@code blob} to {@code output} and returns its length. */
+    public long download(BlobClient blob, OutputStream output) throws IOException {
+        Response<BlobProperties> response = blob.getPropertiesWithResponse(null, null, Context.NONE);
+        // Every range must come from the same version of the blob
+        BlobRequestConditions sameVersion = new BlobRequestConditions().setIfMatch(response.getValue().getETag());
+        // Read the marker from the headers, which match names case-insensitively; the metadata map does not
+        String blockCompression = response.getHeaders()
+                .getValue("x-ms-meta-" + BlockCompressor.METADATA_BLOCK_COMPRESSION);
+        if (!"gzip".equals(blockCompression)) {
+            try (InputStream inputStream = new GZIPInputStream(blob.openInputStream(null, sameVersion), 64 * 1024)) {
+                return inputStream.transferTo(output);
+            }
+        }
+
+        List<Block> blocks = blob.getBlockBlobClient()
+                .listBlocksWithResponse(BlockListType.COMMITTED, null, null, Context.NONE).getValue()
+                .getCommittedBlocks();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        long offset = 0;
+        long written = 0;
+        try {
+            for (int i = 0; i < blocks.size() || !pending.isEmpty(); ) {
+                // Keep the read-ahead window full, then write out the oldest block
+                while (i < blocks.size() && pending.size() < readAheadDepth) {
+                    BlobRange range = new BlobRange(offset, blocks.get(i).getSizeLong());
+                    pending.add(executor.submit(() -> inflate(blob, range, sameVersion)));
+                    offset += blocks.get(i++).getSizeLong();
+                }
+                byte[] data = pending.poll().get();
+                output.write(data);
+                written += data.length;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decompressing blob", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause
+                    : new IOException("Failed to decompress block: " + cause.getMessage(), cause);
+        } finally {
+            executor.shutdownNow();
+        }
+        return written;
+    }
+
+    private static byte[] inflate(BlobClient blob, BlobRange range, BlobRequestConditions sameVersion)
+            throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream((int) (long) range.getCount());
+        long start = System.nanoTime();
+        blob.downloadStreamWithResponse(compressed, range, null, sameVersion, false, null, Context.NONE);
+        TransferMetrics.get().record(TransferMetrics.Operation.DOWNLOAD_RANGE, start, compressed.size());
+        try (InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+            return inputStream.readAllBytes();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        long startTime = System.currentTimeMillis();
+
+        // Downloads a compressed blob from the target container into a local file of the same name
+        String targetConnectionString = System.getenv("AZURE_STORAGE_CONNECTION_STRING_TARGET");
+        String targetContainerName = "target-container";
+        String blobName = args.length > 0 ? args[0] : "100MB.zip";
+
+        BlobServiceClient targetClient = new BlobServiceClientBuilder()
+                .connectionString(targetConnectionString)
+                .buildClient();
+        BlobClient blob = targetClient.getBlobContainerClient(targetContainerName).getBlobClient(blobName);
+
+        Path localFilePath = Paths.get(blobName);
+        ParallelGunzipDownloader downloader = new ParallelGunzipDownloader(8, 16);
+        long length;
+        try (OutputStream output = Files.newOutputStream(localFilePath)) {
+            length = downloader.download(blob, output);
+        }
+        System.out.println("Decompressed " + length + " bytes to " + localFilePath);
+
+        long endTime = System.currentTimeMillis();
+        System.out.println("Total time taken: " + (endTime - startTime) / 60000.0 + " minutes");
+    }
+}
@@ -0,0 +1,277 @@
+package blob_storage_rest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.http.HttpResponse;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads a blob over several connections at once. The blob is split into byte ranges that are
+ * fetched concurrently with {@code x-ms-range} GETs, up to {@code readAheadDepth} ranges ahead of the
+ * reader, and handed back in source order as a plain {@link InputStream}. Ranges go either over one
+ * blocking connection each on a small thread pool, or through a shared {@link AsyncBlobHttpEngine}.
+ *
+ * <p>Every range after the first is conditional on the ETag the first one returned, so a source
+ * overwritten mid-download fails the read with 412 instead of mixing two versions.
+ */
+public class RangedBlobDownloader {
+
+    /** Adds authentication to a ranged GET, after {@code x-ms-range} and {@code x-ms-version} are set. */
+    @FunctionalInterface
+    public interface RequestSigner {
+        void sign(HttpURLConnection connection, String range) throws Exception;
+    }
+
+    /** For URLs that already carry a SAS token. */
+    public static final RequestSigner NO_SIGNING = (connection, range) -> { };
+
+    private static final String API_VERSION = "2020-04-08";
+
+    private final int rangeSize;
+    private final int connections;
+    private final int readAheadDepth;
+    private final AsyncBlobHttpEngine engine;
+
+    public RangedBlobDownloader(int rangeSize, int connections, int readAheadDepth) {
+        this(rangeSize, connections, readAheadDepth, null);
+    }
+
+    /**
+     * Fetches ranges through {@code engine}, which bounds the connections per host itself; only SAS URLs
+     * are supported, so open the blob with {@link #NO_SIGNING}.
+     */
+    public RangedBlobDownloader(int rangeSize, AsyncBlobHttpEngine engine, int readAheadDepth) {
+        this(rangeSize, 1, readAheadDepth, engine);
+    }
+
+    private RangedBlobDownloader(int rangeSize, int connections, int readAheadDepth, AsyncBlobHttpEngine engine) {
+        if (rangeSize <= 0 || connections <= 0 || readAheadDepth <= 0) {
+            throw new IllegalArgumentException("rangeSize, connections and readAheadDepth must be positive");
+        }
+        this.rangeSize = rangeSize;
+        this.connections = connections;
+        this.readAheadDepth = readAheadDepth;
+        this.engine = engine;
+    }
+
+    /**
+     * Opens the blob at {@code blobUrl}. The first range is fetched before returning so that the blob
+     * length is known from its {@code Content-Range}; the remaining ranges are fetched in the background.
+     */
+    public InputStream open(String blobUrl, RequestSigner signer) throws IOException {
+        return open(blobUrl, signer, 0);
+    }
+
+    /** Opens the blob at {@code blobUrl} from {@code startOffset}, e.g. to resume an interrupted transfer. */
+    public InputStream open(String blobUrl, RequestSigner signer, long startOffset) throws IOException {
+        Range first;
+        if (engine != null) {
+            try {
+                long start = System.nanoTime();
+                first = toRange(AsyncBlobHttpEngine.await(engine.getRange(blobUrl, startOffset, rangeSize, null)),
+                        startOffset, rangeSize, true, start);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for blob range", e);
+            }
+        } else {
+            first = getRange(blobUrl, signer, startOffset, rangeSize, true, null);
+        }
+        return new RangeInputStream(blobUrl, signer, startOffset, first);
+    }
+
+    /** One ranged GET; {@code etag}, if given, makes it conditional on that version of the blob. */
+    private static Range getRange(String blobUrl, RequestSigner signer, long offset, int count, boolean first,
+            String etag) throws IOException {
+        long start = System.nanoTime();
+        String range = "bytes=" + offset + "-" + (offset + count - 1);
+        HttpURLConnection connection;
+        try {
+            connection = (HttpURLConnection) new URI(blobUrl).toURL().openConnection();
+            connection.setRequestMethod("GET");
+            connection.setRequestProperty("x-ms-range", range);
+            connection.setRequestProperty("x-ms-version", API_VERSION);
+            if (etag != null) {
+                connection.setRequestProperty("If-Match", etag);
+            }
+            signer.sign(connection, range);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to prepare ranged GET: " + e.getMessage(), e);
+        }
+
+        int responseCode = connection.getResponseCode();
+        long totalLength = totalLength(responseCode, connection.getHeaderField("Content-Range"),
+                connection.getContentLengthLong(), offset, first, range);
+        if (totalLength < 0) {
+            return new Range(new byte[0], 0, offset, null);
+        }
+
+        int expected = (int) Math.min(totalLength - offset, responseCode == 200 ? totalLength : count);
+        byte[] data = new byte[expected];
+        try (InputStream inputStream = connection.getInputStream()) {
+            int bytesRead = StreamingBlockTransfer.readFully(inputStream, data, expected);
+            if (bytesRead != expected) {
+                throw new IOException("Short read for range " + range + ": " + bytesRead + " of " + expected + " bytes");
+            }
+        }
+        TransferMetrics.get().record(TransferMetrics.Operation.DOWNLOAD_RANGE, start, expected);
+        return new Range(data, expected, totalLength, connection.getHeaderField("ETag"));
+    }
+
+    /** Checks a ranged GET response; {@code startNanos} is when its request was sent. */
+    private static Range toRange(HttpResponse<byte[]> response, long offset, int count, boolean first,
+            long startNanos) throws IOException {
+        String range = "bytes=" + offset + "-" + (offset + count - 1);
+        long totalLength = totalLength(response.statusCode(), response.headers().firstValue("Content-Range").orElse(null),
+                response.headers().firstValueAsLong("Content-Length").orElse(-1), offset, first, range);
+        if (totalLength < 0) {
+            return new Range(new byte[0], 0, offset, null);
+        }
+        int expected = (int) Math.min(totalLength - offset, response.statusCode() == 200 ? totalLength : count);
+        byte[] data = response.body();
+        if (data.length != expected) {
+            throw new IOException("Short read for range " + range + ": " + data.length + " of " + expected + " bytes");
+        }
+        TransferMetrics.get().record(TransferMetrics.Operation.DOWNLOAD_RANGE, startNanos, expected);
+        return new Range(data, expected, totalLength, response.headers().firstValue("ETag").orElse(null));
+    }
+
+    /** Blob length from a ranged GET response, or -1 if nothing exists at or past the start offset. */
+    private static long totalLength(int responseCode, String contentRange, long contentLength, long offset,
+            boolean first, String range) throws IOException {
+        if (responseCode == 206) {
+            // Content-Range: bytes <first>-<last>/<total>
+            return Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1).trim());
+        } else if (responseCode == 200 && offset == 0) {
+            // Range ignored, e.g. an empty blob: the body is the whole blob
+            return contentLength;
+        } else if (responseCode == 416 && first) {
+            return -1;
+        } else if (responseCode == 412) {
+            throw new IOException("Source blob changed during download: range " + range + " failed If-Match (HTTP 412)");
+        }
+        throw new IOException("Failed to download blob range " + range + ": HTTP " + responseCode);
+    }
+
+    private static final class Range {
+        final byte[] data;
+        final int length;
+        final long totalLength;
+        final String etag;
+
+        Range(byte[] data, int length, long totalLength, String etag) {
+            this.data = data;
+            this.length = length;
+            this.totalLength = totalLength;
+            this.etag = etag;
+        }
+    }
+
+    private final class RangeInputStream extends InputStream {
+        private final String blobUrl;
+        private final RequestSigner signer;
+        private final long totalLength;
+        private final String etag;
+        private final ExecutorService executor;
+        private final Deque<Future<Range>> pending = new ArrayDeque<>();
+        private long nextOffset;
+        private Range current;
+        private int position;
+
+        RangeInputStream(String blobUrl, RequestSigner signer, long startOffset, Range first) {
+            this.blobUrl = blobUrl;
+            this.signer = signer;
+            this.totalLength = first.totalLength;
+            this.etag = first.etag;
+            this.current = first;
+            this.nextOffset = startOffset + first.length;
+            this.executor = engine == null ? Executors.newFixedThreadPool(connections) : null;
+            fillReadAhead();
+        }
+
+        private void fillReadAhead() {
+            while (pending.size() < readAheadDepth && nextOffset < totalLength) {
+                long offset = nextOffset;
+                int count = (int) Math.min(rangeSize, totalLength - offset);
+                long start = System.nanoTime();
+                pending.add(engine != null ? engine.getRange(blobUrl, offset, count, etag).thenApply(response -> {
+                    try {
+                        return toRange(response, offset, count, false, start);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }) : executor.submit(() -> getRange(blobUrl, signer, offset, count, false, etag)));
+                nextOffset += count;
+            }
+        }
+
+        private boolean advance() throws IOException {
+            while (current == null || position >= current.length) {
+                Future<Range> next = pending.poll();
+                if (next == null) {
+                    if (executor != null) {
+                        executor.shutdown();
+                    }
+                    return false;
+                }
+                try {
+                    current = next.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for blob range", e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof IOException ? (IOException) cause
+                            : new IOException("Failed to download blob range: " + cause.getMessage(), cause);
+                }
+                position = 0;
+                fillReadAhead();
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!advance()) {
+                return -1;
+            }
+            return current.data[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!advance()) {
+                return -1;
+            }
+            int count = Math.min(len, current.length - position);
+            System.arraycopy(current.data, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+            for (Future<Range> future : pending) {
+                future.cancel(true);
+            }
+            pending.clear();
+            current = null;
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+}
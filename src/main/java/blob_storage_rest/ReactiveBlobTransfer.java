@@ -0,0 +1,229 @@
+package blob_storage_rest;
+
+import com.azure.core.http.HttpClient;
+import com.azure.core.http.HttpHeaders;
+import com.azure.core.http.netty.NettyAsyncHttpClientBuilder;
+import com.azure.core.http.policy.AddHeadersFromContextPolicy;
+import com.azure.core.util.BinaryData;
+import com.azure.storage.blob.BlobAsyncClient;
+import com.azure.storage.blob.BlobContainerAsyncClient;
+import com.azure.storage.blob.BlobServiceAsyncClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.azure.storage.blob.options.BlockBlobSimpleUploadOptions;
+import com.azure.storage.blob.options.BlockBlobStageBlockOptions;
+import com.azure.storage.blob.specialized.BlockBlobAsyncClient;
+import io.netty.channel.nio.NioEventLoopGroup;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking copy between block blobs on the async SDK clients. The source is read as one
+ * {@code Flux<ByteBuffer>} download, cut into fixed-size blocks, and each block is staged as soon as it
+ * is full, with at most {@code concurrency} Put Block requests in flight per blob. Demand flows back
+ * from the stage step to the download, so a slow target stops the source from being read rather than
+ * filling memory: each transfer holds at most about {@code concurrency + 2} blocks. No thread waits on
+ * I/O, so many transfers share the event loop of one HTTP client.
+ *
+ * <p>Block buffers are recycled between blocks and transfers. A block that fails with a transient error
+ * is staged again after a jittered backoff, as {@link HedgedBlockStager} does for the blocking stagers.
+ */
+public class ReactiveBlobTransfer {
+    private final int blockSize;
+    private final int concurrency;
+    private final BlockChecksums checksums;
+    private final long singlePutThreshold = StreamingBlockTransfer.singlePutThreshold();
+    private final Queue<ByteBuffer> freeBlocks = new ConcurrentLinkedQueue<>();
+    private final AtomicLong allocatedBlocks = new AtomicLong();
+    private final AtomicLong transferredBytes = new AtomicLong();
+
+    public ReactiveBlobTransfer(int blockSize, int concurrency, BlockChecksums checksums) {
+        if (blockSize <= 0 || concurrency <= 0) {
+            throw new IllegalArgumentException("blockSize and concurrency must be positive");
+        }
+        this.blockSize = blockSize;
+        this.concurrency = concurrency;
+        this.checksums = checksums;
+    }
+
+    /**
+     * Copies {@code source} to {@code target}, which must not exist yet, and emits the committed block
+     * IDs; a blob under {@link StreamingBlockTransfer#singlePutThreshold()} is sent with a single Put Blob
+     * and emits none. Nothing happens until the result is subscribed to.
+     */
+    public Mono<List<String>> transfer(BlobAsyncClient source, BlockBlobAsyncClient target) {
+        return source.getProperties().flatMap(properties -> properties.getBlobSize() <= singlePutThreshold
+                ? putBlob(source, target, properties.getETag()).thenReturn(List.<String>of())
+                : Flux.defer(() -> rechunk(source.downloadStream()))
+                        .index()
+                        .flatMapSequential(block -> stage(target,
+                                StreamingBlockTransfer.blockId((int) (long) block.getT1()), block.getT2()), concurrency, 1)
+                        .collectList()
+                        .flatMap(blockIds -> commit(target, blockIds)));
+    }
+
+    /** Downloads the whole blob and creates the target from it in one request. */
+    private Mono<Void> putBlob(BlobAsyncClient source, BlockBlobAsyncClient target, String etag) {
+        return source.downloadContentWithResponse(null, new BlobRequestConditions().setIfMatch(etag))
+                .flatMap(response -> {
+                    BinaryData content = response.getValue();
+                    ByteBuffer data = content.toByteBuffer();
+                    int length = data.remaining();
+                    long start = System.nanoTime();
+                    byte[] checksum = checksums.compute(StreamingBlockTransfer.blockId(0), data);
+                    BlockBlobSimpleUploadOptions options = new BlockBlobSimpleUploadOptions(content)
+                            .setContentMd5(checksums.getAlgorithm() == BlockChecksums.Algorithm.MD5 ? checksum : null)
+                            .setRequestConditions(new BlobRequestConditions().setIfNoneMatch("*"));
+                    return withChecksumHeader(target.uploadWithResponse(options), checksum)
+                            .doOnSuccess(ignored -> {
+                                TransferMetrics.get().record(TransferMetrics.Operation.PUT_BLOB, start, length);
+                                transferredBytes.addAndGet(length);
+                            });
+                })
+                .retryWhen(Retry.backoff(4, Duration.ofMillis(200)).maxBackoff(Duration.ofSeconds(10)).jitter(1.0)
+                        .filter(HedgedBlockStager::isRetryable)
+                        .doBeforeRetry(signal -> TransferMetrics.get().recordRetry()))
+                .then();
+    }
+
+    /** Regroups the download's buffers, whatever their size, into full blocks and a final partial one. */
+    private Flux<ByteBuffer> rechunk(Flux<ByteBuffer> download) {
+        ByteBuffer[] filling = new ByteBuffer[1];
+        return download.concatMapIterable(data -> {
+            List<ByteBuffer> full = new ArrayList<>(1);
+            while (data.hasRemaining()) {
+                if (filling[0] == null) {
+                    filling[0] = lease();
+                }
+                ByteBuffer block = filling[0];
+                int count = Math.min(block.remaining(), data.remaining());
+                block.put(data.slice(data.position(), count));
+                data.position(data.position() + count);
+                if (!block.hasRemaining()) {
+                    full.add(block.flip());
+                    filling[0] = null;
+                }
+            }
+            return full;
+        }).concatWith(Mono.fromSupplier(() -> filling[0] == null ? null : filling[0].flip()));
+    }
+
+    private Mono<String> stage(BlockBlobAsyncClient target, String blockId, ByteBuffer block) {
+        int length = block.remaining();
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            byte[] checksum = checksums.compute(blockId, block);
+            BlockBlobStageBlockOptions options = new BlockBlobStageBlockOptions(blockId,
+                    BinaryData.fromByteBuffer(block.duplicate()))
+                    .setContentMd5(checksums.getAlgorithm() == BlockChecksums.Algorithm.MD5 ? checksum : null);
+            return withChecksumHeader(target.stageBlockWithResponse(options), checksum).doOnSuccess(ignored -> {
+                TransferMetrics.get().record(TransferMetrics.Operation.STAGE_BLOCK, start, length);
+                transferredBytes.addAndGet(length);
+            });
+        })
+                .retryWhen(Retry.backoff(4, Duration.ofMillis(200)).maxBackoff(Duration.ofSeconds(10)).jitter(1.0)
+                        .filter(HedgedBlockStager::isRetryable)
+                        .doBeforeRetry(signal -> TransferMetrics.get().recordRetry()))
+                .doFinally(signal -> recycle(block))
+                .thenReturn(blockId);
+    }
+
+    private <T> Mono<T> withChecksumHeader(Mono<T> request, byte[] checksum) {
+        if (checksums.getAlgorithm() != BlockChecksums.Algorithm.CRC64) {
+            return request;
+        }
+        // The async clients pick up request headers from the subscriber context
+        return request.contextWrite(reactor.util.context.Context.of(
+                AddHeadersFromContextPolicy.AZURE_REQUEST_HTTP_HEADERS_KEY,
+                new HttpHeaders().set(checksums.headerName(), Base64.getEncoder().encodeToString(checksum))));
+    }
+
+    private Mono<List<String>> commit(BlockBlobAsyncClient target, List<String> blockIds) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return target.commitBlockList(blockIds, false)
+                    .doOnSuccess(ignored -> TransferMetrics.get().record(
+                            TransferMetrics.Operation.COMMIT_BLOCK_LIST, start, 0));
+        }).thenReturn(blockIds);
+    }
+
+    private ByteBuffer lease() {
+        ByteBuffer block = freeBlocks.poll();
+        if (block == null) {
+            allocatedBlocks.incrementAndGet();
+            block = ByteBuffer.allocate(blockSize);
+        }
+        return block;
+    }
+
+    private void recycle(ByteBuffer block) {
+        freeBlocks.offer(block.clear());
+    }
+
+    /** Summary of this run, for the end-of-transfer report. */
+    public String report() {
+        return String.format("Reactive transfer: %d bytes staged, %d block buffers of %d bytes allocated",
+                transferredBytes.get(), allocatedBlocks.get(), blockSize);
+    }
+
+    public static void main(String[] args) {
+        long startTime = System.currentTimeMillis();
+
+        // Source and target connection strings and containers; the arguments name the blobs to copy concurrently
+        String sourceConnectionString = System.getenv("AZURE_STORAGE_CONNECTION_STRING");
+        String sourceContainerName = "large-blob";
+        String targetConnectionString = System.getenv("AZURE_STORAGE_CONNECTION_STRING_TARGET");
+        String targetContainerName = "target-container";
+        List<String> blobNames = args.length > 0 ? Arrays.asList(args) : List.of("100MB.zip");
+
+        // Every transfer runs on the same two event-loop threads
+        NioEventLoopGroup eventLoop = new NioEventLoopGroup(2);
+        HttpClient httpClient = new NettyAsyncHttpClientBuilder().eventLoopGroup(eventLoop).build();
+        BlobServiceAsyncClient sourceClient = new BlobServiceClientBuilder()
+                .connectionString(sourceConnectionString)
+                .httpClient(httpClient)
+                .buildAsyncClient();
+        // The context-headers policy lets each stageBlock carry its own x-ms-content-crc64 header
+        BlobServiceAsyncClient targetClient = new BlobServiceClientBuilder()
+                .connectionString(targetConnectionString)
+                .httpClient(httpClient)
+                .addPolicy(SyncTransfer.CONTEXT_HEADERS)
+                .addPolicy(TransferMetrics.retryCountingPolicy())
+                .buildAsyncClient();
+        BlobContainerAsyncClient sourceContainer = sourceClient.getBlobContainerAsyncClient(sourceContainerName);
+        BlobContainerAsyncClient targetContainer = targetClient.getBlobContainerAsyncClient(targetContainerName);
+
+        ReactiveBlobTransfer transfer = new ReactiveBlobTransfer(8 * 1024 * 1024, 8, BlockChecksums.fromEnvironment());
+        try {
+            Flux.fromIterable(blobNames)
+                    .flatMap(blobName -> transfer.transfer(sourceContainer.getBlobAsyncClient(blobName),
+                                    targetContainer.getBlobAsyncClient(blobName).getBlockBlobAsyncClient())
+                            .doOnNext(blockIds -> System.out.println("Copied " + blobName + (blockIds.isEmpty()
+                                    ? " with a single Put Blob" : " in " + blockIds.size() + " blocks")))
+                            .onErrorResume(e -> {
+                                System.err.println("Failed to copy " + blobName + ": " + e.getMessage());
+                                return Mono.empty();
+                            }))
+                    .blockLast();
+        } finally {
+            eventLoop.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        }
+        System.out.println(transfer.report());
+
+        long endTime = System.currentTimeMillis();
+        System.out.println("Total time taken: " + (endTime - startTime) / 60000.0 + " minutes");
+        System.out.println("Transfer metrics: " + TransferMetrics.get().snapshot());
+    }
+}
@@ -3,18 +3,39 @@ package blob_storage_rest;
 import com.azure.storage.blob.*;
 import com.azure.storage.common.StorageSharedKeyCredential;
 import com.azure.storage.blob.sas.*;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.util.ArrayList;
-import java.util.Base64;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
 
 public class SASAzureTransferChunks {
-    private static final int CHUNK_SIZE = 4 * 1024 * 1024; // 4MB
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024; // 4MB, starting block size
+    private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024; // 16MB, largest block the controller may pick
+    private static final int MAX_IN_FLIGHT_BLOCKS = 16;
+    private static final long COPY_BLOCK_SIZE = 100 * 1024 * 1024L; // 100MB, grown past 5TB to stay within 50,000 blocks
+    private static final int COPY_CONCURRENCY = 32;
+    private static final String API_VERSION = "2020-04-08";
+    private static final int DOWNLOAD_READ_AHEAD = 16; // ranges buffered ahead of the uploader
+    private static final int MAX_CONNECTIONS_PER_HOST = 64;
+    private static final int HTTP_THREADS = 4;
+
+    // One client for every request, so keep-alive connections are reused across blocks
+    private static final AsyncBlobHttpEngine HTTP = new AsyncBlobHttpEngine(MAX_CONNECTIONS_PER_HOST, HTTP_THREADS);
 
     private static final String SOURCE_STORAGE_CONNECTION_STRING = System.getenv("AZURE_STORAGE_CONNECTION_STRING");
     private static final String DEST_STORAGE_CONNECTION_STRING = System.getenv("AZURE_STORAGE_CONNECTION_STRING_TARGET");
@@ -26,6 +47,8 @@ public class SASAzureTransferChunks {
         String storageAccountKeySource = getAccountKeyFromConnectionString(SOURCE_STORAGE_CONNECTION_STRING);
         String storageAccountNameTarget = getAccountNameFromConnectionString(DEST_STORAGE_CONNECTION_STRING);
         String storageAccountKeyTarget = getAccountKeyFromConnectionString(DEST_STORAGE_CONNECTION_STRING);
+        String blobEndpointSource = getBlobEndpointFromConnectionString(SOURCE_STORAGE_CONNECTION_STRING, storageAccountNameSource);
+        String blobEndpointTarget = getBlobEndpointFromConnectionString(DEST_STORAGE_CONNECTION_STRING, storageAccountNameTarget);
         String sourceContainerName = "large-blob";
         String destinationContainerName = "target-container";
         String sourceBlobName = "RStudio-2023.12.1-402.dmg";
@@ -37,38 +60,74 @@ public class SASAzureTransferChunks {
 
         // Create BlobServiceClient
         BlobServiceClient blobServiceClientSource = new BlobServiceClientBuilder()
-            .endpoint(String.format("https://%s.blob.core.windows.net", storageAccountNameSource))
+            .endpoint(blobEndpointSource)
             .credential(credentialSource)
             .buildClient();
 
         BlobServiceClient blobServiceClientTarget = new BlobServiceClientBuilder()
-            .endpoint(String.format("https://%s.blob.core.windows.net", storageAccountNameTarget))
+            .endpoint(blobEndpointTarget)
             .credential(credentialTarget)
             .buildClient();
 
         // Generate SAS token for the source container
         String sourceSasToken = generateSasToken(blobServiceClientSource, sourceContainerName, BlobSasPermission.parse("r"));
 
+        // Resume an interrupted transfer from its journal with --resume; that needs to read the target block list
+        List<String> options = Arrays.asList(args);
+        boolean resume = options.contains("--resume");
+        Path journalPath = Paths.get(destinationBlobName + ".journal");
+
         // Generate SAS token for the destination container
-        String destinationSasToken = generateSasToken(blobServiceClientTarget, destinationContainerName, BlobSasPermission.parse("w"));
+        String destinationSasToken = generateSasToken(blobServiceClientTarget, destinationContainerName,
+            BlobSasPermission.parse(resume ? "rw" : "w"));
 
         // Source and destination URLs
         String sourceBlobUrl = String.format(
-            "https://%s.blob.core.windows.net/%s/%s?%s",
-            storageAccountNameSource, sourceContainerName, sourceBlobName, sourceSasToken);
+            "%s/%s/%s?%s",
+            blobEndpointSource, sourceContainerName, sourceBlobName, sourceSasToken);
 
         String destinationBlobUrl = String.format(
-            "https://%s.blob.core.windows.net/%s/%s?%s",
-            storageAccountNameTarget, destinationContainerName, destinationBlobName, destinationSasToken);
-
-        // Perform GET and PUT operations in chunks
-        InputStream blobInputStream = getBlob(sourceBlobUrl);
-        transferBlobInChunks(destinationBlobUrl, blobInputStream);
+            "%s/%s/%s?%s",
+            blobEndpointTarget, destinationContainerName, destinationBlobName, destinationSasToken);
+
+        boolean serverCopy = options.contains("--server-copy");
+        // Past about 200 GB blocks grow so that the blob still fits in 50,000 of them
+        HttpURLConnection source = headBlob(sourceBlobUrl);
+        long sourceLength = source.getContentLengthLong();
+        int chunkSize = StreamingBlockTransfer.bufferedBlockSizeFor(sourceLength, CHUNK_SIZE);
+        if (!resume && sourceLength <= StreamingBlockTransfer.singlePutThreshold()) {
+            // Small blobs take one request: Put Blob, or Put Blob From URL with --server-copy
+            putSmallBlob(sourceBlobUrl, destinationBlobUrl, sourceLength, source.getHeaderField("ETag"), serverCopy);
+            System.out.println("Blob transfer completed successfully.");
+            System.out.println("Total time taken: " + (System.currentTimeMillis() - startTime) / 60000.0 + " minutes");
+            System.out.println("Transfer metrics: " + TransferMetrics.get().snapshot());
+            return;
+        }
+        // With TRANSFER_COMPRESSION=gzip each chunk is compressed on its staging thread before it is sent
+        try (BlockCompressor compressor = serverCopy ? null
+                    : BlockCompressor.fromEnvironment(Math.max(MAX_CHUNK_SIZE, chunkSize), MAX_IN_FLIGHT_BLOCKS);
+                TransferJournal journal = resume ? openJournal(journalPath, sourceBlobUrl, destinationBlobUrl,
+                    serverCopy ? Math.toIntExact(copyBlockSizeFor(sourceLength)) : chunkSize, compressor) : null) {
+            if (serverCopy) {
+                // Let the service pull each block straight from the source
+                copyBlobInBlocks(sourceBlobUrl, destinationBlobUrl, journal);
+            } else {
+                // Perform ranged GET and PUT operations in chunks
+                try (InputStream blobInputStream = getBlob(sourceBlobUrl, journal != null ? journal.resumeOffset() : 0)) {
+                    transferBlobInChunks(sourceBlobUrl, destinationBlobUrl, blobInputStream, journal, compressor,
+                        StreamingBlockTransfer.bufferedBlockSizeFor(sourceLength, 1024 * 1024), chunkSize);
+                }
+            }
+            if (journal != null) {
+                journal.delete();
+            }
+        }
         System.out.println("Blob transfer completed successfully.");
         long endTime = System.currentTimeMillis();
 
         // Print total time taken
         System.out.println("Total time taken: " + (endTime - startTime) / 60000.0 + " minutes");
+        System.out.println("Transfer metrics: " + TransferMetrics.get().snapshot());
     }
 
     private static String generateSasToken(BlobServiceClient blobServiceClient, String containerName, BlobSasPermission permissions) {
@@ -85,91 +144,258 @@ public class SASAzureTransferChunks {
         return containerClient.generateSas(values);
     }
 
-    private static InputStream getBlob(String blobUrl) throws Exception {
-        URI uri = new URI(blobUrl);
-        HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
-        connection.setRequestMethod("GET");
+    private static TransferJournal openJournal(Path journalPath, String sourceBlobUrl, String destinationBlobUrl,
+            int blockSize, BlockCompressor compressor) throws Exception {
+        HttpURLConnection source = headBlob(sourceBlobUrl);
+        // Compressed and plain blocks must not be mixed in one blob, so the encoding is part of the source ID
+        String sourceId = sourceBlobUrl.substring(0, sourceBlobUrl.indexOf('?')) + "#" + source.getHeaderField("ETag")
+            + (compressor != null ? "#" + compressor.contentEncoding() : "");
+        TransferJournal journal = TransferJournal.open(journalPath, sourceId, source.getContentLengthLong(), blockSize);
+        // Only trust journaled blocks the target still holds
+        journal.reconcile(getUncommittedBlocks(destinationBlobUrl), StreamingBlockTransfer::blockId);
+        System.out.println("Resuming with " + journal.stagedCount() + " blocks already staged.");
+        return journal;
+    }
 
-        int responseCode = connection.getResponseCode();
-        if (responseCode == 200) {
-            return connection.getInputStream();
+    private static InputStream getBlob(String blobUrl, long startOffset) throws Exception {
+        // One range per block, fetched concurrently through the shared engine and handed back in order
+        RangedBlobDownloader downloader = new RangedBlobDownloader(CHUNK_SIZE, HTTP, DOWNLOAD_READ_AHEAD);
+        return downloader.open(blobUrl, RangedBlobDownloader.NO_SIGNING, startOffset);
+    }
+
+    private static void transferBlobInChunks(String sourceBlobUrl, String blobUrl, InputStream blobInputStream,
+            TransferJournal journal, BlockCompressor compressor, int minChunkSize, int chunkSize) throws Exception {
+        // Blocks go up concurrently; the controller settles block size and blocks in flight for the link.
+        // A resumed transfer keeps the journal's fixed block size.
+        int maxChunkSize = Math.max(MAX_CHUNK_SIZE, chunkSize);
+        ChunkBufferPool bufferPool = new ChunkBufferPool(journal != null ? chunkSize : maxChunkSize,
+            MAX_IN_FLIGHT_BLOCKS, false);
+        AdaptiveTransferController controller = new AdaptiveTransferController(minChunkSize, chunkSize, maxChunkSize,
+            2, 4, MAX_IN_FLIGHT_BLOCKS);
+        StreamingBlockTransfer transfer = new StreamingBlockTransfer(bufferPool, MAX_IN_FLIGHT_BLOCKS);
+        transfer.setController(controller);
+        transfer.setCompressor(compressor);
+        BlockChecksums checksums = BlockChecksums.fromEnvironment();
+
+        // Failed blocks are retried and slow ones hedged, so no single request holds up the commit
+        HedgedBlockStager stager = HedgedBlockStager.fromEnvironment((blockId, data) -> uploadBlock(blobUrl,
+            data, blockId, checksums));
+        stager.setRetryListener(controller::recordFailure);
+        List<String> blockIds = transfer.transfer(blobInputStream, stager, journal);
+        System.out.println(controller.report());
+        System.out.println(stager.report());
+
+        if (compressor == null) {
+            commitBlocks(blobUrl, blockIds);
         } else {
-            throw new RuntimeException("Failed to download blob: HTTP " + responseCode);
+            commitBlocks(blobUrl, blockIds, compressor, headBlob(sourceBlobUrl).getContentLengthLong());
+            System.out.println(compressor.report());
         }
+        System.out.println("Blob digest: " + checksums.blobDigest(blockIds));
     }
 
-    private static void transferBlobInChunks(String blobUrl, InputStream blobInputStream) throws Exception {
-        byte[] buffer = new byte[CHUNK_SIZE];
-        int bytesRead;
-        int blockIdCount = 0;
-        List<String> blockIds = new ArrayList<>();
+    /**
+     * Copies a blob under the single-put threshold in one write request, checksummed and compressed as a
+     * single block would be; with {@code serverCopy} the service reads the source itself, provided it
+     * still has {@code sourceEtag}.
+     */
+    private static void putSmallBlob(String sourceBlobUrl, String destinationBlobUrl, long sourceLength,
+            String sourceEtag, boolean serverCopy) throws Exception {
+        if (serverCopy) {
+            long start = System.nanoTime();
+            awaitCopy(HTTP.putBlobFromUrl(destinationBlobUrl, sourceBlobUrl, sourceEtag), "Put Blob From URL");
+            TransferMetrics.get().record(TransferMetrics.Operation.PUT_BLOB, start, sourceLength);
+            return;
+        }
+        byte[] content;
+        try (InputStream blobInputStream = getBlob(sourceBlobUrl, 0)) {
+            content = blobInputStream.readAllBytes();
+        }
+        BlockChecksums checksums = BlockChecksums.fromEnvironment();
+        try (BlockCompressor compressor = BlockCompressor.fromEnvironment(content.length, 1);
+                BlockCompressor.CompressedBlock compressed = compressor != null
+                    ? compressor.compress(ByteBuffer.wrap(content)) : null) {
+            putBlob(destinationBlobUrl, compressed != null ? compressed.data() : ByteBuffer.wrap(content), content.length,
+                checksums, compressor);
+        }
+    }
 
-        while ((bytesRead = readFully(blobInputStream, buffer, CHUNK_SIZE)) > 0) {
-            String blockId = Base64.getEncoder().encodeToString(String.format("%05d", blockIdCount).getBytes());
-            blockIds.add(blockId);
-            uploadBlock(blobUrl, buffer, bytesRead, blockId);
-            System.out.println("Block id count " + blockIdCount + ": " + bytesRead + " bytes");
-            blockIdCount++;
+    private static void putBlob(String destinationBlobUrl, ByteBuffer body, int uncompressedLength,
+            BlockChecksums checksums, BlockCompressor compressor) throws Exception {
+        Map<String, String> headers = new HashMap<>();
+        String checksum = checksums.computeHeader(StreamingBlockTransfer.blockId(0), body);
+        if (checksum != null) {
+            headers.put(checksums.headerName(), checksum);
+        }
+        if (compressor != null) {
+            headers.put("x-ms-blob-content-encoding", compressor.contentEncoding());
+            compressor.metadata(uncompressedLength).forEach((name, value) -> headers.put("x-ms-meta-" + name, value));
         }
+        int length = body.remaining();
+        long start = System.nanoTime();
+        AsyncBlobHttpEngine.await(HTTP.putBlob(destinationBlobUrl, body, headers));
+        TransferMetrics.get().record(TransferMetrics.Operation.PUT_BLOB, start, length);
+        System.out.println("Blob digest: " + checksums.blobDigest(List.of(StreamingBlockTransfer.blockId(0))));
+        if (compressor != null) {
+            System.out.println(compressor.report());
+        }
+    }
 
-        commitBlocks(blobUrl, blockIds);
+    /**
+     * Copies the source into the destination with Put Block From URL: every block is staged by the
+     * service reading a range of {@code sourceBlobUrl} itself, so no blob data passes through this JVM.
+     * Both URLs must carry a SAS; blocks are issued concurrently and committed in order. Every block is
+     * pinned to the source ETag read at the start, so a source overwritten mid-copy fails the copy with
+     * 412 instead of committing blocks from two versions.
+     */
+    static void copyBlobInBlocks(String sourceBlobUrl, String destinationBlobUrl) throws Exception {
+        copyBlobInBlocks(sourceBlobUrl, destinationBlobUrl, null);
     }
 
-    private static int readFully(InputStream input, byte[] buffer, int chunkSize) throws Exception {
-        int totalBytesRead = 0;
-        int bytesRead;
-        while (totalBytesRead < chunkSize && (bytesRead = input.read(buffer, totalBytesRead, chunkSize - totalBytesRead)) != -1) {
-            totalBytesRead += bytesRead;
+    /** As {@link #copyBlobInBlocks(String, String)}, skipping and recording blocks in {@code journal} if given. */
+    static void copyBlobInBlocks(String sourceBlobUrl, String destinationBlobUrl, TransferJournal journal)
+            throws Exception {
+        HttpURLConnection source = headBlob(sourceBlobUrl);
+        long sourceLength = source.getContentLengthLong();
+        String sourceEtag = source.getHeaderField("ETag");
+        long blockSize = copyBlockSizeFor(sourceLength);
+        if (journal != null && journal.getBlockSize() != blockSize) {
+            throw new IllegalArgumentException("Journal block size does not match the copy block size");
         }
-        return totalBytesRead;
+        int blockCount = (int) ((sourceLength + blockSize - 1) / blockSize);
+        List<String> blockIds = new ArrayList<>();
+
+        try (BlockStagingExecutor executor = new BlockStagingExecutor(COPY_CONCURRENCY)) {
+            for (int i = 0; i < blockCount && !executor.hasFailed(); i++) {
+                int index = i;
+                String blockId = StreamingBlockTransfer.blockId(index);
+                long offset = i * blockSize;
+                long count = Math.min(blockSize, sourceLength - offset);
+                blockIds.add(blockId);
+                if (journal != null && journal.isStaged(index)) {
+                    continue;
+                }
+                executor.submit(() -> {
+                    uploadBlockFromUrl(destinationBlobUrl, sourceBlobUrl, sourceEtag, offset, count, blockId);
+                    if (journal != null) {
+                        journal.recordStaged(index);
+                    }
+                    return null;
+                });
+            }
+            // Throws if any block copy failed, so a partial block list is never committed
+            executor.awaitAll();
+        }
+
+        commitBlocks(destinationBlobUrl, blockIds);
     }
 
+    /** Block size for Put Block From URL: {@link #COPY_BLOCK_SIZE}, or larger if the blob needs it. */
+    private static long copyBlockSizeFor(long sourceLength) {
+        return StreamingBlockTransfer.blockSizeFor(sourceLength, COPY_BLOCK_SIZE);
+    }
 
-    private static void uploadBlock(String blobUrl, byte[] data, int dataLength, String blockId) throws Exception {
-        String blockUrl = blobUrl + "&comp=block&blockid=" + blockId;
-        URI uri = new URI(blockUrl);
+    static HttpURLConnection headBlob(String blobUrl) throws Exception {
+        URI uri = new URI(blobUrl);
         HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
-        connection.setRequestMethod("PUT");
-        connection.setDoOutput(true);
-
-        try (OutputStream outStream = connection.getOutputStream()) {
-            outStream.write(data, 0, dataLength);
-        }
+        connection.setRequestMethod("HEAD");
 
         int responseCode = connection.getResponseCode();
-        if (responseCode != 201) {
-            throw new RuntimeException("Failed to upload block: HTTP " + responseCode);
+        if (responseCode != 200) {
+            throw new RuntimeException("Failed to read blob properties: HTTP " + responseCode);
         }
+        return connection;
     }
 
-    private static void commitBlocks(String blobUrl, List<String> blockIds) throws Exception {
-        String blockListXml = buildBlockListXml(blockIds);
-        String commitUrl = blobUrl + "&comp=blocklist";
-        URI uri = new URI(commitUrl);
+    private static Map<String, Long> getUncommittedBlocks(String blobUrl) throws Exception {
+        URI uri = new URI(blobUrl + "&comp=blocklist&blocklisttype=uncommitted");
         HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
-        connection.setRequestMethod("PUT");
-        connection.setDoOutput(true);
-        connection.setRequestProperty("Content-Type", "application/xml");
+        connection.setRequestMethod("GET");
+        connection.setRequestProperty("x-ms-version", API_VERSION);
 
-        try (OutputStream outStream = connection.getOutputStream()) {
-            outStream.write(blockListXml.getBytes());
+        Map<String, Long> blocks = new HashMap<>();
+        int responseCode = connection.getResponseCode();
+        if (responseCode == 404) {
+            return blocks; // nothing staged yet
+        }
+        if (responseCode != 200) {
+            throw new RuntimeException("Failed to get block list: HTTP " + responseCode);
+        }
+        Document blockList;
+        try (InputStream inputStream = connection.getInputStream()) {
+            blockList = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(inputStream);
         }
+        NodeList uncommitted = blockList.getElementsByTagName("Block");
+        for (int i = 0; i < uncommitted.getLength(); i++) {
+            Element block = (Element) uncommitted.item(i);
+            blocks.put(block.getElementsByTagName("Name").item(0).getTextContent(),
+                Long.parseLong(block.getElementsByTagName("Size").item(0).getTextContent()));
+        }
+        return blocks;
+    }
 
-        int responseCode = connection.getResponseCode();
-        if (responseCode != 201) {
-            throw new RuntimeException("Failed to commit blocks: HTTP " + responseCode);
+    private static void uploadBlockFromUrl(String blobUrl, String sourceBlobUrl, String sourceEtag, long offset,
+            long count, String blockId) throws Exception {
+        long start = System.nanoTime();
+        awaitCopy(HTTP.putBlockFromUrl(blobUrl, sourceBlobUrl, offset, count, blockId, sourceEtag), "block " + blockId);
+        TransferMetrics.get().record(TransferMetrics.Operation.STAGE_BLOCK, start, count);
+    }
+
+    /** Waits for a copy from URL; 412 means the source no longer has the ETag the copy was pinned to. */
+    private static void awaitCopy(CompletableFuture<Void> copy, String what) throws Exception {
+        try {
+            AsyncBlobHttpEngine.await(copy);
+        } catch (AsyncBlobHttpEngine.HttpStatusException e) {
+            if (e.getStatusCode() == 412) {
+                throw new IOException("Source blob changed during copy: " + what
+                    + " failed x-ms-source-if-match (HTTP 412)", e);
+            }
+            throw e;
         }
     }
 
-    private static String buildBlockListXml(List<String> blockIds) {
-        StringBuilder xmlBuilder = new StringBuilder();
-        xmlBuilder.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>");
-        xmlBuilder.append("<BlockList>");
-        for (String blockId : blockIds) {
-            xmlBuilder.append("<Latest>").append(blockId).append("</Latest>");
+    /** Stages the bytes between {@code data}'s position and limit; the request body is sent from the buffer itself. */
+    static void uploadBlock(String blobUrl, ByteBuffer data, String blockId) throws Exception {
+        int length = data.remaining();
+        long start = System.nanoTime();
+        AsyncBlobHttpEngine.await(HTTP.putBlock(blobUrl, blockId, data));
+        TransferMetrics.get().record(TransferMetrics.Operation.STAGE_BLOCK, start, length);
+    }
+
+    /** As {@link #uploadBlock(String, ByteBuffer, String)}, sending the block's transactional checksum. */
+    static void uploadBlock(String blobUrl, ByteBuffer data, String blockId, BlockChecksums checksums) throws Exception {
+        String checksum = checksums.computeHeader(blockId, data);
+        int length = data.remaining();
+        long start = System.nanoTime();
+        AsyncBlobHttpEngine.await(HTTP.putBlock(blobUrl, blockId, data, checksums.headerName(), checksum));
+        TransferMetrics.get().record(TransferMetrics.Operation.STAGE_BLOCK, start, length);
+    }
+
+    static void commitBlocks(String blobUrl, List<String> blockIds) throws Exception {
+        long start = System.nanoTime();
+        AsyncBlobHttpEngine.await(HTTP.putBlockList(blobUrl, blockIds));
+        TransferMetrics.get().record(TransferMetrics.Operation.COMMIT_BLOCK_LIST, start, 0);
+    }
+
+    /** Commits compressed blocks with the blob's content encoding and its length before compression. */
+    private static void commitBlocks(String blobUrl, List<String> blockIds, BlockCompressor compressor,
+            long uncompressedLength) throws Exception {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("x-ms-blob-content-encoding", compressor.contentEncoding());
+        compressor.metadata(uncompressedLength).forEach((name, value) -> headers.put("x-ms-meta-" + name, value));
+        long start = System.nanoTime();
+        AsyncBlobHttpEngine.await(HTTP.putBlockList(blobUrl, blockIds, headers));
+        TransferMetrics.get().record(TransferMetrics.Operation.COMMIT_BLOCK_LIST, start, 0);
+    }
+
+    private static String getBlobEndpointFromConnectionString(String connectionString, String accountName) {
+        // An explicit BlobEndpoint (e.g. a LocalBlobServer) takes precedence over the public endpoint
+        for (String part : connectionString.split(";")) {
+            if (part.startsWith("BlobEndpoint=")) {
+                return part.substring("BlobEndpoint=".length()).replaceAll("/+$", "");
+            }
         }
-        xmlBuilder.append("</BlockList>");
-        return xmlBuilder.toString();
+        return String.format("https://%s.blob.core.windows.net", accountName);
     }
 
     private static String getAccountNameFromConnectionString(String connectionString) {
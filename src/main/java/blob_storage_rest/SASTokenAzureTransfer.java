@@ -10,17 +10,23 @@ import java.net.HttpURLConnection;
 import java.net.URI;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
+import java.util.List;
 
 public class SASTokenAzureTransfer {
     private static final String SOURCE_STORAGE_CONNECTION_STRING = System.getenv("AZURE_STORAGE_CONNECTION_STRING");
     private static final String DEST_STORAGE_CONNECTION_STRING = System
     .getenv("AZURE_STORAGE_CONNECTION_STRING_TARGET");
+    private static final int DOWNLOAD_RANGE_SIZE = 4 * 1024 * 1024; // 4MB
+    private static final int DOWNLOAD_CONNECTIONS = 8;
+    private static final int DOWNLOAD_READ_AHEAD = 16;
     public static void main(String[] args) throws Exception {
 
         String storageAccountNameSource = getAccountNameFromConnectionString(SOURCE_STORAGE_CONNECTION_STRING);
         String storageAccountKeySource = getAccountKeyFromConnectionString(SOURCE_STORAGE_CONNECTION_STRING);
         String storageAccountNameTarget = getAccountNameFromConnectionString(DEST_STORAGE_CONNECTION_STRING);
         String storageAccountKeyTarget = getAccountKeyFromConnectionString(DEST_STORAGE_CONNECTION_STRING);
+        String blobEndpointSource = getBlobEndpointFromConnectionString(SOURCE_STORAGE_CONNECTION_STRING, storageAccountNameSource);
+        String blobEndpointTarget = getBlobEndpointFromConnectionString(DEST_STORAGE_CONNECTION_STRING, storageAccountNameTarget);
         String sourceContainerName = "large-blob";
         String destinationContainerName = "target-container";
         String sourceBlobName =  "UniversityTimeTable.jpeg";
@@ -32,12 +38,12 @@ public class SASTokenAzureTransfer {
 
         // Create BlobServiceClient
         BlobServiceClient blobServiceClient1 = new BlobServiceClientBuilder()
-            .endpoint(String.format("https://%s.blob.core.windows.net", storageAccountNameSource))
+            .endpoint(blobEndpointSource)
             .credential(credential_source)
             .buildClient();
 
         BlobServiceClient blobServiceClient2 = new BlobServiceClientBuilder()
-            .endpoint(String.format("https://%s.blob.core.windows.net", storageAccountNameTarget))
+            .endpoint(blobEndpointTarget)
             .credential(credential_target)
             .buildClient();
 
@@ -49,16 +55,22 @@ public class SASTokenAzureTransfer {
 
         // Source and destination URLs
         String sourceBlobUrl = String.format(
-            "https://%s.blob.core.windows.net/%s/%s?%s",
-            storageAccountNameSource, sourceContainerName, sourceBlobName, sourceSasToken);
+            "%s/%s/%s?%s",
+            blobEndpointSource, sourceContainerName, sourceBlobName, sourceSasToken);
 
         String destinationBlobUrl = String.format(
-            "https://%s.blob.core.windows.net/%s/%s?%s",
-            storageAccountNameTarget, destinationContainerName, destinationBlobName, destinationSasToken);
-
-        // Perform GET and PUT operations
-        InputStream blobInputStream = getBlob(sourceBlobUrl);
-        putBlob(destinationBlobUrl, blobInputStream);
+            "%s/%s/%s?%s",
+            blobEndpointTarget, destinationContainerName, destinationBlobName, destinationSasToken);
+
+        // Perform GET and PUT operations: one Put Blob for a small blob, staged blocks and a commit above the threshold
+        long sourceLength = SASAzureTransferChunks.headBlob(sourceBlobUrl).getContentLengthLong();
+        try (InputStream blobInputStream = getBlob(sourceBlobUrl)) {
+            if (sourceLength <= StreamingBlockTransfer.singlePutThreshold()) {
+                putBlob(destinationBlobUrl, blobInputStream, sourceLength);
+            } else {
+                putBlocks(destinationBlobUrl, blobInputStream, sourceLength);
+            }
+        }
         System.out.println("Blob transfer completed successfully.");
     }
 
@@ -77,24 +89,18 @@ public class SASTokenAzureTransfer {
     }
 
     private static InputStream getBlob(String blobUrl) throws Exception {
-URI uri = new URI(blobUrl);
-HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
-        connection.setRequestMethod("GET");
-
-        int responseCode = connection.getResponseCode();
-        if (responseCode == 200) {
-            return connection.getInputStream();
-        } else {
-            throw new RuntimeException("Failed to download blob: HTTP " + responseCode);
-        }
+        RangedBlobDownloader downloader = new RangedBlobDownloader(DOWNLOAD_RANGE_SIZE, DOWNLOAD_CONNECTIONS, DOWNLOAD_READ_AHEAD);
+        return downloader.open(blobUrl, RangedBlobDownloader.NO_SIGNING);
     }
 
-    private static void putBlob(String blobUrl, InputStream blobInputStream) throws Exception {
+    private static void putBlob(String blobUrl, InputStream blobInputStream, long length) throws Exception {
         URI uri = new URI(blobUrl);
         System.out.println(blobUrl);
         HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
         connection.setRequestMethod("PUT");
         connection.setDoOutput(true);
+        // Sent with a Content-Length rather than chunked, as Put Blob requires
+        connection.setFixedLengthStreamingMode(length);
         connection.setRequestProperty("x-ms-blob-type", "BlockBlob");
 
         byte[] buffer = new byte[8192];
@@ -110,6 +116,24 @@ HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
             throw new RuntimeException("Failed to upload blob: HTTP " + responseCode);
         }
     }
+
+    private static void putBlocks(String blobUrl, InputStream blobInputStream, long length) throws Exception {
+        StreamingBlockTransfer transfer = new StreamingBlockTransfer(
+                StreamingBlockTransfer.bufferedBlockSizeFor(length, DOWNLOAD_RANGE_SIZE), DOWNLOAD_CONNECTIONS);
+        List<String> blockIds = transfer.transfer(blobInputStream, HedgedBlockStager.fromEnvironment(
+                (blockId, data) -> SASAzureTransferChunks.uploadBlock(blobUrl, data, blockId)));
+        SASAzureTransferChunks.commitBlocks(blobUrl, blockIds);
+    }
+    private static String getBlobEndpointFromConnectionString(String connectionString, String accountName) {
+        // An explicit BlobEndpoint (e.g. a LocalBlobServer) takes precedence over the public endpoint
+        for (String part : connectionString.split(";")) {
+            if (part.startsWith("BlobEndpoint=")) {
+                return part.substring("BlobEndpoint=".length()).replaceAll("/+$", "");
+            }
+        }
+        return String.format("https://%s.blob.core.windows.net", accountName);
+    }
+
     private static String getAccountNameFromConnectionString(String connectionString) {
         String[] parts = connectionString.split(";");
         for (String part : parts) {
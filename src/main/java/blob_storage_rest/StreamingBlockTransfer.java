@@ -0,0 +1,283 @@
+package blob_storage_rest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Streams a source into staged blocks without holding the whole blob in memory.
+ * The reader fills a buffer leased from a {@link ChunkBufferPool} and hands it to
+ * a {@link BlockStagingExecutor}, which blocks the reader while too many blocks
+ * are in flight; the buffer goes back to the pool once its block is staged. At
+ * most {@code maxInFlightBlocks} chunks are alive at once, and download and upload
+ * overlap.
+ */
+public class StreamingBlockTransfer {
+
+    /**
+     * Stages one block on the target, e.g. {@code BlockBlobClient.stageBlock} or a raw Put Block.
+     * {@code data} holds the block between its position and limit and must not be kept after returning.
+     */
+    @FunctionalInterface
+    public interface BlockStager {
+        void stage(String blockId, ByteBuffer data) throws Exception;
+    }
+
+    /** Most blocks a block blob may have. */
+    static final int MAX_BLOCKS = 50_000;
+    /** Largest block the service accepts. */
+    static final long MAX_BLOCK_SIZE = 4000L * 1024 * 1024;
+    /** Largest whole-MiB block a heap buffer can hold. */
+    static final int MAX_BUFFERED_BLOCK_SIZE = 2047 * 1024 * 1024;
+    /** Length of every ID {@link #blockId} returns. */
+    static final int BLOCK_ID_LENGTH = 8;
+    private static final long MIB = 1024 * 1024;
+    private static final byte[] DIGIT_GROUPS = digitGroups();
+
+    private final ChunkBufferPool bufferPool;
+    private final int maxInFlightBlocks;
+    private AdaptiveTransferController controller;
+    private BlockCompressor compressor;
+
+    public StreamingBlockTransfer(int chunkSize, int maxInFlightBlocks) {
+        this(new ChunkBufferPool(chunkSize, maxInFlightBlocks, false), maxInFlightBlocks);
+    }
+
+    /**
+     * Uses chunks of the pool's buffer size; the pool may be shared with other transfers. Each in-flight
+     * block is staged on its own virtual thread, so {@code maxInFlightBlocks} is also the upload concurrency.
+     */
+    public StreamingBlockTransfer(ChunkBufferPool bufferPool, int maxInFlightBlocks) {
+        if (maxInFlightBlocks <= 0) {
+            throw new IllegalArgumentException("maxInFlightBlocks must be positive");
+        }
+        this.bufferPool = bufferPool;
+        this.maxInFlightBlocks = maxInFlightBlocks;
+    }
+
+    public ChunkBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Lets {@code controller} pick the block size (up to the pool's buffer size) and the number of
+     * blocks in flight (up to {@code maxInFlightBlocks}) as the transfer runs. Journaled transfers keep the
+     * journal's fixed block size and only adapt concurrency.
+     */
+    public void setController(AdaptiveTransferController controller) {
+        this.controller = controller;
+    }
+
+    /**
+     * Compresses every block with {@code compressor} on its staging thread before it is staged. The
+     * compressor should hold as many blocks as this transfer has in flight, of up to the pool's buffer size.
+     */
+    public void setCompressor(BlockCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    /**
+     * Reads {@code source} to the end, staging every chunk through {@code stager}.
+     *
+     * @return the block IDs in source order, ready for a commit
+     */
+    public List<String> transfer(InputStream source, BlockStager stager) throws IOException {
+        return transfer(source, stager, null);
+    }
+
+    /**
+     * Runs or resumes a transfer recorded in {@code journal}: {@code source} must be positioned at
+     * {@link TransferJournal#resumeOffset()}. Blocks the journal already holds are read past without
+     * being staged, and every newly staged block is recorded in it.
+     *
+     * @return the block IDs of the whole source in order, including those staged by earlier runs
+     */
+    public List<String> transfer(InputStream source, BlockStager stager, TransferJournal journal) throws IOException {
+        if (journal != null && journal.getBlockSize() != bufferPool.getBufferSize()) {
+            throw new IllegalArgumentException("Journal block size does not match the chunk size");
+        }
+        int index = journal != null ? journal.firstMissingIndex() : 0;
+        List<String> blockIds = new ArrayList<>();
+        for (int i = 0; i < index; i++) {
+            blockIds.add(blockId(i));
+        }
+        // Direct buffers have no backing array, so read them through a channel
+        ReadableByteChannel channel = bufferPool.isDirect() ? Channels.newChannel(source) : null;
+
+        try (BlockStagingExecutor executor = new BlockStagingExecutor(maxInFlightBlocks)) {
+            while (!executor.hasFailed()) {
+                if (controller != null) {
+                    executor.setMaxConcurrentBlocks(Math.min(controller.getConcurrency(), maxInFlightBlocks));
+                }
+                ByteBuffer buffer = bufferPool.lease();
+                if (controller != null && journal == null) {
+                    buffer.limit(Math.min(controller.getBlockSize(), buffer.capacity()));
+                }
+                int bytesRead;
+                try {
+                    bytesRead = channel != null ? readFully(channel, buffer) : readFully(source, buffer);
+                } catch (IOException e) {
+                    bufferPool.release(buffer);
+                    throw e;
+                }
+                if (bytesRead <= 0) {
+                    bufferPool.release(buffer);
+                    break;
+                }
+                buffer.flip();
+                int blockIndex = index++;
+                String blockId = blockId(blockIndex);
+                blockIds.add(blockId);
+                if (journal != null && journal.isStaged(blockIndex)) {
+                    bufferPool.release(buffer);
+                    continue;
+                }
+                // Blocks here while maxInFlightBlocks chunks are still being staged
+                executor.submit(() -> {
+                    int stagedLength = stage(stager, blockId, buffer);
+                    if (journal != null) {
+                        journal.recordStaged(blockIndex, stagedLength);
+                    }
+                    return null;
+                }, () -> bufferPool.release(buffer));
+            }
+            executor.awaitAll();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while staging blocks", e);
+        }
+        return blockIds;
+    }
+
+    /**
+     * Stages one block, compressed if a compressor is set, and returns its length as staged. The
+     * controller sees the source length and the time including compression.
+     */
+    private int stage(BlockStager stager, String blockId, ByteBuffer buffer) throws Exception {
+        int length = buffer.remaining();
+        long start = System.nanoTime();
+        int stagedLength;
+        try {
+            if (compressor == null) {
+                stager.stage(blockId, buffer);
+                stagedLength = length;
+            } else {
+                try (BlockCompressor.CompressedBlock compressed = compressor.compress(buffer)) {
+                    stager.stage(blockId, compressed.data());
+                    stagedLength = compressed.length();
+                }
+            }
+        } catch (Exception e) {
+            if (controller != null) {
+                controller.recordFailure();
+            }
+            throw e;
+        }
+        if (controller != null) {
+            controller.recordBlock(length, System.nanoTime() - start);
+        }
+        return stagedLength;
+    }
+
+    /**
+     * Largest blob that engines send with a single Put Blob rather than staged blocks and a block list:
+     * {@code TRANSFER_SINGLE_PUT_MIB} (default 4). Below it the extra round trip of the block list costs
+     * more than parallel blocks save. The body is held in memory, so it stays under 2 GiB.
+     */
+    static long singlePutThreshold() {
+        String threshold = System.getenv("TRANSFER_SINGLE_PUT_MIB");
+        long bytes = threshold == null || threshold.isEmpty() ? 4 * MIB : (long) (Double.parseDouble(threshold) * MIB);
+        return Math.min(bytes, MAX_BUFFERED_BLOCK_SIZE);
+    }
+
+    /**
+     * Smallest block size, at least {@code preferredBlockSize} and otherwise a whole number of MiB, that
+     * fits {@code sourceLength} bytes into {@link #MAX_BLOCKS} blocks.
+     *
+     * @throws IllegalArgumentException if even {@link #MAX_BLOCK_SIZE} blocks are too small
+     */
+    static long blockSizeFor(long sourceLength, long preferredBlockSize) {
+        long needed = (sourceLength + MAX_BLOCKS - 1) / MAX_BLOCKS;
+        long blockSize = needed <= preferredBlockSize ? preferredBlockSize : (needed + MIB - 1) / MIB * MIB;
+        if (blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("A blob of " + sourceLength + " bytes exceeds "
+                    + MAX_BLOCKS + " blocks of " + MAX_BLOCK_SIZE + " bytes");
+        }
+        return blockSize;
+    }
+
+    /** As {@link #blockSizeFor(long, long)}, for blocks that are held in a buffer and so stay under 2 GiB. */
+    static int bufferedBlockSizeFor(long sourceLength, int preferredBlockSize) {
+        long blockSize = blockSizeFor(sourceLength, preferredBlockSize);
+        if (blockSize > MAX_BUFFERED_BLOCK_SIZE) {
+            throw new IllegalArgumentException("A blob of " + sourceLength + " bytes needs blocks of " + blockSize
+                    + " bytes, more than a buffer holds; copy it with Put Block From URL instead");
+        }
+        return (int) blockSize;
+    }
+
+    /**
+     * The ID of the block at {@code index}: Base64 of the index as six ASCII digits, so every ID has the
+     * same length as the service requires. Looked up from a table rather than formatted, so the only
+     * allocation is the string itself.
+     */
+    static String blockId(int index) {
+        byte[] id = new byte[BLOCK_ID_LENGTH];
+        writeBlockId(index, id, 0);
+        return new String(id, StandardCharsets.ISO_8859_1);
+    }
+
+    /** Writes the {@link #BLOCK_ID_LENGTH} ASCII characters of {@link #blockId} into {@code target}. */
+    static void writeBlockId(int index, byte[] target, int offset) {
+        if (index < 0 || index >= MAX_BLOCKS) {
+            throw new IllegalArgumentException("Block index " + index + " is outside the " + MAX_BLOCKS + "-block limit");
+        }
+        // Six digits are two groups of three, and three bytes encode to exactly four Base64 characters
+        System.arraycopy(DIGIT_GROUPS, index / 1000 * 4, target, offset, 4);
+        System.arraycopy(DIGIT_GROUPS, index % 1000 * 4, target, offset + 4, 4);
+    }
+
+    private static byte[] digitGroups() {
+        byte[] groups = new byte[1000 * 4];
+        for (int i = 0; i < 1000; i++) {
+            byte[] digits = {(byte) ('0' + i / 100), (byte) ('0' + i / 10 % 10), (byte) ('0' + i % 10)};
+            System.arraycopy(Base64.getEncoder().encode(digits), 0, groups, i * 4, 4);
+        }
+        return groups;
+    }
+
+    static int readFully(InputStream input, byte[] buffer, int length) throws IOException {
+        return readFully(input, buffer, 0, length);
+    }
+
+    static int readFully(InputStream input, ByteBuffer buffer) throws IOException {
+        int bytesRead = readFully(input, buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        buffer.position(buffer.position() + bytesRead);
+        return bytesRead;
+    }
+
+    static int readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        int totalBytesRead = 0;
+        int bytesRead;
+        while (buffer.hasRemaining() && (bytesRead = channel.read(buffer)) != -1) {
+            totalBytesRead += bytesRead;
+        }
+        return totalBytesRead;
+    }
+
+    private static int readFully(InputStream input, byte[] buffer, int offset, int length) throws IOException {
+        int totalBytesRead = 0;
+        int bytesRead;
+        while (totalBytesRead < length
+                && (bytesRead = input.read(buffer, offset + totalBytesRead, length - totalBytesRead)) != -1) {
+            totalBytesRead += bytesRead;
+        }
+        return totalBytesRead;
+    }
+}
@@ -0,0 +1,279 @@
+package blob_storage_rest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Persistent index of what an incremental container sync has already copied: for each source blob,
+ * its ETag, length and last-modified time when it was copied, and the ETag of the target blob that
+ * copy committed. Entries are stored sorted by blob name, the same order in which the service lists
+ * blobs, so a sync walks the index and the source listing side by side: memory stays flat however
+ * many blobs the container holds, and no blob needs its own request to decide whether to copy it.
+ *
+ * <p>A sync rewrites the index: unchanged entries are carried over as the listing passes them,
+ * entries for blobs copied in this run are added when their copy commits, and entries for blobs that
+ * were not listed again under the synced prefix are dropped. Copies finish out of order, so their
+ * entries are sorted in runs of {@link #ENTRIES_PER_RUN} and spilled next to the index; {@link #commit()}
+ * merges the runs with the carried entries, and only then replaces the old index, so an interrupted
+ * sync leaves the previous index intact.
+ */
+public class SyncIndex implements Closeable {
+    private static final int MAGIC = 0x4253494E; // "BSIN"
+    private static final int VERSION = 1;
+    /** Copied entries held in memory before they are sorted and spilled to a run file. */
+    static final int ENTRIES_PER_RUN = 65_536;
+    private static final Comparator<Entry> BY_NAME = Comparator.comparing(entry -> entry.name);
+
+    private final Path path;
+    private final String prefix;
+    private final DataInputStream previous;
+    private final Path carriedPath;
+    private final DataOutputStream carried;
+    private final List<Entry> copied = new ArrayList<>();
+    private final List<Path> runs = new ArrayList<>();
+    private Entry next;
+
+    private SyncIndex(Path path, String prefix, DataInputStream previous) throws IOException {
+        this.path = path;
+        this.prefix = prefix == null ? "" : prefix;
+        this.previous = previous;
+        this.carriedPath = path.resolveSibling(path.getFileName() + ".carried");
+        this.carried = open(carriedPath);
+        this.next = readEntry(previous);
+    }
+
+    /**
+     * Opens the index at {@code path} for a sync of the blobs under {@code prefix} (all blobs if null).
+     * A missing or unreadable index is treated as empty, so every blob is copied.
+     */
+    public static SyncIndex open(Path path, String prefix) throws IOException {
+        DataInputStream previous = null;
+        if (Files.exists(path)) {
+            previous = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+            boolean valid;
+            try {
+                valid = previous.readInt() == MAGIC && previous.readInt() == VERSION;
+            } catch (EOFException e) {
+                // Truncated before the end of the header
+                valid = false;
+            }
+            if (!valid) {
+                previous.close();
+                previous = null;
+            }
+        }
+        return new SyncIndex(path, prefix, previous);
+    }
+
+    /**
+     * Entry recorded for {@code name} by the previous sync, or null. Names must be looked up in
+     * ascending order, as the listing returns them.
+     */
+    public Entry lookup(String name) throws IOException {
+        while (next != null && next.name.compareTo(name) < 0) {
+            passOver(next);
+            next = readEntry(previous);
+        }
+        if (next != null && next.name.equals(name)) {
+            Entry entry = next;
+            next = readEntry(previous);
+            return entry;
+        }
+        return null;
+    }
+
+    /** Keeps {@code entry}, returned by the latest {@link #lookup}, for a blob that did not need copying. */
+    public void keep(Entry entry) throws IOException {
+        entry.write(carried);
+    }
+
+    /** Records a blob copied in this sync; may be called from any thread, in any order. */
+    public synchronized void recordCopied(Entry entry) throws IOException {
+        copied.add(entry);
+        if (copied.size() >= ENTRIES_PER_RUN) {
+            spill();
+        }
+    }
+
+    /** Writes the copied entries held in memory to a new sorted run file. */
+    private void spill() throws IOException {
+        copied.sort(BY_NAME);
+        Path runPath = path.resolveSibling(path.getFileName() + ".run" + runs.size());
+        runs.add(runPath);
+        try (DataOutputStream run = open(runPath)) {
+            for (Entry entry : copied) {
+                entry.write(run);
+            }
+        }
+        copied.clear();
+    }
+
+    /** Writes the new index and replaces the old one with it. */
+    public void commit() throws IOException {
+        // Blobs under the prefix that were not listed are gone from the source; the rest is carried as is
+        while (next != null) {
+            passOver(next);
+            next = readEntry(previous);
+        }
+        carried.close();
+        synchronized (this) {
+            if (!copied.isEmpty()) {
+                spill();
+            }
+        }
+
+        // Merge the carried entries with the copied runs, each already in order; a copied entry replaces
+        // a carried one of the same name
+        Path newPath = path.resolveSibling(path.getFileName() + ".new");
+        PriorityQueue<Cursor> cursors = new PriorityQueue<>();
+        try (DataOutputStream output = open(newPath)) {
+            for (int i = 0; i < runs.size(); i++) {
+                Cursor.open(runs.get(i), i, cursors);
+            }
+            Cursor.open(carriedPath, runs.size(), cursors);
+            String lastName = null;
+            while (!cursors.isEmpty()) {
+                Cursor cursor = cursors.poll();
+                if (!cursor.entry.name.equals(lastName)) {
+                    cursor.entry.write(output);
+                    lastName = cursor.entry.name;
+                }
+                cursor.advance(cursors);
+            }
+        } finally {
+            for (Cursor cursor : cursors) {
+                cursor.input.close();
+            }
+        }
+        Files.move(newPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        deleteTemporaryFiles();
+    }
+
+    private void passOver(Entry entry) throws IOException {
+        if (!entry.name.startsWith(prefix)) {
+            entry.write(carried);
+        }
+    }
+
+    private static DataOutputStream open(Path path) throws IOException {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        return output;
+    }
+
+    private static Entry readEntry(DataInputStream input) throws IOException {
+        if (input == null) {
+            return null;
+        }
+        try {
+            return new Entry(input.readUTF(), input.readUTF(), input.readLong(), input.readLong(), input.readUTF());
+        } catch (EOFException e) {
+            // End of the index, or a torn trailing entry
+            return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        carried.close();
+        if (previous != null) {
+            previous.close();
+        }
+        deleteTemporaryFiles();
+    }
+
+    private void deleteTemporaryFiles() throws IOException {
+        Files.deleteIfExists(carriedPath);
+        for (Path run : runs) {
+            Files.deleteIfExists(run);
+        }
+    }
+
+    /** Next unmerged entry of one sorted file; among equal names, the lowest rank is merged first. */
+    private static final class Cursor implements Comparable<Cursor> {
+        final DataInputStream input;
+        final int rank;
+        Entry entry;
+
+        private Cursor(DataInputStream input, int rank) {
+            this.input = input;
+            this.rank = rank;
+        }
+
+        static void open(Path path, int rank, PriorityQueue<Cursor> cursors) throws IOException {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+            input.readInt(); // magic
+            input.readInt(); // version
+            new Cursor(input, rank).advance(cursors);
+        }
+
+        /** Moves to the next entry and back into {@code cursors}, or closes the file at its end. */
+        void advance(PriorityQueue<Cursor> cursors) throws IOException {
+            entry = readEntry(input);
+            if (entry != null) {
+                cursors.add(this);
+            } else {
+                input.close();
+            }
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            int byName = entry.name.compareTo(other.entry.name);
+            return byName != 0 ? byName : Integer.compare(rank, other.rank);
+        }
+    }
+
+    /** State of one source blob as of its last copy. */
+    public static final class Entry {
+        final String name;
+        final String sourceEtag;
+        final long sourceLength;
+        final long sourceLastModified;
+        final String targetEtag;
+
+        public Entry(String name, String sourceEtag, long sourceLength, long sourceLastModified, String targetEtag) {
+            this.name = name;
+            this.sourceEtag = sourceEtag;
+            this.sourceLength = sourceLength;
+            this.sourceLastModified = sourceLastModified;
+            this.targetEtag = targetEtag;
+        }
+
+        /** True if the source blob is still the version that was copied. */
+        public boolean matchesSource(String etag, long length, long lastModified) {
+            return sourceEtag.equals(etag) && sourceLength == length && sourceLastModified == lastModified;
+        }
+
+        /** True if the target still has the ETag that the copy committed; listings and headers differ in quoting. */
+        public boolean matchesTarget(String etag) {
+            return etag != null && unquote(targetEtag).equals(unquote(etag));
+        }
+
+        private static String unquote(String etag) {
+            return etag.startsWith("\"") && etag.endsWith("\"") && etag.length() > 1
+                    ? etag.substring(1, etag.length() - 1) : etag;
+        }
+
+        void write(DataOutputStream output) throws IOException {
+            output.writeUTF(name);
+            output.writeUTF(sourceEtag);
+            output.writeLong(sourceLength);
+            output.writeLong(sourceLastModified);
+            output.writeUTF(targetEtag);
+        }
+    }
+}
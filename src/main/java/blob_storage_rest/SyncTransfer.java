@@ -1,20 +1,62 @@
 package blob_storage_rest;
 
+import com.azure.core.http.HttpHeaders;
+import com.azure.core.http.HttpPipelineCallContext;
+import com.azure.core.http.HttpPipelineNextPolicy;
+import com.azure.core.http.HttpPipelineNextSyncPolicy;
+import com.azure.core.http.HttpPipelinePosition;
+import com.azure.core.http.HttpResponse;
+import com.azure.core.http.policy.AddHeadersFromContextPolicy;
+import com.azure.core.http.policy.HttpPipelinePolicy;
+import com.azure.core.util.BinaryData;
+import com.azure.core.util.Context;
 import com.azure.storage.blob.BlobClient;
 import com.azure.storage.blob.BlobContainerClient;
 import com.azure.storage.blob.BlobServiceClient;
 import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.models.BlobHttpHeaders;
+import com.azure.storage.blob.models.BlobProperties;
+import com.azure.storage.blob.models.BlobRange;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.azure.storage.blob.options.BlockBlobCommitBlockListOptions;
+import com.azure.storage.blob.options.BlockBlobSimpleUploadOptions;
+import com.azure.storage.blob.options.BlockBlobStageBlockOptions;
 import com.azure.storage.blob.specialized.BlockBlobClient;
+import reactor.core.publisher.Mono;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Base64;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public class SyncTransfer {
+    /**
+     * {@link AddHeadersFromContextPolicy} moved ahead of the retry and SharedKey policies, so that headers
+     * added from the request context are signed; as a per-retry policy they would be added after signing.
+     */
+    static final HttpPipelinePolicy CONTEXT_HEADERS = new HttpPipelinePolicy() {
+        private final AddHeadersFromContextPolicy delegate = new AddHeadersFromContextPolicy();
+
+        @Override
+        public Mono<HttpResponse> process(HttpPipelineCallContext context, HttpPipelineNextPolicy next) {
+            return delegate.process(context, next);
+        }
+
+        @Override
+        public HttpResponse processSync(HttpPipelineCallContext context, HttpPipelineNextSyncPolicy next) {
+            return delegate.processSync(context, next);
+        }
+
+        @Override
+        public HttpPipelinePosition getPipelinePosition() {
+            return HttpPipelinePosition.PER_CALL;
+        }
+    };
+
     public static void main(String[] args) {
         // Source string, container name and blob name
         String sourceConnectionString = System.getenv("AZURE_STORAGE_CONNECTION_STRING");
@@ -32,8 +74,11 @@ public class SyncTransfer {
         BlobServiceClient sourceClient = new BlobServiceClientBuilder()
                 .connectionString(sourceConnectionString)
                 .buildClient();
+        // The context-headers policy lets each stageBlock carry its own x-ms-content-crc64 header
         BlobServiceClient targetClient = new BlobServiceClientBuilder()
                 .connectionString(targetConnectionString)
+                .addPolicy(CONTEXT_HEADERS)
+                .addPolicy(TransferMetrics.retryCountingPolicy())
                 .buildClient();
 
         // Get source and target containers
@@ -43,32 +88,75 @@ public class SyncTransfer {
         // Get source blob
         BlobClient sourceBlob = sourceContainer.getBlobClient(sourceBlobName);
 
-        // Define chunk size
-        long chunkSize = 4 * 1024 * 1024L; 
-
-        // Download source blob and upload chunks to target
-        try (InputStream inputStream = sourceBlob.openInputStream()) {
-            List<byte[]> chunks = new ArrayList<>();
-            int chunkCount = 0;
-            int bytesRead;
-            byte[] buffer = new byte[(int) chunkSize];
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                byte[] chunk = new byte[bytesRead];
-                System.arraycopy(buffer, 0, chunk, 0, bytesRead);
-                chunks.add(chunk);
-                chunkCount++;
-                System.out.println("Chunk " + chunkCount + " transferred.");
+        // With --delta, update an existing target in place and send only the blocks that changed
+        if (args.length > 0 && "--delta".equals(args[0])) {
+            try {
+                DeltaBlockTransfer.copy(sourceBlob, targetContainer.getBlobClient(sourceBlobName).getBlockBlobClient(),
+                        4 * 1024 * 1024);
+            } catch (IOException e) {
+                System.err.println("An error occurred during blob transfer: " + e.getMessage());
+                e.printStackTrace();
             }
-            // Upload chunks to target in parallel
-            AtomicInteger counter = new AtomicInteger(0);
-            chunks.parallelStream().forEach(chunk -> {
-                uploadChunkToTarget(chunk, targetContainer, sourceBlobName, counter.getAndIncrement());
-            });
-            
+            System.out.println("Total time taken: " + (System.currentTimeMillis() - startTime) / 60000.0 + " minutes");
+            return;
+        }
+
+        // Every block transfer keeps a journal; --resume picks up an interrupted one instead of starting over
+        boolean resume = args.length > 0 && "--resume".equals(args[0]);
+        Path journalPath = Paths.get(sourceBlobName + ".journal");
+
+        // Small blobs go up in a single Put Blob, without the block pipeline and its commit round trip
+        long sourceLength = sourceBlob.getProperties().getBlobSize();
+        if (!resume && sourceLength <= StreamingBlockTransfer.singlePutThreshold()) {
+            try (BlockCompressor compressor = BlockCompressor.fromEnvironment((int) sourceLength, 1)) {
+                copySmallBlob(sourceBlob, targetContainer.getBlobClient(sourceBlobName).getBlockBlobClient(),
+                        BlockChecksums.fromEnvironment(), compressor);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            System.out.println("Total time taken: " + (System.currentTimeMillis() - startTime) / 60000.0 + " minutes");
+            System.out.println("Transfer metrics: " + TransferMetrics.get().snapshot());
+            return;
+        }
+
+        // Define the chunk size and the number of chunk buffers allowed in memory at once; the journal fixes
+        // the chunk size, and the adaptive controller tunes how many blocks are in flight
+        // Past about 200 GB the chunk size grows so that the blob still fits in 50,000 blocks
+        int chunkSize = StreamingBlockTransfer.bufferedBlockSizeFor(sourceLength, 4 * 1024 * 1024);
+        int maxInFlightBlocks = 16;
+        ChunkBufferPool bufferPool = ChunkBufferPool.fromEnvironment(chunkSize, maxInFlightBlocks);
+        AdaptiveTransferController controller = new AdaptiveTransferController(chunkSize, chunkSize, chunkSize,
+                2, 4, maxInFlightBlocks);
+
+        // Stream source blob into staged blocks on the target
+        BlockBlobClient targetBlob = targetContainer.getBlobClient(sourceBlobName).getBlockBlobClient();
+        // With TRANSFER_COMPRESSION=gzip each chunk is compressed on its staging thread before it is sent
+        try (BlockCompressor compressor = BlockCompressor.fromEnvironment(bufferPool.getBufferSize(), maxInFlightBlocks);
+                TransferJournal journal = openJournal(journalPath, sourceBlob, targetBlob, chunkSize, compressor, resume);
+                InputStream inputStream = sourceBlob.openInputStream(new BlobRange(journal.resumeOffset()), null)) {
+            StreamingBlockTransfer transfer = new StreamingBlockTransfer(bufferPool, maxInFlightBlocks);
+            transfer.setController(controller);
+            transfer.setCompressor(compressor);
+            BlockChecksums checksums = BlockChecksums.fromEnvironment();
+            // Failed blocks are retried and slow ones hedged, so no single request holds up the commit;
+            // each retried failure still makes the controller back off
+            HedgedBlockStager stager = HedgedBlockStager.fromEnvironment((blockId, data) -> uploadChunkToTarget(
+                    targetBlob, blockId, data, checksums));
+            stager.setRetryListener(controller::recordFailure);
+            List<String> blockIds = transfer.transfer(inputStream, stager, journal);
+
             // Commit the block list to finalize the blob upload
-            commitBlockList(targetContainer, sourceBlobName, chunks.size());
-            
+            commitBlockList(targetBlob, blockIds, compressor, compressor != null ? sourceLength : 0);
+            System.out.println("Blob digest: " + checksums.blobDigest(blockIds));
+            if (compressor != null) {
+                System.out.println(compressor.report());
+            }
+            journal.delete();
+
             System.out.println("Blob transfer completed.");
+            System.out.println(bufferPool);
+            System.out.println(controller.report());
+            System.out.println(stager.report());
         } catch (IOException e) {
             System.err.println("An error occurred during blob transfer: " + e.getMessage());
             e.printStackTrace();
@@ -80,31 +168,125 @@ public class SyncTransfer {
 
         // Print total time taken
         System.out.println("Total time taken: " + (endTime - startTime) / 60000.0 + " minutes");
+        System.out.println("Transfer metrics: " + TransferMetrics.get().snapshot());
     }
 
-    private static void uploadChunkToTarget(byte[] chunk, BlobContainerClient targetContainer, String blobName, int index) {
+    /**
+     * Opens the journal of a block transfer. With {@code resume} an existing journal for the same source is
+     * reused, keeping only the blocks the target still holds; otherwise any old journal is discarded.
+     */
+    static TransferJournal openJournal(Path journalPath, BlobClient sourceBlob, BlockBlobClient targetBlob,
+            int chunkSize, BlockCompressor compressor, boolean resume) throws IOException {
+        if (!resume) {
+            Files.deleteIfExists(journalPath);
+        }
+        BlobProperties sourceProperties = sourceBlob.getProperties();
+        // Compressed and plain blocks must not be mixed in one blob, so the encoding is part of the source ID
+        TransferJournal journal = TransferJournal.open(journalPath, sourceBlob.getBlobUrl() + "#"
+                + sourceProperties.getETag() + (compressor != null ? "#" + compressor.contentEncoding() : ""),
+                sourceProperties.getBlobSize(), chunkSize);
+        if (!resume) {
+            return journal;
+        }
+        // Only trust journaled blocks the target still holds
+        journal.reconcile(TransferJournal.uncommittedBlocks(targetBlob), StreamingBlockTransfer::blockId);
+        System.out.println("Resuming with " + journal.stagedCount() + " blocks already staged.");
+        return journal;
+    }
+
+    private static void uploadChunkToTarget(BlockBlobClient targetBlob, String blockId, ByteBuffer chunk,
+            BlockChecksums checksums) {
         try {
-            BlockBlobClient targetBlob = targetContainer.getBlobClient(blobName).getBlockBlobClient();
-            try (InputStream chunkInputStream = new ByteArrayInputStream(chunk)) {
-                // Generate block ID
-                String blockId = Base64.getEncoder().encodeToString(String.format("%06d", index).getBytes());
-                // Upload chunk
-                targetBlob.stageBlock(blockId, chunkInputStream, chunk.length);
-                System.out.println("Chunk uploaded to target with index: " + index);
-            }
-        } catch (IOException e) {
+            // Upload the pooled chunk without copying it into a stream, with its transactional checksum
+            stageBlock(targetBlob, blockId, chunk, checksums);
+        } catch (Exception e) {
             throw new RuntimeException("An error occurred during chunk upload: " + e.getMessage(), e);
         }
     }
     
-    private static void commitBlockList(BlobContainerClient targetContainer, String blobName, int chunkCount) {
+    /** Stages {@code chunk} with the checksum {@code checksums} computes for it: Content-MD5 natively, CRC64 as a context header. */
+    static void stageBlock(BlockBlobClient targetBlob, String blockId, ByteBuffer chunk, BlockChecksums checksums) {
+        byte[] checksum = checksums.compute(blockId, chunk);
+        byte[] contentMd5 = checksums.getAlgorithm() == BlockChecksums.Algorithm.MD5 ? checksum : null;
+        int length = chunk.remaining();
+        long start = System.nanoTime();
+        targetBlob.stageBlockWithResponse(new BlockBlobStageBlockOptions(blockId, BinaryData.fromByteBuffer(chunk))
+                .setContentMd5(contentMd5), null, checksumContext(checksums, checksum));
+        TransferMetrics.get().record(TransferMetrics.Operation.STAGE_BLOCK, start, length);
+    }
+
+    /** Request context carrying a CRC64 {@code checksum} as a header for {@link #CONTEXT_HEADERS}; MD5 goes natively. */
+    static Context checksumContext(BlockChecksums checksums, byte[] checksum) {
+        return checksums.getAlgorithm() == BlockChecksums.Algorithm.CRC64
+                ? new Context(AddHeadersFromContextPolicy.AZURE_REQUEST_HTTP_HEADERS_KEY,
+                        new HttpHeaders().set(checksums.headerName(), Base64.getEncoder().encodeToString(checksum)))
+                : Context.NONE;
+    }
+
+    /**
+     * Copies a blob under {@link StreamingBlockTransfer#singlePutThreshold()} in two requests: it is
+     * downloaded whole and sent with a single Put Blob, which fails if the target exists.
+     */
+    static void copySmallBlob(BlobClient sourceBlob, BlockBlobClient targetBlob, BlockChecksums checksums,
+            BlockCompressor compressor) throws InterruptedException {
+        long start = System.nanoTime();
+        byte[] content = sourceBlob.downloadContent().toBytes();
+        TransferMetrics.get().record(TransferMetrics.Operation.DOWNLOAD_RANGE, start, content.length);
+        putBlob(targetBlob, ByteBuffer.wrap(content), checksums, compressor);
+        System.out.println("Blob transfer completed with a single Put Blob.");
+        System.out.println("Blob digest: " + checksums.blobDigest(List.of(StreamingBlockTransfer.blockId(0))));
+        if (compressor != null) {
+            System.out.println(compressor.report());
+        }
+    }
+
+    /**
+     * Creates {@code targetBlob} from {@code data} in one Put Blob, compressed and checksummed as a single
+     * block would be, so the digest is that of a one-block blob.
+     */
+    static void putBlob(BlockBlobClient targetBlob, ByteBuffer data, BlockChecksums checksums,
+            BlockCompressor compressor) throws InterruptedException {
+        if (compressor == null) {
+            putBlob(targetBlob, data, checksums, new BlockBlobSimpleUploadOptions(BinaryData.fromByteBuffer(data)));
+            return;
+        }
+        int uncompressedLength = data.remaining();
+        try (BlockCompressor.CompressedBlock compressed = compressor.compress(data)) {
+            ByteBuffer body = compressed.data();
+            putBlob(targetBlob, body, checksums, new BlockBlobSimpleUploadOptions(BinaryData.fromByteBuffer(body))
+                    .setHeaders(new BlobHttpHeaders().setContentEncoding(compressor.contentEncoding()))
+                    .setMetadata(compressor.metadata(uncompressedLength)));
+        }
+    }
+
+    private static void putBlob(BlockBlobClient targetBlob, ByteBuffer body, BlockChecksums checksums,
+            BlockBlobSimpleUploadOptions options) {
+        int length = body.remaining();
+        byte[] checksum = checksums.compute(StreamingBlockTransfer.blockId(0), body);
+        options.setContentMd5(checksums.getAlgorithm() == BlockChecksums.Algorithm.MD5 ? checksum : null)
+                .setRequestConditions(new BlobRequestConditions().setIfNoneMatch("*"));
+        long start = System.nanoTime();
+        targetBlob.uploadWithResponse(options, null, checksumContext(checksums, checksum));
+        TransferMetrics.get().record(TransferMetrics.Operation.PUT_BLOB, start, length);
+    }
+
+    /**
+     * Commits {@code blockIds} to a new blob; if the blocks were compressed, with the blob's content
+     * encoding and its length before compression.
+     */
+    static void commitBlockList(BlockBlobClient targetBlob, List<String> blockIds, BlockCompressor compressor,
+            long uncompressedLength) {
         try {
-            BlockBlobClient targetBlob = targetContainer.getBlobClient(blobName).getBlockBlobClient();
-            List<String> blockIds = new ArrayList<>();
-            for (int i = 0; i < chunkCount; i++) {
-                blockIds.add(Base64.getEncoder().encodeToString(String.format("%06d", i).getBytes()));
+            long start = System.nanoTime();
+            if (compressor == null) {
+                targetBlob.commitBlockList(blockIds);
+            } else {
+                targetBlob.commitBlockListWithResponse(new BlockBlobCommitBlockListOptions(blockIds)
+                        .setHeaders(new BlobHttpHeaders().setContentEncoding(compressor.contentEncoding()))
+                        .setMetadata(compressor.metadata(uncompressedLength))
+                        .setRequestConditions(new BlobRequestConditions().setIfNoneMatch("*")), null, Context.NONE);
             }
-            targetBlob.commitBlockList(blockIds);
+            TransferMetrics.get().record(TransferMetrics.Operation.COMMIT_BLOCK_LIST, start, 0);
             System.out.println("Block list committed.");
         } catch (Exception e) {
             throw new RuntimeException("An error occurred during committing block list: " + e.getMessage(), e);
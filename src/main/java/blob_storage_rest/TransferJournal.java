@@ -0,0 +1,229 @@
+package blob_storage_rest;
+
+import com.azure.storage.blob.models.BlobStorageException;
+import com.azure.storage.blob.models.Block;
+import com.azure.storage.blob.models.BlockListType;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * Append-only checkpoint of the blocks a transfer has staged, so that a restarted transfer only sends
+ * what is missing. The file starts with a header identifying the source (ID, length, block size); each
+ * staged block then appends a fixed 16-byte record of index, source offset and its length as staged,
+ * which for a compressed block is the compressed length the target reports for it. Records are
+ * written straight to the file channel, so a JVM crash loses at most the record being written, and a
+ * torn trailing record is dropped on the next open.
+ */
+public class TransferJournal implements Closeable {
+    private static final int MAGIC = 0x424A524E; // "BJRN"
+    private static final int VERSION = 1;
+    private static final int RECORD_SIZE = 16;
+
+    private final Path path;
+    private final String sourceId;
+    private final long sourceLength;
+    private final int blockSize;
+    private final BitSet staged = new BitSet();
+    private final Map<Integer, Integer> stagedLengths = new HashMap<>();
+    private FileChannel channel;
+
+    private TransferJournal(Path path, String sourceId, long sourceLength, int blockSize) {
+        this.path = path;
+        this.sourceId = sourceId;
+        this.sourceLength = sourceLength;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Opens the journal at {@code path}. An existing journal is reused only if it was written for the
+     * same source ID, source length and block size; otherwise it is discarded and a fresh one started.
+     * Use the source ETag in {@code sourceId} so that a changed source is never resumed.
+     */
+    public static TransferJournal open(Path path, String sourceId, long sourceLength, int blockSize) throws IOException {
+        TransferJournal journal = new TransferJournal(path, sourceId, sourceLength, blockSize);
+        long validLength = Files.exists(path) ? journal.load() : -1;
+        journal.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (validLength < 0) {
+            journal.staged.clear();
+            journal.stagedLengths.clear();
+            journal.rewrite();
+        } else {
+            // Drop a partially written trailing record, if any
+            journal.channel.truncate(validLength);
+            journal.channel.position(validLength);
+        }
+        return journal;
+    }
+
+    private long load() throws IOException {
+        try (DataInputStream data = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (data.readInt() != MAGIC || data.readInt() != VERSION || data.readInt() != blockSize
+                    || data.readLong() != sourceLength) {
+                return -1;
+            }
+            byte[] id = new byte[data.readUnsignedShort()];
+            data.readFully(id);
+            if (!sourceId.equals(new String(id, StandardCharsets.UTF_8))) {
+                return -1;
+            }
+            long validLength = header().remaining();
+            while (true) {
+                int index;
+                int length;
+                try {
+                    index = data.readInt();
+                    data.readLong(); // offset, implied by index and block size
+                    length = data.readInt();
+                } catch (EOFException e) {
+                    return validLength;
+                }
+                staged.set(index);
+                stagedLengths.put(index, length);
+                validLength += RECORD_SIZE;
+            }
+        } catch (EOFException e) {
+            return -1;
+        }
+    }
+
+    private ByteBuffer header() {
+        byte[] id = sourceId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(4 + 4 + 4 + 8 + 2 + id.length);
+        header.putInt(MAGIC).putInt(VERSION).putInt(blockSize).putLong(sourceLength)
+                .putShort((short) id.length).put(id).flip();
+        return header;
+    }
+
+    /** Replaces the file contents with the header and one record per block currently marked staged. */
+    private void rewrite() throws IOException {
+        channel.truncate(0);
+        channel.position(0);
+        write(header());
+        for (int index = staged.nextSetBit(0); index >= 0; index = staged.nextSetBit(index + 1)) {
+            write(record(index, stagedLengths.get(index)));
+        }
+    }
+
+    private ByteBuffer record(int index, int stagedLength) {
+        long offset = (long) index * blockSize;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.putInt(index).putLong(offset).putInt(stagedLength).flip();
+        return record;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private int blockLength(int index) {
+        return (int) Math.min(blockSize, sourceLength - (long) index * blockSize);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public boolean isStaged(int index) {
+        synchronized (staged) {
+            return staged.get(index);
+        }
+    }
+
+    /** Index of the first block not yet staged; the source can be reopened at {@link #resumeOffset()}. */
+    public int firstMissingIndex() {
+        synchronized (staged) {
+            return staged.nextClearBit(0);
+        }
+    }
+
+    public long resumeOffset() {
+        return Math.min(sourceLength, (long) firstMissingIndex() * blockSize);
+    }
+
+    public int stagedCount() {
+        synchronized (staged) {
+            return staged.cardinality();
+        }
+    }
+
+    /** Appends a record for a block that the target has acknowledged, staged as the source bytes. */
+    public void recordStaged(int index) throws IOException {
+        recordStaged(index, blockLength(index));
+    }
+
+    /** Appends a record for a block that the target has acknowledged as {@code stagedLength} bytes. */
+    public void recordStaged(int index, int stagedLength) throws IOException {
+        ByteBuffer record = record(index, stagedLength);
+        synchronized (staged) {
+            write(record);
+            staged.set(index);
+            stagedLengths.put(index, stagedLength);
+        }
+    }
+
+    /**
+     * Keeps only the journaled blocks that the target still holds as uncommitted blocks of the length
+     * they were staged at. Uncommitted blocks expire, and the target may have been reset since the
+     * journal was written.
+     *
+     * @param uncommittedBlocks block ID to size, as reported by Get Block List
+     * @param blockIdOf         the block ID a given index is staged under
+     */
+    public void reconcile(Map<String, Long> uncommittedBlocks, IntFunction<String> blockIdOf) throws IOException {
+        synchronized (staged) {
+            for (int index = staged.nextSetBit(0); index >= 0; index = staged.nextSetBit(index + 1)) {
+                Long size = uncommittedBlocks.get(blockIdOf.apply(index));
+                if (size == null || size != (long) stagedLengths.get(index)) {
+                    staged.clear(index);
+                    stagedLengths.remove(index);
+                }
+            }
+            rewrite();
+        }
+    }
+
+    /** Uncommitted blocks of {@code target} by ID and size; empty if the target does not exist yet. */
+    public static Map<String, Long> uncommittedBlocks(BlockBlobClient target) {
+        Map<String, Long> blocks = new HashMap<>();
+        try {
+            for (Block block : target.listBlocks(BlockListType.UNCOMMITTED).getUncommittedBlocks()) {
+                blocks.put(block.getName(), block.getSizeLong());
+            }
+        } catch (BlobStorageException e) {
+            if (e.getStatusCode() != 404) {
+                throw e;
+            }
+        }
+        return blocks;
+    }
+
+    /** Removes the journal once the block list is committed. */
+    public void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null && channel.isOpen()) {
+            channel.close();
+        }
+    }
+}
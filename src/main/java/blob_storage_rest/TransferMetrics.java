@@ -0,0 +1,466 @@
+package blob_storage_rest;
+
+import com.azure.core.http.HttpPipelineCallContext;
+import com.azure.core.http.HttpPipelineNextPolicy;
+import com.azure.core.http.HttpPipelineNextSyncPolicy;
+import com.azure.core.http.HttpResponse;
+import com.azure.core.http.policy.HttpPipelinePolicy;
+import reactor.core.publisher.Mono;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Process-wide transfer metrics: a latency histogram and byte count per operation, gauges for blocks
+ * and requests in flight or waiting, retries, and leased chunk buffers. Recording is a few atomic
+ * adds and never prints, so it stays off the hot path's critical section.
+ *
+ * <p>Metrics are exposed over JMX under {@code blob_storage_rest:type=TransferMetrics} (one MBean per
+ * operation plus one for the gauges), and as {@link Snapshot}s, either on demand or every period via
+ * {@link #startReporting}. Setting {@code TRANSFER_METRICS_INTERVAL} (seconds) prints a snapshot line
+ * at that interval.
+ *
+ * <p>Throughput is reported per direction. A copy reads every byte from the source and writes it again
+ * to the target, so adding the two would double-count it. The headline rate is the bytes written to
+ * the target; the read rate is reported next to it.
+ */
+public final class TransferMetrics {
+    public enum Operation {
+        DOWNLOAD_RANGE("DownloadRange", false), STAGE_BLOCK("StageBlock", true), COMMIT_BLOCK_LIST("CommitBlockList", true),
+        PUT_PAGE("PutPage", true), PUT_BLOB("PutBlob", true);
+
+        private final String mbeanName;
+        private final boolean write;
+
+        Operation(String mbeanName, boolean write) {
+            this.mbeanName = mbeanName;
+            this.write = write;
+        }
+
+        /** True if the operation's bytes are written to the target, false if they are read from the source. */
+        public boolean isWrite() {
+            return write;
+        }
+    }
+
+    /** JMX view of one operation. */
+    public interface OperationMBean {
+        long getCount();
+
+        long getBytes();
+
+        double getMeanMicros();
+
+        long getP50Micros();
+
+        long getP95Micros();
+
+        long getP99Micros();
+
+        long getMaxMicros();
+    }
+
+    /** JMX view of the transfer-wide gauges and counters. */
+    public interface TransferMBean {
+        int getInFlightBlocks();
+
+        int getQueuedBlocks();
+
+        int getQueuedRequests();
+
+        long getRetries();
+
+        int getLeasedBuffers();
+
+        int getPeakLeasedBuffers();
+
+        /** Bytes written to the target. */
+        long getBytesTransferred();
+
+        /** Bytes written to the target per second. */
+        double getBytesPerSecond();
+
+        /** Bytes read from the source. */
+        long getBytesRead();
+
+        /** Bytes read from the source per second. */
+        double getReadBytesPerSecond();
+    }
+
+    private static final TransferMetrics INSTANCE = new TransferMetrics();
+    // Marks threads whose operations are recorded by their caller instead, such as hedged block attempts
+    private static final ThreadLocal<Boolean> UNRECORDED = new ThreadLocal<>();
+
+    private final Map<Operation, OperationMetrics> operations = new EnumMap<>(Operation.class);
+    private final AtomicInteger inFlightBlocks = new AtomicInteger();
+    private final AtomicInteger queuedBlocks = new AtomicInteger();
+    private final AtomicInteger queuedRequests = new AtomicInteger();
+    private final AtomicInteger leasedBuffers = new AtomicInteger();
+    private final AtomicInteger peakLeasedBuffers = new AtomicInteger();
+    private final LongAdder retries = new LongAdder();
+    private final long startNanos = System.nanoTime();
+
+    private TransferMetrics() {
+        for (Operation operation : Operation.values()) {
+            operations.put(operation, new OperationMetrics());
+        }
+        registerMBeans();
+        String interval = System.getenv("TRANSFER_METRICS_INTERVAL");
+        if (interval != null && !interval.isEmpty()) {
+            startReporting(Duration.ofSeconds(Long.parseLong(interval)), snapshot -> System.out.println(snapshot));
+        }
+    }
+
+    public static TransferMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records one successful operation that started at {@code startNanos} ({@link System#nanoTime()}),
+     * unless the current thread has stopped recording.
+     */
+    public void record(Operation operation, long startNanos, long bytes) {
+        if (UNRECORDED.get() != null) {
+            return;
+        }
+        OperationMetrics metrics = operations.get(operation);
+        metrics.latency.record(System.nanoTime() - startNanos);
+        metrics.bytes.add(bytes);
+    }
+
+    /**
+     * Stops recording operations on the current thread, for a thread that does work its caller may
+     * discard and records the result itself.
+     */
+    static void stopRecordingCurrentThread() {
+        UNRECORDED.set(Boolean.TRUE);
+    }
+
+    public void recordRetry() {
+        retries.increment();
+    }
+
+    /** A block started (+1) or finished (-1) staging. */
+    public void blocksInFlight(int delta) {
+        inFlightBlocks.addAndGet(delta);
+    }
+
+    /** A producer started (+1) or stopped (-1) waiting for a staging slot. */
+    public void blocksQueued(int delta) {
+        queuedBlocks.addAndGet(delta);
+    }
+
+    /** A request started (+1) or stopped (-1) waiting for a connection. */
+    public void requestsQueued(int delta) {
+        queuedRequests.addAndGet(delta);
+    }
+
+    /** Chunk buffers leased (+n) or returned (-n). */
+    public void buffersLeased(int delta) {
+        int leased = leasedBuffers.addAndGet(delta);
+        if (delta > 0) {
+            peakLeasedBuffers.accumulateAndGet(leased, Math::max);
+        }
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Hands a snapshot to {@code sink} every {@code period} on a daemon thread; the snapshot's
+     * {@link Snapshot#getBytesPerSecond()} covers the period since the previous one.
+     */
+    public ScheduledExecutorService startReporting(Duration period, Consumer<Snapshot> sink) {
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "transfer-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicReference<Snapshot> previous = new AtomicReference<>(snapshot());
+        reporter.scheduleAtFixedRate(() -> {
+            Snapshot current = snapshot();
+            current.since(previous.getAndSet(current));
+            sink.accept(current);
+        }, period.toMillis(), period.toMillis(), TimeUnit.MILLISECONDS);
+        return reporter;
+    }
+
+    /**
+     * Pipeline policy that counts SDK retries. It runs on every try; the retry policy re-sends the same
+     * call context, so a context already marked by an earlier try is a retry.
+     */
+    public static HttpPipelinePolicy retryCountingPolicy() {
+        return new HttpPipelinePolicy() {
+            @Override
+            public Mono<HttpResponse> process(HttpPipelineCallContext context, HttpPipelineNextPolicy next) {
+                countTry(context);
+                return next.process();
+            }
+
+            @Override
+            public HttpResponse processSync(HttpPipelineCallContext context, HttpPipelineNextSyncPolicy next) {
+                countTry(context);
+                return next.processSync();
+            }
+        };
+    }
+
+    private static void countTry(HttpPipelineCallContext context) {
+        if (context.getData("transfer-metrics-try").isPresent()) {
+            INSTANCE.recordRetry();
+        } else {
+            context.setData("transfer-metrics-try", Boolean.TRUE);
+        }
+    }
+
+    /** Bytes recorded by the operations that write to the target ({@code written}) or read from the source. */
+    private long totalBytes(boolean written) {
+        long total = 0;
+        for (Map.Entry<Operation, OperationMetrics> entry : operations.entrySet()) {
+            if (entry.getKey().isWrite() == written) {
+                total += entry.getValue().bytes.sum();
+            }
+        }
+        return total;
+    }
+
+    private void registerMBeans() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (Map.Entry<Operation, OperationMetrics> entry : operations.entrySet()) {
+                server.registerMBean(new StandardMBean(entry.getValue(), OperationMBean.class),
+                        new ObjectName("blob_storage_rest:type=TransferMetrics,operation=" + entry.getKey().mbeanName));
+            }
+            server.registerMBean(new StandardMBean(new TransferGauges(), TransferMBean.class),
+                    new ObjectName("blob_storage_rest:type=TransferMetrics,name=Transfer"));
+        } catch (JMException e) {
+            // Metrics still work through snapshots without JMX
+            System.err.println("Transfer metrics not registered with JMX: " + e.getMessage());
+        }
+    }
+
+    private static final class OperationMetrics implements OperationMBean {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder bytes = new LongAdder();
+
+        @Override
+        public long getCount() {
+            return latency.getCount();
+        }
+
+        @Override
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        @Override
+        public double getMeanMicros() {
+            return latency.getMeanMicros();
+        }
+
+        @Override
+        public long getP50Micros() {
+            return latency.getPercentileMicros(50);
+        }
+
+        @Override
+        public long getP95Micros() {
+            return latency.getPercentileMicros(95);
+        }
+
+        @Override
+        public long getP99Micros() {
+            return latency.getPercentileMicros(99);
+        }
+
+        @Override
+        public long getMaxMicros() {
+            return latency.getMaxMicros();
+        }
+    }
+
+    private final class TransferGauges implements TransferMBean {
+        @Override
+        public int getInFlightBlocks() {
+            return inFlightBlocks.get();
+        }
+
+        @Override
+        public int getQueuedBlocks() {
+            return queuedBlocks.get();
+        }
+
+        @Override
+        public int getQueuedRequests() {
+            return queuedRequests.get();
+        }
+
+        @Override
+        public long getRetries() {
+            return retries.sum();
+        }
+
+        @Override
+        public int getLeasedBuffers() {
+            return leasedBuffers.get();
+        }
+
+        @Override
+        public int getPeakLeasedBuffers() {
+            return peakLeasedBuffers.get();
+        }
+
+        @Override
+        public long getBytesTransferred() {
+            return totalBytes(true);
+        }
+
+        @Override
+        public double getBytesPerSecond() {
+            return perSecond(totalBytes(true));
+        }
+
+        @Override
+        public long getBytesRead() {
+            return totalBytes(false);
+        }
+
+        @Override
+        public double getReadBytesPerSecond() {
+            return perSecond(totalBytes(false));
+        }
+
+        /** Average since the process started recording. */
+        private double perSecond(long bytes) {
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            return seconds <= 0 ? 0 : bytes / seconds;
+        }
+    }
+
+    /** Point-in-time copy of every metric. */
+    public static final class Snapshot {
+        private final long nanos = System.nanoTime();
+        private final Map<Operation, long[]> operations = new EnumMap<>(Operation.class);
+        private final int inFlightBlocks;
+        private final int queuedBlocks;
+        private final int queuedRequests;
+        private final long retries;
+        private final int leasedBuffers;
+        private final long bytes;
+        private final long readBytes;
+        private double bytesPerSecond;
+        private double readBytesPerSecond;
+
+        private Snapshot(TransferMetrics metrics) {
+            for (Map.Entry<Operation, OperationMetrics> entry : metrics.operations.entrySet()) {
+                OperationMetrics operation = entry.getValue();
+                operations.put(entry.getKey(), new long[] {operation.getCount(), operation.getBytes(),
+                        operation.getP50Micros(), operation.getP95Micros(), operation.getP99Micros(),
+                        operation.getMaxMicros()});
+            }
+            this.inFlightBlocks = metrics.inFlightBlocks.get();
+            this.queuedBlocks = metrics.queuedBlocks.get();
+            this.queuedRequests = metrics.queuedRequests.get();
+            this.retries = metrics.retries.sum();
+            this.leasedBuffers = metrics.leasedBuffers.get();
+            this.bytes = metrics.totalBytes(true);
+            this.readBytes = metrics.totalBytes(false);
+            double seconds = (nanos - metrics.startNanos) / 1e9;
+            this.bytesPerSecond = seconds <= 0 ? 0 : bytes / seconds;
+            this.readBytesPerSecond = seconds <= 0 ? 0 : readBytes / seconds;
+        }
+
+        /** Makes both rates the rate since {@code previous} instead of since start. */
+        void since(Snapshot previous) {
+            double seconds = (nanos - previous.nanos) / 1e9;
+            bytesPerSecond = seconds <= 0 ? 0 : (bytes - previous.bytes) / seconds;
+            readBytesPerSecond = seconds <= 0 ? 0 : (readBytes - previous.readBytes) / seconds;
+        }
+
+        public long getCount(Operation operation) {
+            return operations.get(operation)[0];
+        }
+
+        public long getBytes(Operation operation) {
+            return operations.get(operation)[1];
+        }
+
+        public long getP50Micros(Operation operation) {
+            return operations.get(operation)[2];
+        }
+
+        public long getP95Micros(Operation operation) {
+            return operations.get(operation)[3];
+        }
+
+        public long getP99Micros(Operation operation) {
+            return operations.get(operation)[4];
+        }
+
+        public long getMaxMicros(Operation operation) {
+            return operations.get(operation)[5];
+        }
+
+        public int getInFlightBlocks() {
+            return inFlightBlocks;
+        }
+
+        public int getQueuedBlocks() {
+            return queuedBlocks;
+        }
+
+        public int getQueuedRequests() {
+            return queuedRequests;
+        }
+
+        public long getRetries() {
+            return retries;
+        }
+
+        public int getLeasedBuffers() {
+            return leasedBuffers;
+        }
+
+        /** Rate at which bytes were written to the target. */
+        public double getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        /** Rate at which bytes were read from the source. */
+        public double getReadBytesPerSecond() {
+            return readBytesPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(String.format(Locale.ROOT, "%.1f MiB/s written, %.1f MiB/s read",
+                    bytesPerSecond / (1 << 20), readBytesPerSecond / (1 << 20)));
+            for (Map.Entry<Operation, long[]> entry : operations.entrySet()) {
+                long[] values = entry.getValue();
+                if (values[0] > 0) {
+                    text.append(String.format(Locale.ROOT, ", %s n=%d p50=%.1fms p95=%.1fms p99=%.1fms max=%.1fms",
+                            entry.getKey().mbeanName, values[0], values[2] / 1000.0, values[3] / 1000.0,
+                            values[4] / 1000.0, values[5] / 1000.0));
+                }
+            }
+            text.append(String.format(Locale.ROOT, ", in flight %d, queued %d blocks / %d requests, retries %d, buffers %d",
+                    inFlightBlocks, queuedBlocks, queuedRequests, retries, leasedBuffers));
+            return text.toString();
+        }
+    }
+}
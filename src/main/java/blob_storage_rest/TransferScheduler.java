@@ -0,0 +1,284 @@
+package blob_storage_rest;
+
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.BlobServiceClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.specialized.BlobInputStream;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares one host's bandwidth between many blob transfers in the same JVM. Every block a transfer
+ * stages first asks the scheduler for a grant, so transfers yield to each other at block boundaries.
+ * Grants are limited by a token bucket on total bytes per second and by a global number of blocks in
+ * flight, and go out in this order:
+ * <ul>
+ *   <li>{@link Priority#CRITICAL} blocks before any other, so an urgent restore preempts bulk copies as
+ *   soon as their running blocks finish;</li>
+ *   <li>otherwise by start-time fair queuing: each block is tagged with the virtual time at which its
+ *   transfer's previous blocks are paid for, counting bytes divided by the class weight, so over time a
+ *   {@link Priority#STANDARD} transfer gets four times the bandwidth of a {@link Priority#BULK} one, and
+ *   bulk work still fills whatever is left.</li>
+ * </ul>
+ */
+public class TransferScheduler {
+    public enum Priority {
+        CRITICAL(16), STANDARD(4), BULK(1);
+
+        private final int weight;
+
+        Priority(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    private final long bytesPerSecond;
+    private final int maxBlocksInFlight;
+    private final PriorityQueue<Ticket> waiting = new PriorityQueue<>();
+    private final List<Transfer> transfers = new ArrayList<>();
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+    private double virtualTime;
+    private long sequence;
+    private int blocksInFlight;
+
+    /**
+     * @param bytesPerSecond total rate across all transfers, or 0 for no limit; up to one second of
+     *        unused rate can be spent in a burst
+     * @param maxBlocksInFlight blocks staged at once across all transfers
+     */
+    public TransferScheduler(long bytesPerSecond, int maxBlocksInFlight) {
+        if (bytesPerSecond < 0 || maxBlocksInFlight <= 0) {
+            throw new IllegalArgumentException("bytesPerSecond must not be negative and maxBlocksInFlight must be positive");
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.maxBlocksInFlight = maxBlocksInFlight;
+        this.tokens = bytesPerSecond;
+    }
+
+    /** Scheduler limited to {@code TRANSFER_BANDWIDTH_MIBPS} (unlimited if unset) and {@code maxBlocksInFlight}. */
+    public static TransferScheduler fromEnvironment(int maxBlocksInFlight) {
+        String bandwidth = System.getenv("TRANSFER_BANDWIDTH_MIBPS");
+        long bytesPerSecond = bandwidth == null || bandwidth.isEmpty() ? 0
+                : (long) (Double.parseDouble(bandwidth) * 1024 * 1024);
+        return new TransferScheduler(bytesPerSecond, maxBlocksInFlight);
+    }
+
+    /** Registers a transfer whose blocks will be scheduled with {@code priority}. */
+    public synchronized Transfer register(String name, Priority priority) {
+        Transfer transfer = new Transfer(name, priority);
+        transfers.add(transfer);
+        return transfer;
+    }
+
+    /** Waits for a grant to stage a block of {@code bytes} for {@code transfer}; pair with {@link #release}. */
+    public synchronized void acquire(Transfer transfer, long bytes) throws InterruptedException {
+        // A transfer that was idle starts at the current virtual time rather than with saved-up credit
+        double start = Math.max(virtualTime, transfer.virtualFinish);
+        transfer.virtualFinish = start + (double) bytes / transfer.priority.weight;
+        Ticket ticket = new Ticket(transfer, start, sequence++);
+        waiting.add(ticket);
+        try {
+            while (true) {
+                if (waiting.peek() == ticket && blocksInFlight < maxBlocksInFlight) {
+                    long waitNanos = nanosUntilTokens();
+                    if (waitNanos <= 0) {
+                        break;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+                } else {
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            waiting.remove(ticket);
+            notifyAll();
+            throw e;
+        }
+        waiting.poll();
+        blocksInFlight++;
+        // A block may exceed the bucket: it goes out once the bucket is not in debt, and leaves it in debt
+        tokens -= bytes;
+        virtualTime = Math.max(virtualTime, start);
+        transfer.grantedBlocks++;
+        transfer.grantedBytes += bytes;
+        notifyAll();
+    }
+
+    /** Returns the grant taken by {@link #acquire} once the block is staged or has failed. */
+    public synchronized void release() {
+        blocksInFlight--;
+        notifyAll();
+    }
+
+    /** Wraps {@code stager} so that each block it stages for {@code transfer} waits for a grant first. */
+    public StreamingBlockTransfer.BlockStager stager(Transfer transfer, StreamingBlockTransfer.BlockStager stager) {
+        return (blockId, data) -> {
+            acquire(transfer, data.remaining());
+            try {
+                stager.stage(blockId, data);
+            } finally {
+                release();
+            }
+        };
+    }
+
+    private long nanosUntilTokens() {
+        if (bytesPerSecond == 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(bytesPerSecond, tokens + (now - lastRefillNanos) * bytesPerSecond / 1e9);
+        lastRefillNanos = now;
+        return tokens > 0 ? 0 : (long) Math.ceil(-tokens * 1e9 / bytesPerSecond) + 1;
+    }
+
+    /** Per-transfer grants so far, for the end-of-run report. */
+    public synchronized String report() {
+        StringBuilder report = new StringBuilder("Scheduler: ")
+                .append(bytesPerSecond == 0 ? "unlimited" : String.format(Locale.ROOT, "%.1f MiB/s",
+                        bytesPerSecond / (1024.0 * 1024)))
+                .append(", ").append(maxBlocksInFlight).append(" blocks in flight");
+        for (Transfer transfer : transfers) {
+            report.append(System.lineSeparator()).append("  ").append(transfer);
+        }
+        return report.toString();
+    }
+
+    /** A transfer known to the scheduler. */
+    public static final class Transfer {
+        private final String name;
+        private final Priority priority;
+        private final long startNanos = System.nanoTime();
+        private volatile long finishNanos;
+        private double virtualFinish;
+        private long grantedBlocks;
+        private long grantedBytes;
+
+        private Transfer(String name, Priority priority) {
+            this.name = name;
+            this.priority = priority;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        /** Marks the transfer as done, for the report. */
+        public void finished() {
+            finishNanos = System.nanoTime();
+        }
+
+        @Override
+        public String toString() {
+            long finish = finishNanos;
+            return String.format(Locale.ROOT, "%s [%s]: %d blocks, %d bytes%s", name, priority, grantedBlocks,
+                    grantedBytes, finish == 0 ? "" : String.format(Locale.ROOT, " in %.1f s", (finish - startNanos) / 1e9));
+        }
+    }
+
+    private static final class Ticket implements Comparable<Ticket> {
+        final Transfer transfer;
+        final double virtualStart;
+        final long sequence;
+
+        Ticket(Transfer transfer, double virtualStart, long sequence) {
+            this.transfer = transfer;
+            this.virtualStart = virtualStart;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Ticket other) {
+            boolean critical = transfer.priority == Priority.CRITICAL;
+            if (critical != (other.transfer.priority == Priority.CRITICAL)) {
+                return critical ? -1 : 1;
+            }
+            int byTag = Double.compare(virtualStart, other.virtualStart);
+            return byTag != 0 ? byTag : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+
+        // Each argument is a blob to copy, optionally prefixed with its priority, e.g. critical:restore.bak bulk:archive.zip
+        String sourceConnectionString = System.getenv("AZURE_STORAGE_CONNECTION_STRING");
+        String sourceContainerName = "large-blob";
+        String targetConnectionString = System.getenv("AZURE_STORAGE_CONNECTION_STRING_TARGET");
+        String targetContainerName = "target-container";
+
+        BlobServiceClient sourceClient = new BlobServiceClientBuilder()
+                .connectionString(sourceConnectionString)
+                .buildClient();
+        // The context-headers policy lets each stageBlock carry its own x-ms-content-crc64 header
+        BlobServiceClient targetClient = new BlobServiceClientBuilder()
+                .connectionString(targetConnectionString)
+                .addPolicy(SyncTransfer.CONTEXT_HEADERS)
+                .addPolicy(TransferMetrics.retryCountingPolicy())
+                .buildClient();
+        BlobContainerClient sourceContainer = sourceClient.getBlobContainerClient(sourceContainerName);
+        BlobContainerClient targetContainer = targetClient.getBlobContainerClient(targetContainerName);
+
+        // Small blocks keep preemption responsive; the scheduler caps blocks in flight across all transfers
+        int blockSize = 4 * 1024 * 1024;
+        TransferScheduler scheduler = TransferScheduler.fromEnvironment(16);
+        List<Thread> threads = new ArrayList<>();
+        for (String arg : args) {
+            int colon = arg.indexOf(':');
+            Priority priority = colon < 0 ? Priority.STANDARD
+                    : Priority.valueOf(arg.substring(0, colon).toUpperCase(Locale.ROOT));
+            String blobName = arg.substring(colon + 1);
+            Transfer transfer = scheduler.register(blobName, priority);
+            threads.add(Thread.ofPlatform().name("transfer-" + blobName).start(() -> copy(scheduler, transfer,
+                    sourceContainer.getBlobClient(blobName),
+                    targetContainer.getBlobClient(blobName).getBlockBlobClient(), blockSize)));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        System.out.println(scheduler.report());
+
+        long endTime = System.currentTimeMillis();
+        System.out.println("Total time taken: " + (endTime - startTime) / 60000.0 + " minutes");
+        System.out.println("Transfer metrics: " + TransferMetrics.get().snapshot());
+    }
+
+    private static void copy(TransferScheduler scheduler, Transfer transfer, BlobClient source, BlockBlobClient target,
+            int blockSize) {
+        BlockChecksums checksums = BlockChecksums.fromEnvironment();
+        try (BlobInputStream inputStream = source.openInputStream()) {
+            long length = inputStream.getProperties().getBlobSize();
+            if (length <= StreamingBlockTransfer.singlePutThreshold()) {
+                // A small blob takes one grant and a single Put Blob
+                ByteBuffer content = ByteBuffer.wrap(inputStream.readAllBytes());
+                scheduler.acquire(transfer, length);
+                try {
+                    SyncTransfer.putBlob(target, content, checksums, null);
+                } finally {
+                    scheduler.release();
+                }
+            } else {
+                StreamingBlockTransfer streaming = new StreamingBlockTransfer(
+                        StreamingBlockTransfer.bufferedBlockSizeFor(length, blockSize), 8);
+                List<String> blockIds = streaming.transfer(inputStream, scheduler.stager(transfer,
+                        HedgedBlockStager.fromEnvironment((blockId, data) -> SyncTransfer.stageBlock(target, blockId,
+                                data, checksums))));
+                long start = System.nanoTime();
+                target.commitBlockList(blockIds);
+                TransferMetrics.get().record(TransferMetrics.Operation.COMMIT_BLOCK_LIST, start, 0);
+            }
+            transfer.finished();
+            System.out.println("Copied " + source.getBlobName() + " [" + transfer.getPriority() + "]");
+        } catch (Exception e) {
+            System.err.println("Failed to copy " + source.getBlobName() + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package blob_storage_rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AdaptiveTransferControllerTest {
+    private static final int MIB = 1024 * 1024;
+    private static final long FAST = 1_000_000L; // 1ms
+    private static final long SLOW = 20_000_000_000L; // 20s
+
+    @Test
+    public void fastWindowAddsABlockInFlightAndDoublesTheBlockSize() {
+        AdaptiveTransferController controller = new AdaptiveTransferController(MIB, 4 * MIB, 16 * MIB, 2, 4, 8);
+        // A window is two rounds of the current concurrency
+        recordBlocks(controller, 8, FAST);
+
+        assertEquals(5, controller.getConcurrency());
+        assertEquals(8 * MIB, controller.getBlockSize());
+    }
+
+    @Test
+    public void failureHalvesTheBlocksInFlight() {
+        AdaptiveTransferController controller = new AdaptiveTransferController(MIB, 4 * MIB, 16 * MIB, 1, 8, 16);
+        controller.recordFailure();
+        assertEquals(4, controller.getConcurrency());
+        controller.recordFailure();
+        assertEquals(2, controller.getConcurrency());
+        // No block finished in either window, so the block size has nothing to go on
+        assertEquals(4 * MIB, controller.getBlockSize());
+    }
+
+    @Test
+    public void slowBlocksHalveTheBlockSize() {
+        AdaptiveTransferController controller = new AdaptiveTransferController(MIB, 4 * MIB, 16 * MIB, 2, 2, 8);
+        recordBlocks(controller, 4, SLOW);
+        assertEquals(2 * MIB, controller.getBlockSize());
+    }
+
+    @Test
+    public void settingsStayWithinTheirBounds() {
+        AdaptiveTransferController controller = new AdaptiveTransferController(MIB, 4 * MIB, 16 * MIB, 2, 4, 6);
+        for (int i = 0; i < 10; i++) {
+            controller.recordFailure();
+        }
+        assertEquals(2, controller.getConcurrency());
+
+        for (int i = 0; i < 20; i++) {
+            recordBlocks(controller, 2 * controller.getConcurrency() + 4, FAST);
+        }
+        assertEquals(16 * MIB, controller.getBlockSize());
+        assertTrue(controller.getConcurrency() >= 2 && controller.getConcurrency() <= 6);
+    }
+
+    private static void recordBlocks(AdaptiveTransferController controller, int count, long nanos) {
+        int blockSize = controller.getBlockSize();
+        for (int i = 0; i < count; i++) {
+            controller.recordBlock(blockSize, nanos);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package blob_storage_rest;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BlockChecksumsTest {
+
+    @Test
+    public void crc64MatchesTheStandardCheckValue() {
+        // CRC-64/NVME, the variant Azure Storage uses, of "123456789"
+        ByteBuffer data = ByteBuffer.wrap("123456789".getBytes(StandardCharsets.US_ASCII));
+        assertEquals(0xAE8B14860A799888L, BlockChecksums.crc64(0, data));
+    }
+
+    @Test
+    public void combinedBlockCrcsMatchTheCrcOfTheWholeBlob() {
+        byte[] data = new byte[3_000_017];
+        new Random(1).nextBytes(data);
+        long whole = BlockChecksums.crc64(0, ByteBuffer.wrap(data));
+
+        long combined = 0;
+        int blockSize = 300_007;
+        for (int offset = 0; offset < data.length; offset += blockSize) {
+            int length = Math.min(blockSize, data.length - offset);
+            long block = BlockChecksums.crc64(0, ByteBuffer.wrap(data, offset, length));
+            combined = BlockChecksums.crc64Combine(combined, block, length);
+        }
+        assertEquals(whole, combined);
+    }
+
+    @Test
+    public void combiningAnEmptyBlockKeepsTheCrc() {
+        long crc = BlockChecksums.crc64(0, ByteBuffer.wrap(new byte[] {1, 2, 3}));
+        assertEquals(crc, BlockChecksums.crc64Combine(crc, 0, 0));
+    }
+
+    @Test
+    public void directBuffersGiveTheSameCrcAsHeapBuffers() {
+        byte[] data = new byte[100_003];
+        new Random(2).nextBytes(data);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        assertEquals(BlockChecksums.crc64(0, ByteBuffer.wrap(data)), BlockChecksums.crc64(0, direct));
+    }
+}
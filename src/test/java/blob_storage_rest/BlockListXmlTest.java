@@ -0,0 +1,65 @@
+package blob_storage_rest;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BlockListXmlTest {
+
+    @Test
+    public void bodyHasTheAdvertisedLengthAndListsEveryBlockInOrder() throws IOException {
+        List<String> blockIds = blockIds(1000);
+        byte[] body;
+        try (InputStream input = BlockListXml.open(blockIds)) {
+            body = input.readAllBytes();
+        }
+        assertEquals(BlockListXml.contentLength(blockIds), body.length);
+        assertEquals(expectedBody(blockIds), new String(body, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void singleByteReadsGiveTheSameBody() throws IOException {
+        List<String> blockIds = blockIds(3);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream input = BlockListXml.open(blockIds)) {
+            int b;
+            while ((b = input.read()) != -1) {
+                body.write(b);
+            }
+        }
+        assertEquals(expectedBody(blockIds), body.toString(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void emptyListIsJustTheEnvelope() throws IOException {
+        List<String> blockIds = new ArrayList<>();
+        try (InputStream input = BlockListXml.open(blockIds)) {
+            byte[] body = input.readAllBytes();
+            assertEquals(BlockListXml.contentLength(blockIds), body.length);
+            assertEquals(expectedBody(blockIds), new String(body, StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static List<String> blockIds(int count) {
+        List<String> blockIds = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            blockIds.add(StreamingBlockTransfer.blockId(i));
+        }
+        return blockIds;
+    }
+
+    private static String expectedBody(List<String> blockIds) {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?><BlockList>");
+        for (String blockId : blockIds) {
+            xml.append("<Latest>").append(blockId).append("</Latest>");
+        }
+        return xml.append("</BlockList>").toString();
+    }
+}
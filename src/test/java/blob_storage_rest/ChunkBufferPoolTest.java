@@ -0,0 +1,57 @@
+package blob_storage_rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class ChunkBufferPoolTest {
+
+    @Test
+    public void releasedBuffersAreReusedCleared() throws InterruptedException {
+        ChunkBufferPool pool = new ChunkBufferPool(1024, 2, false);
+        ByteBuffer first = pool.lease();
+        first.put(new byte[100]).flip();
+        pool.release(first);
+
+        ByteBuffer second = pool.lease();
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(1024, second.limit());
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    public void leaseWaitsWhileEveryBufferIsLeased() throws InterruptedException {
+        ChunkBufferPool pool = new ChunkBufferPool(1024, 2, true);
+        ByteBuffer first = pool.lease();
+        pool.lease();
+        assertTrue(first.isDirect());
+
+        CountDownLatch leased = new CountDownLatch(1);
+        AtomicReference<ByteBuffer> third = new AtomicReference<>();
+        Thread waiter = new Thread(() -> {
+            try {
+                third.set(pool.lease());
+                leased.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+        assertFalse(leased.await(200, TimeUnit.MILLISECONDS));
+
+        pool.release(first);
+        assertTrue(leased.await(5, TimeUnit.SECONDS));
+        assertSame(first, third.get());
+        assertEquals(2, pool.getPeakLeased());
+    }
+}
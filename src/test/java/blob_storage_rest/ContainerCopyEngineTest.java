@@ -0,0 +1,145 @@
+package blob_storage_rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.azure.storage.blob.BlobServiceClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ContainerCopyEngineTest {
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalBlobServer server;
+    private BlobServiceClient client;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new LocalBlobServer(0).start();
+        client = new BlobServiceClientBuilder().connectionString(server.getConnectionString()).buildClient();
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void copiesEveryBlobUnderThePrefixByteForByte() throws Exception {
+        Random random = new Random(10);
+        byte[][] blobs = new byte[6][];
+        for (int i = 0; i < blobs.length; i++) {
+            // Small, exactly one block, and multi-block blobs with a short last block
+            blobs[i] = new byte[i * BLOCK_SIZE + random.nextInt(BLOCK_SIZE)];
+            random.nextBytes(blobs[i]);
+            server.putBlob("large-blob", "logs/part-" + i, blobs[i]);
+        }
+        // Above the single-put threshold, so copied block by block
+        byte[] large = randomBytes(random, 4 * 1024 * 1024 + 100);
+        server.putBlob("large-blob", "logs/large", large);
+        server.putBlob("large-blob", "other/skipped", new byte[100]);
+
+        ContainerCopyEngine engine = new ContainerCopyEngine(client.getBlobContainerClient("large-blob"),
+                client.getBlobContainerClient("target-container"), BLOCK_SIZE, 4);
+        Map<String, Throwable> failures = engine.copy("logs/");
+
+        assertTrue(failures.toString(), failures.isEmpty());
+        for (int i = 0; i < blobs.length; i++) {
+            assertArrayEquals(blobs[i], server.getBlob("target-container", "logs/part-" + i));
+        }
+        assertArrayEquals(large, server.getBlob("target-container", "logs/large"));
+        assertNull(server.getBlob("target-container", "other/skipped"));
+        assertTrue(engine.report(), engine.report().startsWith("Copied 7 blobs (6 single-shot)"));
+    }
+
+    @Test
+    public void aSourceOverwrittenAfterListingFailsInsteadOfMixingVersions() throws Exception {
+        Random random = new Random(11);
+        server.putBlob("large-blob", "logs/small", randomBytes(random, 1000));
+        server.putBlob("large-blob", "logs/large", randomBytes(random, 4 * 1024 * 1024 + 100));
+        server.setLatencyMillis(300);
+        long requestsBefore = server.getRequestCount();
+        Thread overwrite = Thread.ofPlatform().start(() -> {
+            // The listing has been answered once the first copy request arrives
+            while (server.getRequestCount() < requestsBefore + 2) {
+                Thread.onSpinWait();
+            }
+            server.putBlob("large-blob", "logs/small", new byte[1000]);
+            server.putBlob("large-blob", "logs/large", new byte[4 * 1024 * 1024 + 100]);
+        });
+        ContainerCopyEngine engine = new ContainerCopyEngine(client.getBlobContainerClient("large-blob"),
+                client.getBlobContainerClient("target-container"), BLOCK_SIZE, 4);
+        Map<String, Throwable> failures = engine.copy("logs/");
+        overwrite.join();
+
+        assertEquals(failures.toString(), 2, failures.size());
+        assertTrue(failures.get("logs/large").getMessage(), failures.get("logs/large").getMessage().contains("412"));
+        assertNull(server.getBlob("target-container", "logs/small"));
+        assertNull(server.getBlob("target-container", "logs/large"));
+    }
+
+    @Test
+    public void incrementalRunsCopyOnlyChangedBlobs() throws Exception {
+        Path indexPath = folder.getRoot().toPath().resolve("sync.index");
+        Random random = new Random(16);
+        for (int i = 0; i < 5; i++) {
+            server.putBlob("large-blob", "logs/part-" + i, randomBytes(random, BLOCK_SIZE + i));
+        }
+        assertEquals("Copied 5 blobs", copyWithIndex(indexPath, false));
+        assertEquals("Copied 0 blobs", copyWithIndex(indexPath, false));
+
+        byte[] changed = randomBytes(random, 100);
+        server.putBlob("large-blob", "logs/part-2", changed);
+        assertEquals("Copied 1 blobs", copyWithIndex(indexPath, false));
+        assertArrayEquals(changed, server.getBlob("target-container", "logs/part-2"));
+
+        // A target changed behind the index is only noticed when the target listing is verified
+        server.putBlob("target-container", "logs/part-4", new byte[10]);
+        assertEquals("Copied 0 blobs", copyWithIndex(indexPath, false));
+        assertEquals("Copied 1 blobs", copyWithIndex(indexPath, true));
+        assertEquals(BLOCK_SIZE + 4, server.getBlob("target-container", "logs/part-4").length);
+    }
+
+    @Test
+    public void blockSizeGrowsToStayUnderTheBlockCountLimit() {
+        ContainerCopyEngine engine = new ContainerCopyEngine(client.getBlobContainerClient("large-blob"),
+                client.getBlobContainerClient("target-container"), BLOCK_SIZE, 4);
+        assertEquals(BLOCK_SIZE, engine.blockSizeFor(1000L * BLOCK_SIZE));
+        long huge = 4L * 1024 * 1024 * 1024 * 1024;
+        long size = engine.blockSizeFor(huge);
+        assertTrue(size * 50_000 >= huge);
+        // Grown blocks are whole MiB, and no larger than needed
+        assertEquals(0, size % (1024 * 1024));
+        assertTrue((size - 1024 * 1024) * 50_000 < huge);
+    }
+
+    private String copyWithIndex(Path indexPath, boolean verifyTarget) throws Exception {
+        ContainerCopyEngine engine = new ContainerCopyEngine(client.getBlobContainerClient("large-blob"),
+                client.getBlobContainerClient("target-container"), BLOCK_SIZE, 4);
+        engine.setIndexPath(indexPath);
+        engine.setVerifyTarget(verifyTarget);
+        assertTrue(engine.copy("logs/").isEmpty());
+        return engine.report().substring(0, engine.report().indexOf(" ("));
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+}
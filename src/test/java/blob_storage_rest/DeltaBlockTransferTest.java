@@ -0,0 +1,95 @@
+package blob_storage_rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.azure.core.util.BinaryData;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DeltaBlockTransferTest {
+    private static final int BLOCK_SIZE = 256 * 1024;
+
+    private LocalBlobServer server;
+    private BlockBlobClient target;
+    private final BlockChecksums checksums = new BlockChecksums(BlockChecksums.Algorithm.CRC64);
+
+    @Before
+    public void startServer() throws IOException {
+        server = new LocalBlobServer(0).start();
+        target = new BlobServiceClientBuilder().connectionString(server.getConnectionString()).buildClient()
+                .getBlobContainerClient("target-container").getBlobClient("dump.sql").getBlockBlobClient();
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void insertionOnlyRestagesTheBlocksAroundIt() throws Exception {
+        byte[] original = new byte[6 * 1024 * 1024];
+        new Random(1).nextBytes(original);
+        List<String> originalIds = transfer(original);
+        assertArrayEquals(original, server.getBlob("target-container", "dump.sql"));
+
+        // Insert a kilobyte in the middle: content-defined cuts realign just after it
+        byte[] updated = new byte[original.length + 1024];
+        int at = original.length / 2;
+        System.arraycopy(original, 0, updated, 0, at);
+        System.arraycopy(original, at, updated, at + 1024, original.length - at);
+        List<String> updatedIds = transfer(updated);
+        assertArrayEquals(updated, server.getBlob("target-container", "dump.sql"));
+
+        Set<String> reused = new HashSet<>(updatedIds);
+        reused.retainAll(originalIds);
+        assertTrue("reused " + reused.size() + " of " + updatedIds.size() + " blocks",
+                reused.size() >= updatedIds.size() - 3);
+    }
+
+    @Test
+    public void discardsUncommittedBlocksLeftByAPositionalTransfer() throws Exception {
+        target.stageBlock(StreamingBlockTransfer.blockId(0), BinaryData.fromBytes(new byte[10]));
+        byte[] source = new byte[2 * 1024 * 1024];
+        new Random(2).nextBytes(source);
+        transfer(source);
+        assertArrayEquals(source, server.getBlob("target-container", "dump.sql"));
+    }
+
+    @Test
+    public void blockSizeKeepsEvenMinimumSizeCutsWithinTheBlockLimit() {
+        long terabyte = 1L << 40;
+        int contentDefined = DeltaBlockTransfer.blockSizeFor(DeltaBlockTransfer.Chunking.CONTENT_DEFINED, terabyte,
+                4 * 1024 * 1024);
+        assertTrue(contentDefined / 4 * 50_000L >= terabyte);
+        int fixed = DeltaBlockTransfer.blockSizeFor(DeltaBlockTransfer.Chunking.FIXED, terabyte, 4 * 1024 * 1024);
+        assertTrue(fixed * 50_000L >= terabyte);
+        assertTrue(fixed < contentDefined);
+
+        assertEquals(BLOCK_SIZE, DeltaBlockTransfer.blockSizeFor(DeltaBlockTransfer.Chunking.CONTENT_DEFINED,
+                6 * 1024 * 1024, BLOCK_SIZE));
+        try {
+            DeltaBlockTransfer.blockSizeFor(DeltaBlockTransfer.Chunking.CONTENT_DEFINED, 20 * terabyte, BLOCK_SIZE);
+            fail("Expected blocks too large for a buffer to be refused");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private List<String> transfer(byte[] source) throws IOException, InterruptedException {
+        DeltaBlockTransfer transfer = new DeltaBlockTransfer(DeltaBlockTransfer.Chunking.CONTENT_DEFINED, BLOCK_SIZE, 4);
+        return transfer.transfer(new ByteArrayInputStream(source), target, checksums);
+    }
+}
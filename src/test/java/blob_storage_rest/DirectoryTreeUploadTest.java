@@ -0,0 +1,85 @@
+package blob_storage_rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.models.BlockListType;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DirectoryTreeUploadTest {
+    private static final int SMALL_FILE_THRESHOLD = 32 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalBlobServer server;
+    private BlobContainerClient container;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new LocalBlobServer(0).start();
+        container = new BlobServiceClientBuilder().connectionString(server.getConnectionString()).buildClient()
+                .getBlobContainerClient("target-container");
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void uploadsEveryFileOfTheTreeUnderThePrefix() throws Exception {
+        Path root = folder.newFolder("tree").toPath();
+        Random random = new Random(24);
+        Map<String, byte[]> files = new HashMap<>();
+        // Enough files in one directory to make several batches, and a few nested ones
+        for (int i = 0; i < 150; i++) {
+            files.put("flat/file-" + i, randomBytes(random, random.nextInt(2048)));
+        }
+        files.put("a/b/c/deep.txt", randomBytes(random, 100));
+        files.put("a/empty.txt", new byte[0]);
+        files.put("a/b/large.bin", randomBytes(random, 5 * SMALL_FILE_THRESHOLD + 17));
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            Path path = root.resolve(file.getKey());
+            Files.createDirectories(path.getParent());
+            Files.write(path, file.getValue());
+        }
+        Files.createSymbolicLink(root.resolve("a/b/loop"), root);
+
+        DirectoryTreeUpload upload = new DirectoryTreeUpload(container, SMALL_FILE_THRESHOLD, 64 * 1024, 4);
+        Map<String, Throwable> failures = upload.upload(root, "backup/");
+
+        assertTrue(failures.toString(), failures.isEmpty());
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            assertArrayEquals(file.getKey(), file.getValue(),
+                    server.getBlob("target-container", "backup/" + file.getKey()));
+        }
+        assertNull(server.getBlob("target-container", "backup/a/b/loop"));
+        // The large file went up as 64 KiB blocks staged by the pool
+        assertEquals(3, container.getBlobClient("backup/a/b/large.bin").getBlockBlobClient()
+                .listBlocks(BlockListType.COMMITTED).getCommittedBlocks().size());
+        assertTrue(upload.report(), upload.report().startsWith("Uploaded 153 files (152 single-shot) from 5 directories"));
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,128 @@
+package blob_storage_rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.azure.core.util.BinaryData;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+import com.azure.storage.common.policy.RequestRetryOptions;
+import com.azure.storage.common.policy.RetryPolicyType;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class HedgedBlockStagerTest {
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    @Test
+    public void transientFailuresAreRetriedAgainstTheServer() throws Exception {
+        byte[] source = new byte[20 * BLOCK_SIZE + 99];
+        new Random(19).nextBytes(source);
+        try (LocalBlobServer server = new LocalBlobServer(0).start()) {
+            server.setErrorInjection(0.3, 503, 19);
+            // One try per request, so every injected error reaches the stager
+            BlockBlobClient target = new BlobServiceClientBuilder().connectionString(server.getConnectionString())
+                    .retryOptions(new RequestRetryOptions(RetryPolicyType.FIXED, 1, (Integer) null, null, null, null))
+                    .buildClient().getBlobContainerClient("target-container").getBlobClient("blob")
+                    .getBlockBlobClient();
+            HedgedBlockStager stager = new HedgedBlockStager((blockId, data) ->
+                    target.stageBlock(blockId, BinaryData.fromByteBuffer(data)), 20, 1, 5, false);
+            AtomicInteger retriedFailures = new AtomicInteger();
+            stager.setRetryListener(retriedFailures::incrementAndGet);
+
+            List<String> blockIds = new StreamingBlockTransfer(BLOCK_SIZE, 4).transfer(
+                    new ByteArrayInputStream(source), stager);
+            server.setErrorInjection(0, 503, 19);
+            target.commitBlockList(blockIds);
+
+            assertArrayEquals(source, server.getBlob("target-container", "blob"));
+            assertTrue(server.getInjectedErrorCount() > 0);
+            assertTrue(stager.report(), stager.report().contains(server.getInjectedErrorCount() + " retries"));
+            assertEquals(server.getInjectedErrorCount(), retriedFailures.get());
+        }
+    }
+
+    @Test
+    public void permanentFailuresAreNotRetried() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        HedgedBlockStager stager = new HedgedBlockStager((blockId, data) -> {
+            calls.incrementAndGet();
+            throw new AsyncBlobHttpEngine.HttpStatusException("Put Block failed", 403);
+        }, 5, 1, 5, false);
+        try {
+            stager.stage("block", ByteBuffer.allocate(10));
+            fail("expected the 403 to be thrown");
+        } catch (AsyncBlobHttpEngine.HttpStatusException e) {
+            assertEquals(403, e.getStatusCode());
+        }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void aSlowBlockIsHedgedAndTheHedgeWins() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        byte[][] hedged = new byte[1][];
+        HedgedBlockStager stager = new HedgedBlockStager((blockId, data) -> {
+            if (blockId.equals("slow") && calls.incrementAndGet() == 1) {
+                Thread.sleep(60_000);
+            }
+            if (blockId.equals("slow")) {
+                hedged[0] = new byte[data.remaining()];
+                data.get(hedged[0]);
+            }
+        }, 1, 1, 5, true);
+        for (int i = 0; i < 40; i++) {
+            stager.stage("fast-" + i, ByteBuffer.allocate(1024));
+        }
+
+        byte[] block = new byte[1024];
+        new Random(7).nextBytes(block);
+        long start = System.nanoTime();
+        stager.stage("slow", ByteBuffer.wrap(block));
+
+        assertTrue(System.nanoTime() - start < 30_000_000_000L);
+        assertEquals(2, calls.get());
+        assertArrayEquals(block, hedged[0]);
+        assertTrue(stager.report(), stager.report().contains("1 hedged (1 won by the hedge)"));
+    }
+
+    @Test
+    public void aHedgedBlockIsRecordedOnceWhenBothAttemptsFinish() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        HedgedBlockStager stager = new HedgedBlockStager((blockId, data) -> {
+            long start = System.nanoTime();
+            if (blockId.equals("slow") && calls.incrementAndGet() == 1) {
+                // Finishes after the hedge, ignoring the interrupt that tries to stop it
+                while (System.nanoTime() - start < 500_000_000L) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        // Keep going, as a request already on the wire would
+                    }
+                }
+            }
+            TransferMetrics.get().record(TransferMetrics.Operation.STAGE_BLOCK, start, data.remaining());
+        }, 1, 1, 5, true);
+        TransferMetrics.Snapshot before = TransferMetrics.get().snapshot();
+        for (int i = 0; i < 40; i++) {
+            stager.stage("fast-" + i, ByteBuffer.allocate(1024));
+        }
+        stager.stage("slow", ByteBuffer.allocate(1024));
+
+        TransferMetrics.Snapshot after = TransferMetrics.get().snapshot();
+        assertEquals(2, calls.get());
+        assertEquals(41, after.getCount(TransferMetrics.Operation.STAGE_BLOCK)
+                - before.getCount(TransferMetrics.Operation.STAGE_BLOCK));
+        assertEquals(41 * 1024, after.getBytes(TransferMetrics.Operation.STAGE_BLOCK)
+                - before.getBytes(TransferMetrics.Operation.STAGE_BLOCK));
+    }
+}
@@ -0,0 +1,125 @@
+package blob_storage_rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.azure.core.util.BinaryData;
+import com.azure.storage.blob.BlobServiceClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.models.BlobRange;
+import com.azure.storage.blob.models.BlockListType;
+import com.azure.storage.blob.sas.BlobSasPermission;
+import com.azure.storage.blob.sas.BlobServiceSasSignatureValues;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+import com.azure.storage.common.policy.RequestRetryOptions;
+import com.azure.storage.common.policy.RetryPolicyType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LocalBlobServerTest {
+    private LocalBlobServer server;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new LocalBlobServer(0).start();
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void sharedKeyClientRoundTripsStagedBlocksAndRanges() {
+        BlockBlobClient blob = client(null).getBlobContainerClient("target-container").getBlobClient("blocks")
+                .getBlockBlobClient();
+        byte[] data = randomBytes(300_000);
+        List<String> blockIds = Arrays.asList(StreamingBlockTransfer.blockId(0), StreamingBlockTransfer.blockId(1),
+                StreamingBlockTransfer.blockId(2));
+        for (int i = 0; i < 3; i++) {
+            blob.stageBlock(blockIds.get(i), BinaryData.fromBytes(Arrays.copyOfRange(data, i * 100_000, (i + 1) * 100_000)));
+        }
+        assertEquals(3, blob.listBlocks(BlockListType.UNCOMMITTED).getUncommittedBlocks().size());
+        blob.commitBlockList(blockIds);
+
+        assertArrayEquals(data, server.getBlob("target-container", "blocks"));
+        assertEquals(3, blob.listBlocks(BlockListType.COMMITTED).getCommittedBlocks().size());
+        ByteArrayOutputStream range = new ByteArrayOutputStream();
+        blob.downloadStreamWithResponse(range, new BlobRange(150_000, 1000L), null, null, false, null, null);
+        assertArrayEquals(Arrays.copyOfRange(data, 150_000, 151_000), range.toByteArray());
+    }
+
+    @Test
+    public void requestsWithoutAuthenticationAreRejected() throws Exception {
+        server.putBlob("large-blob", "open", new byte[10]);
+        assertEquals(403, status("GET", server.getBlobEndpoint() + "/large-blob/open"));
+    }
+
+    @Test
+    public void readSasAllowsGetButNotPut() throws Exception {
+        server.putBlob("large-blob", "shared", new byte[10]);
+        String sas = client(null).getBlobContainerClient("large-blob").getBlobClient("shared").generateSas(
+                new BlobServiceSasSignatureValues(OffsetDateTime.now().plusHours(1), BlobSasPermission.parse("r")));
+        String url = server.getBlobEndpoint() + "/large-blob/shared?" + sas;
+
+        assertEquals(200, status("GET", url));
+        assertEquals(403, status("PUT", url));
+    }
+
+    @Test
+    public void injectedErrorsAreSeenAndRetriedByTheClient() {
+        server.setErrorInjection(0.3, 503, 42);
+        RequestRetryOptions retries = new RequestRetryOptions(RetryPolicyType.FIXED, 10, null, 1L, 1L, null);
+        BlockBlobClient blob = client(retries).getBlobContainerClient("target-container").getBlobClient("flaky")
+                .getBlockBlobClient();
+        byte[] data = randomBytes(1000);
+        for (int i = 0; i < 20; i++) {
+            blob.upload(BinaryData.fromBytes(data), true);
+        }
+
+        assertTrue(server.getInjectedErrorCount() > 0);
+        assertArrayEquals(data, server.getBlob("target-container", "flaky"));
+    }
+
+    @Test
+    public void latencyIsAddedToEveryRequest() throws Exception {
+        server.setLatencyMillis(200);
+        long start = System.nanoTime();
+        status("GET", server.getBlobEndpoint() + "/large-blob/missing");
+        assertTrue((System.nanoTime() - start) / 1_000_000 >= 200);
+    }
+
+    private BlobServiceClient client(RequestRetryOptions retries) {
+        BlobServiceClientBuilder builder = new BlobServiceClientBuilder().connectionString(server.getConnectionString());
+        return (retries != null ? builder.retryOptions(retries) : builder).buildClient();
+    }
+
+    private static int status(String method, String url) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URI(url).toURL().openConnection();
+        connection.setRequestMethod(method);
+        if ("PUT".equals(method)) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("x-ms-blob-type", "BlockBlob");
+            connection.getOutputStream().write(new byte[1]);
+        }
+        return connection.getResponseCode();
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(1).nextBytes(data);
+        return data;
+    }
+}
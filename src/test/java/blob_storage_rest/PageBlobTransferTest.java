@@ -0,0 +1,75 @@
+package blob_storage_rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.azure.storage.blob.BlobServiceClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.specialized.PageBlobClient;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PageBlobTransferTest {
+    private static final int DISK_SIZE = 16 * 1024 * 1024;
+
+    private LocalBlobServer server;
+    private BlobServiceClient client;
+    private long populated;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new LocalBlobServer(0).start();
+        client = new BlobServiceClientBuilder().connectionString(server.getConnectionString()).buildClient();
+
+        // A mostly empty disk: a boot sector, one run longer than a Put Page, and a page at the very end
+        server.putPageBlob("large-blob", "disk.vhd", DISK_SIZE);
+        Random random = new Random(22);
+        writePages(random, 0, 4096);
+        writePages(random, 2 * 1024 * 1024, PageBlobTransfer.MAX_PUT_PAGE_BYTES + 8192);
+        writePages(random, DISK_SIZE - 512, 512);
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void copiesOnlyThePopulatedPagesThroughThisProcess() throws Exception {
+        assertCopies(false);
+    }
+
+    @Test
+    public void copiesOnlyThePopulatedPagesServerSide() throws Exception {
+        assertCopies(true);
+    }
+
+    private void assertCopies(boolean serverCopy) throws Exception {
+        PageBlobTransfer transfer = new PageBlobTransfer(4, serverCopy, new BlockChecksums(BlockChecksums.Algorithm.CRC64));
+        transfer.copy(page("large-blob"), page("target-container"));
+
+        assertArrayEquals(server.getBlob("large-blob", "disk.vhd"), server.getBlob("target-container", "disk.vhd"));
+        // The long run is split at the Put Page limit
+        assertTrue(transfer.report(), transfer.report().startsWith(
+                "Page blob: copied " + populated + " of " + DISK_SIZE + " bytes"));
+        assertTrue(transfer.report(), transfer.report().contains(" in 4 ranges"));
+        assertEquals(serverCopy, transfer.report().endsWith(", server-side"));
+    }
+
+    private PageBlobClient page(String container) {
+        return client.getBlobContainerClient(container).getBlobClient("disk.vhd").getPageBlobClient();
+    }
+
+    private void writePages(Random random, long offset, int length) {
+        byte[] pages = new byte[length];
+        random.nextBytes(pages);
+        server.putPages("large-blob", "disk.vhd", offset, pages);
+        populated += length;
+    }
+}
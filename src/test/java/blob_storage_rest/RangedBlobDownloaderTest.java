@@ -0,0 +1,84 @@
+package blob_storage_rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.sas.BlobSasPermission;
+import com.azure.storage.blob.sas.BlobServiceSasSignatureValues;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RangedBlobDownloaderTest {
+    private static final int RANGE_SIZE = 64 * 1024;
+
+    private LocalBlobServer server;
+    private byte[] source;
+    private String sourceUrl;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new LocalBlobServer(0).start();
+        source = new byte[20 * RANGE_SIZE + 5];
+        new Random(3).nextBytes(source);
+        server.putBlob("large-blob", "blob", source);
+        BlobClient blob = new BlobServiceClientBuilder().connectionString(server.getConnectionString()).buildClient()
+                .getBlobContainerClient("large-blob").getBlobClient("blob");
+        sourceUrl = blob.getBlobUrl() + "?" + blob.generateSas(
+                new BlobServiceSasSignatureValues(OffsetDateTime.now().plusHours(1), BlobSasPermission.parse("r")));
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void readsTheBlobInOrderOverSeveralConnections() throws IOException {
+        try (InputStream input = new RangedBlobDownloader(RANGE_SIZE, 4, 8).open(sourceUrl,
+                RangedBlobDownloader.NO_SIGNING)) {
+            assertArrayEquals(source, input.readAllBytes());
+        }
+    }
+
+    @Test
+    public void readsTheBlobThroughTheAsyncEngineFromAnOffset() throws Exception {
+        try (AsyncBlobHttpEngine engine = new AsyncBlobHttpEngine(4, 2);
+                InputStream input = new RangedBlobDownloader(RANGE_SIZE, engine, 8).open(sourceUrl,
+                        RangedBlobDownloader.NO_SIGNING, 3 * RANGE_SIZE + 1)) {
+            assertArrayEquals(Arrays.copyOfRange(source, 3 * RANGE_SIZE + 1, source.length), input.readAllBytes());
+        }
+    }
+
+    @Test
+    public void aBlobOverwrittenMidDownloadFailsTheRead() throws Exception {
+        assertOverwriteFails(new RangedBlobDownloader(RANGE_SIZE, 1, 1));
+    }
+
+    @Test
+    public void aBlobOverwrittenMidDownloadFailsTheReadThroughTheAsyncEngine() throws Exception {
+        try (AsyncBlobHttpEngine engine = new AsyncBlobHttpEngine(4, 2)) {
+            assertOverwriteFails(new RangedBlobDownloader(RANGE_SIZE, engine, 1));
+        }
+    }
+
+    private void assertOverwriteFails(RangedBlobDownloader downloader) throws IOException {
+        try (InputStream input = downloader.open(sourceUrl, RangedBlobDownloader.NO_SIGNING)) {
+            server.putBlob("large-blob", "blob", new byte[source.length]);
+            input.readAllBytes();
+            fail("Expected the overwritten source to fail the read");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("412"));
+        }
+    }
+}
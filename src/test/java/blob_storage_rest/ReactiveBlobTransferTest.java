@@ -0,0 +1,99 @@
+package blob_storage_rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.azure.storage.blob.BlobContainerAsyncClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.specialized.BlockBlobAsyncClient;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReactiveBlobTransferTest {
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private LocalBlobServer server;
+    private BlobContainerAsyncClient sourceContainer;
+    private BlobContainerAsyncClient targetContainer;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new LocalBlobServer(0).start();
+        BlobServiceClientBuilder builder = new BlobServiceClientBuilder().connectionString(server.getConnectionString());
+        sourceContainer = builder.buildAsyncClient().getBlobContainerAsyncClient("large-blob");
+        targetContainer = builder.buildAsyncClient().getBlobContainerAsyncClient("target-container");
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void copiesTheSourceWithCrc64CheckedBlocks() {
+        assertCopies(new BlockChecksums(BlockChecksums.Algorithm.CRC64), 70 * BLOCK_SIZE + 321);
+    }
+
+    @Test
+    public void copiesTheSourceWithMd5CheckedBlocks() {
+        assertCopies(new BlockChecksums(BlockChecksums.Algorithm.MD5), 72 * BLOCK_SIZE);
+    }
+
+    @Test
+    public void blockBuffersAreRecycledRatherThanAllocatedPerBlock() {
+        ReactiveBlobTransfer transfer = new ReactiveBlobTransfer(BLOCK_SIZE, 2,
+                new BlockChecksums(BlockChecksums.Algorithm.NONE));
+        byte[] source = randomBytes(80 * BLOCK_SIZE);
+        server.putBlob("large-blob", "blob", source);
+
+        transfer.transfer(sourceContainer.getBlobAsyncClient("blob"), target("blob")).block();
+
+        assertArrayEquals(source, server.getBlob("target-container", "blob"));
+        String report = transfer.report();
+        int allocated = Integer.parseInt(report.replaceAll(".*staged, (\\d+) block buffers.*", "$1"));
+        assertTrue(report, allocated < 80);
+    }
+
+    @Test
+    public void aSmallBlobIsSentWithOnePutBlob() {
+        byte[] source = randomBytes(1000);
+        server.putBlob("large-blob", "blob", source);
+
+        long requestsBefore = server.getRequestCount();
+        List<String> blockIds = new ReactiveBlobTransfer(BLOCK_SIZE, 4, new BlockChecksums(BlockChecksums.Algorithm.CRC64))
+                .transfer(sourceContainer.getBlobAsyncClient("blob"), target("blob")).block();
+
+        assertTrue(blockIds.isEmpty());
+        // Get Blob Properties, Get Blob and Put Blob
+        assertEquals(3, server.getRequestCount() - requestsBefore);
+        assertArrayEquals(source, server.getBlob("target-container", "blob"));
+    }
+
+    private void assertCopies(BlockChecksums checksums, int length) {
+        byte[] source = randomBytes(length);
+        server.putBlob("large-blob", "blob", source);
+
+        List<String> blockIds = new ReactiveBlobTransfer(BLOCK_SIZE, 4, checksums)
+                .transfer(sourceContainer.getBlobAsyncClient("blob"), target("blob")).block();
+
+        assertEquals((length + BLOCK_SIZE - 1) / BLOCK_SIZE, blockIds.size());
+        assertArrayEquals(source, server.getBlob("target-container", "blob"));
+    }
+
+    private BlockBlobAsyncClient target(String name) {
+        return targetContainer.getBlobAsyncClient(name).getBlockBlobAsyncClient();
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}
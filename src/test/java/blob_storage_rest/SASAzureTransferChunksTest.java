@@ -0,0 +1,75 @@
+package blob_storage_rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.BlobServiceClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.sas.BlobSasPermission;
+import com.azure.storage.blob.sas.BlobServiceSasSignatureValues;
+
+import java.io.IOException;
+import java.time.OffsetDateTime;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SASAzureTransferChunksTest {
+    private LocalBlobServer server;
+    private BlobServiceClient client;
+    private byte[] source;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new LocalBlobServer(0).start();
+        client = new BlobServiceClientBuilder().connectionString(server.getConnectionString()).buildClient();
+        source = new byte[3 * 1024 * 1024 + 17];
+        new Random(2).nextBytes(source);
+        server.putBlob("large-blob", "blob", source);
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void copiesTheBlobServerSideInBlocks() throws Exception {
+        SASAzureTransferChunks.copyBlobInBlocks(sasUrl("large-blob", "r"), sasUrl("target-container", "w"));
+
+        assertArrayEquals(source, server.getBlob("target-container", "blob"));
+    }
+
+    @Test
+    public void aSourceOverwrittenMidCopyFailsTheCopy() throws Exception {
+        server.setLatencyMillis(500);
+        long requestsBefore = server.getRequestCount();
+        Thread overwrite = Thread.ofPlatform().start(() -> {
+            // Once Put Block From URL has arrived, the HEAD that read the ETag has been answered
+            while (server.getRequestCount() < requestsBefore + 2) {
+                Thread.onSpinWait();
+            }
+            server.putBlob("large-blob", "blob", new byte[source.length]);
+        });
+        try {
+            SASAzureTransferChunks.copyBlobInBlocks(sasUrl("large-blob", "r"), sasUrl("target-container", "w"));
+            fail("Expected the overwritten source to fail the copy");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("HTTP 412"));
+        } finally {
+            overwrite.join();
+        }
+        assertNull(server.getBlob("target-container", "blob"));
+    }
+
+    private String sasUrl(String container, String permissions) {
+        BlobClient blob = client.getBlobContainerClient(container).getBlobClient("blob");
+        return blob.getBlobUrl() + "?" + blob.generateSas(new BlobServiceSasSignatureValues(
+                OffsetDateTime.now().plusHours(1), BlobSasPermission.parse(permissions)));
+    }
+}
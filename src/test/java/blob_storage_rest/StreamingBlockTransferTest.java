@@ -0,0 +1,241 @@
+package blob_storage_rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StreamingBlockTransferTest {
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Blocks as the target would hold them, by block ID. */
+    private final Map<String, byte[]> staged = new ConcurrentHashMap<>();
+
+    private LocalBlobServer server;
+    private final BlockChecksums checksums = new BlockChecksums(BlockChecksums.Algorithm.CRC64);
+
+    @Before
+    public void startServer() throws IOException {
+        server = new LocalBlobServer(0).start();
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void stagesTheSourceInBlocksThatReassembleByteForByte() throws IOException {
+        byte[] source = randomBytes(5 * BLOCK_SIZE + 123);
+
+        List<String> blockIds = new StreamingBlockTransfer(BLOCK_SIZE, 4).transfer(new ByteArrayInputStream(source),
+                (blockId, data) -> staged.put(blockId, copyOf(data)));
+
+        assertEquals(6, blockIds.size());
+        assertArrayEquals(source, committed(blockIds));
+    }
+
+    @Test
+    public void directBuffersAreFilledThroughAChannelAndReturnedToThePool() throws IOException {
+        byte[] source = randomBytes(3 * BLOCK_SIZE + 7);
+        ChunkBufferPool pool = new ChunkBufferPool(BLOCK_SIZE, 4, true);
+
+        List<String> blockIds = new StreamingBlockTransfer(pool, 4).transfer(new ByteArrayInputStream(source),
+                (blockId, data) -> staged.put(blockId, copyOf(data)));
+
+        assertArrayEquals(source, committed(blockIds));
+        assertEquals(0, pool.getLeased());
+        assertTrue(pool.getPeakLeased() <= 4);
+    }
+
+    @Test
+    public void stagesAtMostMaxInFlightBlocksAtOnce() throws IOException {
+        byte[] source = randomBytes(32 * BLOCK_SIZE);
+        AtomicInteger staging = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+
+        List<String> blockIds = new StreamingBlockTransfer(BLOCK_SIZE, 3).transfer(new ByteArrayInputStream(source),
+                (blockId, data) -> {
+                    peak.accumulateAndGet(staging.incrementAndGet(), Math::max);
+                    Thread.sleep(5);
+                    staged.put(blockId, copyOf(data));
+                    staging.decrementAndGet();
+                });
+
+        assertArrayEquals(source, committed(blockIds));
+        assertTrue("peak " + peak.get(), peak.get() <= 3);
+    }
+
+    @Test
+    public void blocksFollowTheControllersBlockSize() throws IOException {
+        byte[] source = randomBytes(40 * BLOCK_SIZE + 5);
+        ChunkBufferPool pool = new ChunkBufferPool(4 * BLOCK_SIZE, 4, false);
+        StreamingBlockTransfer transfer = new StreamingBlockTransfer(pool, 4);
+        AdaptiveTransferController controller = new AdaptiveTransferController(BLOCK_SIZE, BLOCK_SIZE, 4 * BLOCK_SIZE,
+                1, 2, 4);
+        transfer.setController(controller);
+
+        List<String> blockIds = transfer.transfer(new ByteArrayInputStream(source),
+                (blockId, data) -> staged.put(blockId, copyOf(data)));
+
+        // Fast blocks grow to the pool's buffer size, so fewer blocks than at the initial size
+        assertTrue(blockIds.size() < 41);
+        assertArrayEquals(source, committed(blockIds));
+    }
+
+    @Test
+    public void resumesFromTheJournalWithoutRestagingBlocks() throws IOException {
+        byte[] source = randomBytes(5 * BLOCK_SIZE + 123);
+        Path journalPath = folder.getRoot().toPath().resolve("transfer.journal");
+
+        // An interrupted run that got through the first three blocks
+        try (TransferJournal journal = TransferJournal.open(journalPath, "source#etag", source.length, BLOCK_SIZE)) {
+            new StreamingBlockTransfer(BLOCK_SIZE, 4).transfer(new ByteArrayInputStream(source, 0, 3 * BLOCK_SIZE),
+                    (blockId, data) -> staged.put(blockId, copyOf(data)), journal);
+        }
+
+        try (TransferJournal journal = TransferJournal.open(journalPath, "source#etag", source.length, BLOCK_SIZE)) {
+            Map<String, Long> uncommitted = new HashMap<>();
+            staged.forEach((blockId, data) -> uncommitted.put(blockId, (long) data.length));
+            journal.reconcile(uncommitted, StreamingBlockTransfer::blockId);
+            assertEquals(3L * BLOCK_SIZE, journal.resumeOffset());
+
+            AtomicInteger restaged = new AtomicInteger();
+            int offset = (int) journal.resumeOffset();
+            List<String> blockIds = new StreamingBlockTransfer(BLOCK_SIZE, 4).transfer(
+                    new ByteArrayInputStream(source, offset, source.length - offset), (blockId, data) -> {
+                        restaged.incrementAndGet();
+                        staged.put(blockId, copyOf(data));
+                    }, journal);
+
+            assertEquals(6, blockIds.size());
+            assertEquals(3, restaged.get());
+            assertArrayEquals(source, committed(blockIds));
+        }
+    }
+
+    @Test
+    public void resumesThroughTheServerWithoutRestagingBlocks() throws Exception {
+        byte[] source = randomBytes(5 * BLOCK_SIZE + 123);
+        assertArrayEquals(source, resume(source, targetBlob("resumed"), null));
+    }
+
+    @Test
+    public void resumesCompressedBlocksFromTheJournal() throws Exception {
+        // Compressible, so staged blocks are shorter than the blocks of the source
+        byte[] source = new byte[5 * BLOCK_SIZE + 123];
+        Random random = new Random(3);
+        for (int i = 0; i < source.length; i++) {
+            source[i] = (byte) ('a' + random.nextInt(16));
+        }
+        try (BlockCompressor compressor = new BlockCompressor(1, BLOCK_SIZE, 4)) {
+            byte[] committed = resume(source, targetBlob("compressed"), compressor);
+            try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(committed))) {
+                assertArrayEquals(source, input.readAllBytes());
+            }
+        }
+    }
+
+    /**
+     * Stages the first three blocks as an interrupted run would, then resumes from the journal and
+     * commits. Returns the committed blob.
+     */
+    private byte[] resume(byte[] source, BlockBlobClient target, BlockCompressor compressor) throws IOException {
+        Path journalPath = folder.getRoot().toPath().resolve("transfer.journal");
+        String sourceId = "source#etag" + (compressor != null ? "#" + compressor.contentEncoding() : "");
+        try (TransferJournal journal = TransferJournal.open(journalPath, sourceId, source.length, BLOCK_SIZE)) {
+            StreamingBlockTransfer transfer = new StreamingBlockTransfer(BLOCK_SIZE, 4);
+            transfer.setCompressor(compressor);
+            transfer.transfer(new ByteArrayInputStream(source, 0, 3 * BLOCK_SIZE),
+                    (blockId, data) -> SyncTransfer.stageBlock(target, blockId, data, checksums), journal);
+        }
+
+        try (TransferJournal journal = TransferJournal.open(journalPath, sourceId, source.length, BLOCK_SIZE)) {
+            journal.reconcile(TransferJournal.uncommittedBlocks(target), StreamingBlockTransfer::blockId);
+            assertEquals(3, journal.stagedCount());
+            assertEquals(3L * BLOCK_SIZE, journal.resumeOffset());
+
+            StreamingBlockTransfer transfer = new StreamingBlockTransfer(BLOCK_SIZE, 4);
+            transfer.setCompressor(compressor);
+            AtomicInteger restaged = new AtomicInteger();
+            int offset = (int) journal.resumeOffset();
+            List<String> blockIds = transfer.transfer(new ByteArrayInputStream(source, offset, source.length - offset),
+                    (blockId, data) -> {
+                        restaged.incrementAndGet();
+                        SyncTransfer.stageBlock(target, blockId, data, checksums);
+                    }, journal);
+            target.commitBlockList(blockIds);
+            journal.delete();
+
+            assertEquals(6, blockIds.size());
+            assertEquals(3, restaged.get());
+        }
+        return server.getBlob("target-container", target.getBlobName());
+    }
+
+    @Test
+    public void failedBlockFailsTheTransfer() {
+        byte[] source = randomBytes(8 * BLOCK_SIZE);
+        try {
+            new StreamingBlockTransfer(BLOCK_SIZE, 4).transfer(new ByteArrayInputStream(source),
+                    (blockId, data) -> {
+                        throw new IOException("injected");
+                    });
+            fail("Expected the staging failure to be rethrown");
+        } catch (IOException e) {
+            assertEquals("injected", e.getMessage());
+        }
+    }
+
+    private byte[] committed(List<String> blockIds) {
+        ByteArrayOutputStream blob = new ByteArrayOutputStream();
+        for (String blockId : blockIds) {
+            blob.writeBytes(staged.get(blockId));
+        }
+        return blob.toByteArray();
+    }
+
+    private BlockBlobClient targetBlob(String name) {
+        return new BlobServiceClientBuilder().connectionString(server.getConnectionString()).buildClient()
+                .getBlobContainerClient("target-container").getBlobClient(name).getBlockBlobClient();
+    }
+
+    /** The block between the buffer's position and limit; the buffer goes back to the pool after staging. */
+    private static byte[] copyOf(ByteBuffer data) {
+        byte[] copy = new byte[data.remaining()];
+        data.duplicate().get(copy);
+        return copy;
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(1).nextBytes(data);
+        return data;
+    }
+}
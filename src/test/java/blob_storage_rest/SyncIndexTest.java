@@ -0,0 +1,154 @@
+package blob_storage_rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SyncIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path path;
+
+    @Before
+    public void createPath() {
+        path = folder.getRoot().toPath().resolve("sync.index");
+    }
+
+    @Test
+    public void copiedEntriesAreMergedWithKeptOnesInNameOrder() throws Exception {
+        try (SyncIndex index = SyncIndex.open(path, null)) {
+            // Copies finish in any order
+            index.recordCopied(entry("c"));
+            index.recordCopied(entry("a"));
+            index.recordCopied(entry("b"));
+            index.commit();
+        }
+        try (SyncIndex index = SyncIndex.open(path, null)) {
+            index.keep(index.lookup("a"));
+            index.recordCopied(entry("aa"));
+            assertNull(index.lookup("ab"));
+            index.keep(index.lookup("c"));
+            index.commit();
+        }
+        try (SyncIndex index = SyncIndex.open(path, null)) {
+            assertNotNull(index.lookup("a"));
+            assertNotNull(index.lookup("aa"));
+            // b was not listed again, so it was dropped
+            assertNull(index.lookup("b"));
+            SyncIndex.Entry c = index.lookup("c");
+            assertTrue(c.matchesSource("etag-c", 1, 1000));
+            assertFalse(c.matchesSource("etag-c", 2, 1000));
+            assertTrue(c.matchesTarget("target-c"));
+            assertTrue(c.matchesTarget("\"target-c\""));
+        }
+    }
+
+    @Test
+    public void entriesOutsideTheSyncedPrefixAreCarriedOver() throws Exception {
+        try (SyncIndex index = SyncIndex.open(path, null)) {
+            index.recordCopied(entry("images/1"));
+            index.recordCopied(entry("logs/1"));
+            index.recordCopied(entry("videos/1"));
+            index.commit();
+        }
+        try (SyncIndex index = SyncIndex.open(path, "logs/")) {
+            index.commit();
+        }
+        try (SyncIndex index = SyncIndex.open(path, null)) {
+            assertNotNull(index.lookup("images/1"));
+            assertNull(index.lookup("logs/1"));
+            assertNotNull(index.lookup("videos/1"));
+        }
+    }
+
+    @Test
+    public void anUncommittedSyncLeavesThePreviousIndex() throws Exception {
+        try (SyncIndex index = SyncIndex.open(path, null)) {
+            index.recordCopied(entry("a"));
+            index.commit();
+        }
+        byte[] committed = Files.readAllBytes(path);
+        try (SyncIndex index = SyncIndex.open(path, null)) {
+            index.recordCopied(entry("b"));
+        }
+        assertEquals(committed.length, Files.readAllBytes(path).length);
+        try (SyncIndex index = SyncIndex.open(path, null)) {
+            assertNotNull(index.lookup("a"));
+            assertNull(index.lookup("b"));
+        }
+        assertEquals(1, Files.list(folder.getRoot().toPath()).count());
+    }
+
+    @Test
+    public void copiesBeyondOneRunAreSpilledAndMergedWithTheKeptEntries() throws Exception {
+        int count = 5 * SyncIndex.ENTRIES_PER_RUN / 2;
+        try (SyncIndex index = SyncIndex.open(path, null)) {
+            for (int i = 0; i < count; i += 10) {
+                index.recordCopied(entry(name(i)));
+            }
+            index.commit();
+        }
+        try (SyncIndex index = SyncIndex.open(path, null)) {
+            List<SyncIndex.Entry> copied = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                if (i % 10 == 0) {
+                    index.keep(index.lookup(name(i)));
+                } else {
+                    assertNull(index.lookup(name(i)));
+                    copied.add(entry(name(i)));
+                }
+            }
+            // Copies finish in any order, and more of them than one sorted run holds
+            Collections.shuffle(copied, new Random(16));
+            for (SyncIndex.Entry entry : copied) {
+                index.recordCopied(entry);
+            }
+            index.commit();
+        }
+        assertEquals(1, Files.list(folder.getRoot().toPath()).count());
+        try (SyncIndex index = SyncIndex.open(path, null)) {
+            for (int i = 0; i < count; i++) {
+                assertNotNull(name(i), index.lookup(name(i)));
+            }
+        }
+    }
+
+    @Test
+    public void anUnreadableIndexCopiesEverything() throws Exception {
+        Files.write(path, "not an index".getBytes());
+        try (SyncIndex index = SyncIndex.open(path, null)) {
+            assertNull(index.lookup("a"));
+        }
+    }
+
+    @Test
+    public void anIndexTruncatedInItsHeaderCopiesEverything() throws Exception {
+        Files.write(path, new byte[] {0x42, 0x53, 0x49});
+        try (SyncIndex index = SyncIndex.open(path, null)) {
+            assertNull(index.lookup("a"));
+        }
+    }
+
+    private static String name(int i) {
+        return String.format("logs/%07d", i);
+    }
+
+    private static SyncIndex.Entry entry(String name) {
+        return new SyncIndex.Entry(name, "etag-" + name, name.length(), 1000, "target-" + name);
+    }
+}
@@ -0,0 +1,80 @@
+package blob_storage_rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.azure.core.util.BinaryData;
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.BlobServiceClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SyncTransferTest {
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalBlobServer server;
+    private BlobServiceClient client;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new LocalBlobServer(0).start();
+        client = new BlobServiceClientBuilder().connectionString(server.getConnectionString()).buildClient();
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void copiesASmallBlobWithOneGetAndOnePutBlob() throws InterruptedException {
+        byte[] source = new byte[70_000];
+        new Random(1).nextBytes(source);
+        server.putBlob("large-blob", "small.jpeg", source);
+
+        long requestsBefore = server.getRequestCount();
+        SyncTransfer.copySmallBlob(client.getBlobContainerClient("large-blob").getBlobClient("small.jpeg"),
+                client.getBlobContainerClient("target-container").getBlobClient("small.jpeg").getBlockBlobClient(),
+                new BlockChecksums(BlockChecksums.Algorithm.CRC64), null);
+
+        assertEquals(2, server.getRequestCount() - requestsBefore);
+        assertArrayEquals(source, server.getBlob("target-container", "small.jpeg"));
+    }
+
+    @Test
+    public void onlyAResumedRunReusesTheJournal() throws IOException {
+        byte[] source = new byte[3 * BLOCK_SIZE];
+        new Random(2).nextBytes(source);
+        server.putBlob("large-blob", "100MB.zip", source);
+        BlobClient sourceBlob = client.getBlobContainerClient("large-blob").getBlobClient("100MB.zip");
+        BlockBlobClient target = client.getBlobContainerClient("target-container").getBlobClient("100MB.zip")
+                .getBlockBlobClient();
+        Path journalPath = folder.getRoot().toPath().resolve("100MB.zip.journal");
+
+        // A first run journals its first block, then stops before the commit
+        try (TransferJournal journal = SyncTransfer.openJournal(journalPath, sourceBlob, target, BLOCK_SIZE, null, false)) {
+            target.stageBlock(StreamingBlockTransfer.blockId(0), BinaryData.fromBytes(Arrays.copyOf(source, BLOCK_SIZE)));
+            journal.recordStaged(0);
+        }
+        try (TransferJournal journal = SyncTransfer.openJournal(journalPath, sourceBlob, target, BLOCK_SIZE, null, true)) {
+            assertEquals(BLOCK_SIZE, journal.resumeOffset());
+        }
+        try (TransferJournal journal = SyncTransfer.openJournal(journalPath, sourceBlob, target, BLOCK_SIZE, null, false)) {
+            assertEquals(0, journal.stagedCount());
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package blob_storage_rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TransferJournalTest {
+    private static final int BLOCK_SIZE = 1000;
+    private static final long SOURCE_LENGTH = 4500;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path path;
+
+    @Before
+    public void createPath() {
+        path = folder.getRoot().toPath().resolve("transfer.journal");
+    }
+
+    @Test
+    public void reopeningForTheSameSourceKeepsTheStagedBlocks() throws IOException {
+        try (TransferJournal journal = TransferJournal.open(path, "source#etag1", SOURCE_LENGTH, BLOCK_SIZE)) {
+            journal.recordStaged(0);
+            journal.recordStaged(1);
+            journal.recordStaged(3);
+        }
+        try (TransferJournal journal = TransferJournal.open(path, "source#etag1", SOURCE_LENGTH, BLOCK_SIZE)) {
+            assertEquals(3, journal.stagedCount());
+            assertTrue(journal.isStaged(3));
+            assertEquals(2, journal.firstMissingIndex());
+            assertEquals(2L * BLOCK_SIZE, journal.resumeOffset());
+        }
+    }
+
+    @Test
+    public void aChangedSourceStartsAFreshJournal() throws IOException {
+        try (TransferJournal journal = TransferJournal.open(path, "source#etag1", SOURCE_LENGTH, BLOCK_SIZE)) {
+            journal.recordStaged(0);
+        }
+        try (TransferJournal journal = TransferJournal.open(path, "source#etag2", SOURCE_LENGTH, BLOCK_SIZE)) {
+            assertEquals(0, journal.stagedCount());
+            assertEquals(0, journal.resumeOffset());
+        }
+    }
+
+    @Test
+    public void aTornTrailingRecordIsDropped() throws IOException {
+        try (TransferJournal journal = TransferJournal.open(path, "source#etag1", SOURCE_LENGTH, BLOCK_SIZE)) {
+            journal.recordStaged(0);
+            journal.recordStaged(1);
+        }
+        // A crash while appending the next record leaves part of it behind
+        Files.write(path, new byte[] {0, 0, 0, 2, 0}, StandardOpenOption.APPEND);
+
+        try (TransferJournal journal = TransferJournal.open(path, "source#etag1", SOURCE_LENGTH, BLOCK_SIZE)) {
+            assertEquals(2, journal.stagedCount());
+            journal.recordStaged(2);
+        }
+        try (TransferJournal journal = TransferJournal.open(path, "source#etag1", SOURCE_LENGTH, BLOCK_SIZE)) {
+            assertEquals(3, journal.stagedCount());
+        }
+    }
+
+    @Test
+    public void reconcileKeepsOnlyBlocksTheTargetStillHoldsAtTheirLength() throws IOException {
+        try (TransferJournal journal = TransferJournal.open(path, "source#etag1", SOURCE_LENGTH, BLOCK_SIZE)) {
+            for (int index = 0; index < 5; index++) {
+                journal.recordStaged(index);
+            }
+            Map<String, Long> uncommitted = new HashMap<>();
+            uncommitted.put(StreamingBlockTransfer.blockId(0), 1000L);
+            uncommitted.put(StreamingBlockTransfer.blockId(1), 999L); // truncated
+            uncommitted.put(StreamingBlockTransfer.blockId(2), 1000L);
+            uncommitted.put(StreamingBlockTransfer.blockId(4), 500L); // the short last block
+            // Block 3 expired on the target
+
+            journal.reconcile(uncommitted, StreamingBlockTransfer::blockId);
+
+            assertEquals(3, journal.stagedCount());
+            assertFalse(journal.isStaged(1));
+            assertFalse(journal.isStaged(3));
+            assertEquals(1, journal.firstMissingIndex());
+        }
+        // The reconciled state is what a later run reads back
+        try (TransferJournal journal = TransferJournal.open(path, "source#etag1", SOURCE_LENGTH, BLOCK_SIZE)) {
+            assertEquals(3, journal.stagedCount());
+            assertFalse(journal.isStaged(1));
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package blob_storage_rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.azure.core.util.BinaryData;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TransferSchedulerTest {
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    @Test
+    public void concurrentTransfersRoundTripThroughTheServer() throws Exception {
+        TransferScheduler scheduler = new TransferScheduler(0, 2);
+        try (LocalBlobServer server = new LocalBlobServer(0).start()) {
+            BlobContainerClient container = new BlobServiceClientBuilder()
+                    .connectionString(server.getConnectionString()).buildClient()
+                    .getBlobContainerClient("target-container");
+            byte[][] sources = new byte[3][];
+            List<Thread> threads = new ArrayList<>();
+            List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+            for (int i = 0; i < sources.length; i++) {
+                sources[i] = randomBytes(i, 8 * BLOCK_SIZE + i);
+                byte[] source = sources[i];
+                BlockBlobClient target = container.getBlobClient("blob-" + i).getBlockBlobClient();
+                TransferScheduler.Transfer transfer = scheduler.register("blob-" + i, TransferScheduler.Priority.values()[i]);
+                threads.add(Thread.ofPlatform().start(() -> {
+                    try {
+                        List<String> blockIds = new StreamingBlockTransfer(BLOCK_SIZE, 4).transfer(
+                                new ByteArrayInputStream(source), scheduler.stager(transfer, (blockId, data) ->
+                                        target.stageBlock(blockId, BinaryData.fromByteBuffer(data))));
+                        target.commitBlockList(blockIds);
+                        transfer.finished();
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            assertTrue(failures.toString(), failures.isEmpty());
+            for (int i = 0; i < sources.length; i++) {
+                assertArrayEquals(sources[i], server.getBlob("target-container", "blob-" + i));
+            }
+            assertTrue(scheduler.report(), scheduler.report().contains("blob-2 [BULK]: 9 blocks"));
+        }
+    }
+
+    @Test
+    public void standardTransfersGetFourTimesTheGrantsOfBulkOnes() throws Exception {
+        TransferScheduler scheduler = new TransferScheduler(0, 1);
+        TransferScheduler.Transfer standard = scheduler.register("standard", TransferScheduler.Priority.STANDARD);
+        TransferScheduler.Transfer bulk = scheduler.register("bulk", TransferScheduler.Priority.BULK);
+        List<String> grants = Collections.synchronizedList(new ArrayList<>());
+
+        // Hold the only grant until both transfers have blocks waiting
+        scheduler.acquire(scheduler.register("gate", TransferScheduler.Priority.CRITICAL), 1);
+        List<Thread> threads = new ArrayList<>();
+        for (TransferScheduler.Transfer transfer : List.of(standard, bulk)) {
+            for (int worker = 0; worker < 4; worker++) {
+                threads.add(Thread.ofPlatform().start(() -> {
+                    try {
+                        for (int block = 0; block < 10; block++) {
+                            scheduler.acquire(transfer, BLOCK_SIZE);
+                            grants.add(transfer.getPriority().name());
+                            scheduler.release();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }));
+            }
+        }
+        Thread.sleep(200);
+        scheduler.release();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        List<String> first = grants.subList(0, 25);
+        int standardGrants = Collections.frequency(first, "STANDARD");
+        assertTrue(first.toString(), standardGrants >= 3 * (first.size() - standardGrants));
+    }
+
+    @Test
+    public void criticalBlocksAreGrantedBeforeWaitingBulkBlocks() throws Exception {
+        TransferScheduler scheduler = new TransferScheduler(0, 1);
+        TransferScheduler.Transfer bulk = scheduler.register("bulk", TransferScheduler.Priority.BULK);
+        TransferScheduler.Transfer critical = scheduler.register("critical", TransferScheduler.Priority.CRITICAL);
+        List<String> grants = Collections.synchronizedList(new ArrayList<>());
+
+        scheduler.acquire(bulk, BLOCK_SIZE);
+        Thread waitingBulk = Thread.ofPlatform().start(() -> grant(scheduler, bulk, grants));
+        Thread.sleep(100);
+        Thread waitingCritical = Thread.ofPlatform().start(() -> grant(scheduler, critical, grants));
+        Thread.sleep(100);
+        scheduler.release();
+        waitingBulk.join();
+        waitingCritical.join();
+
+        assertEquals(List.of("CRITICAL", "BULK"), grants);
+    }
+
+    @Test
+    public void grantsStayWithinTheBandwidthBudget() throws Exception {
+        // One second of burst, then a second more for the rest
+        TransferScheduler scheduler = new TransferScheduler(4 * BLOCK_SIZE, 4);
+        TransferScheduler.Transfer transfer = scheduler.register("transfer", TransferScheduler.Priority.STANDARD);
+        long start = System.nanoTime();
+        for (int i = 0; i < 9; i++) {
+            scheduler.acquire(transfer, BLOCK_SIZE);
+            scheduler.release();
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        assertTrue("took " + elapsedMillis + " ms", elapsedMillis >= 900 && elapsedMillis < 5000);
+    }
+
+    private static void grant(TransferScheduler scheduler, TransferScheduler.Transfer transfer, List<String> grants) {
+        try {
+            scheduler.acquire(transfer, BLOCK_SIZE);
+            grants.add(transfer.getPriority().name());
+            scheduler.release();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static byte[] randomBytes(long seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}